@@ -0,0 +1,88 @@
+package scheduler.model;
+
+import scheduler.db.MonthlyPartitions;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+// One page of a user's appointments for show_appointments, in Id order: keyset pagination on (user, Id), where
+// each page starts after the last Id of the previous one. The hot Appointments table is always read; archived
+// months are added with UNION ALL only when the date range reaches them, and then only those months are read.
+// Result columns: Id, vaxName, Time and other, the patient for a caregiver and the caregiver for a patient.
+public class AppointmentQuery {
+
+    private final boolean caregiver;
+    private final String username;
+    private final Date from;
+    private final Date to;
+    private final int after;
+    private final int limit;
+
+    // from and to may be null for an open range, limit 0 for no limit
+    public AppointmentQuery(boolean caregiver, String username, Date from, Date to, int after, int limit) {
+        this.caregiver = caregiver;
+        this.username = username;
+        this.from = from;
+        this.to = to;
+        this.after = after;
+        this.limit = limit;
+    }
+
+    public PreparedStatement prepare(Connection con) throws SQLException {
+        MonthlyPartitions.Route route = MonthlyPartitions.getInstance().route(from, to);
+        if (!route.includesArchive()) {
+            PreparedStatement statement = con.prepareStatement(select("Appointments", false) + " ORDER BY Id");
+            bind(statement, 1, null);
+            return statement;
+        }
+        // each tier is cut to the page before the merge, so a long history is never sorted as a whole
+        String sql = limit > 0
+                ? "SELECT TOP (?) * FROM (SELECT * FROM (" + select("Appointments", false) + " ORDER BY Id) h"
+                        + " UNION ALL SELECT * FROM (" + select("AppointmentsArchive", true) + " ORDER BY Id) a) p"
+                        + " ORDER BY Id"
+                : "SELECT * FROM (" + select("Appointments", false) + " UNION ALL "
+                        + select("AppointmentsArchive", true) + ") p ORDER BY Id";
+        PreparedStatement statement = con.prepareStatement(sql);
+        int p = 1;
+        if (limit > 0) {
+            statement.setInt(p++, limit);
+        }
+        p = bind(statement, p, null);
+        bind(statement, p, route);
+        return statement;
+    }
+
+    private String select(String table, boolean archive) {
+        return "SELECT " + (limit > 0 ? "TOP (?) " : "") + "Id, vaxName, Time, "
+                + (caregiver ? "pUser" : "cUser") + " AS other FROM " + table + " WHERE "
+                + (caregiver ? "cUser" : "pUser") + " = ?" + (archive && bounded() ? " AND MonthKey BETWEEN ? AND ?" : "")
+                + " AND Id > ?" + (from != null ? " AND Time >= ?" : "") + (to != null ? " AND Time <= ?" : "");
+    }
+
+    // an open range reads every archived month, where the keyset on (user, Id) alone is the better plan
+    private boolean bounded() {
+        return from != null || to != null;
+    }
+
+    // Bind one tier's parameters from index p on, returns the next index
+    private int bind(PreparedStatement statement, int p, MonthlyPartitions.Route route) throws SQLException {
+        if (limit > 0) {
+            statement.setInt(p++, limit);
+        }
+        statement.setString(p++, username);
+        if (route != null && bounded()) {
+            statement.setInt(p++, route.getFirstMonth());
+            statement.setInt(p++, route.getLastMonth());
+        }
+        statement.setInt(p++, after);
+        if (from != null) {
+            statement.setDate(p++, from);
+        }
+        if (to != null) {
+            statement.setDate(p++, to);
+        }
+        return p;
+    }
+}
@@ -0,0 +1,157 @@
+package scheduler.bench;
+
+import scheduler.Scheduler;
+import scheduler.db.ConnectionManager;
+import scheduler.db.SchemaMigrator;
+import scheduler.metrics.LatencyHistogram;
+import scheduler.model.AssignmentStrategy;
+import scheduler.model.AvailabilityIndex;
+import scheduler.model.ReservationEngine;
+import scheduler.model.VaccineInventory;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Many patients booking the same dates at once, once per assignment strategy, against a scratch database
+// filled by DataGenerator (DBBackend=h2 runs everything in process):
+//   scheduler bench-assign [--caregivers n] [--days n] [--per-day n] [--threads n]
+// Every strategy gets its own days, each with one slot per caregiver; per-day reservations are made on each
+// of them by threads concurrent clients. Reports throughput, latency, how often a reservation found its first
+// choice already taken (conflicts) or had to be retried, and how evenly the bookings ended up spread.
+public class AssignmentBenchmark {
+
+    private final int caregivers;
+    private final int daysPerStrategy;
+    private final int perDay;
+    private final int threads;
+    private final DataGenerator generator;
+
+    public AssignmentBenchmark(Map<String, String> options) {
+        this.caregivers = intOption(options, "caregivers", 50);
+        this.daysPerStrategy = intOption(options, "days", 20);
+        this.perDay = intOption(options, "per-day", caregivers / 2);
+        this.threads = intOption(options, "threads", 8);
+        // one extra block of days warms up the JIT and the pool before anything is reported
+        this.generator = new DataGenerator(caregivers, Math.max(1, threads), daysPerStrategy
+                * (AssignmentStrategy.Kind.values().length + 1), 0);
+    }
+
+    public static void main(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+        }
+        try {
+            new AssignmentBenchmark(options).run();
+        } catch (SQLException | InterruptedException e) {
+            System.out.println("Error occurred when running the assignment benchmark");
+            e.printStackTrace();
+        } finally {
+            ConnectionManager.shutdown();
+        }
+    }
+
+    public void run() throws SQLException, InterruptedException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try {
+            SchemaMigrator.migrate(con, SchemaMigrator.latestVersion());
+            generator.load(con);
+        } finally {
+            cm.closeConnection();
+        }
+        Scheduler.loadCaches();
+
+        System.out.printf("%d caregivers, %d reservations per day on %d days, %d concurrent clients%n",
+                caregivers, perDay, daysPerStrategy, threads);
+        System.out.printf("%-13s %9s %9s %9s %10s %8s %8s %10s %10s%n", "strategy", "ops/s", "p50 ms", "p99 ms",
+                "conflicts", "retries", "failed", "max/mean", "unbooked");
+        measure(AssignmentStrategy.Kind.ROUND_ROBIN, 0, false);
+        int firstDay = daysPerStrategy;
+        for (AssignmentStrategy.Kind kind : AssignmentStrategy.Kind.values()) {
+            measure(kind, firstDay, true);
+            firstDay += daysPerStrategy;
+        }
+    }
+
+    private void measure(AssignmentStrategy.Kind kind, int firstDay, boolean report) throws InterruptedException {
+        ReservationEngine engine = new ReservationEngine(AvailabilityIndex.getInstance(),
+                VaccineInventory.getInstance(), AssignmentStrategy.create(kind), 5, 10);
+        LatencyHistogram latency = new LatencyHistogram();
+        ConcurrentHashMap<String, AtomicInteger> bookings = new ConcurrentHashMap<>();
+        AtomicLong failed = new AtomicLong();
+        ExecutorService clients = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        try {
+            for (int day = firstDay; day < firstDay + daysPerStrategy; day++) {
+                Date d = DataGenerator.day(day);
+                AtomicInteger remaining = new AtomicInteger(perDay);
+                List<Future<?>> running = new ArrayList<>();
+                for (int t = 0; t < threads; t++) {
+                    String patient = DataGenerator.patient(t);
+                    running.add(clients.submit(() -> {
+                        while (remaining.getAndDecrement() > 0) {
+                            long begin = System.nanoTime();
+                            try {
+                                ReservationEngine.Result result = engine.reserve(d, DataGenerator.VACCINE, patient);
+                                if (result.getStatus() == ReservationEngine.Status.RESERVED) {
+                                    bookings.computeIfAbsent(result.getCaregiver(), k -> new AtomicInteger())
+                                            .incrementAndGet();
+                                } else {
+                                    failed.incrementAndGet();
+                                }
+                            } catch (SQLException e) {
+                                failed.incrementAndGet();
+                            }
+                            latency.record(System.nanoTime() - begin);
+                        }
+                    }));
+                }
+                for (Future<?> f : running) {
+                    try {
+                        f.get();
+                    } catch (ExecutionException e) {
+                        failed.incrementAndGet();
+                    }
+                }
+            }
+        } finally {
+            clients.shutdown();
+            clients.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        if (!report) {
+            return;
+        }
+
+        long booked = 0;
+        int max = 0;
+        for (AtomicInteger count : bookings.values()) {
+            booked += count.get();
+            max = Math.max(max, count.get());
+        }
+        double mean = (double) booked / caregivers;
+        System.out.printf("%-13s %9.1f %9.3f %9.3f %10d %8d %8d %10.2f %10d%n", kind,
+                latency.count() / Math.max(seconds, 1e-9), latency.percentile(50) / 1e6,
+                latency.percentile(99) / 1e6, engine.getConflicts(), engine.getRetries(), failed.get(),
+                mean == 0 ? 0 : max / mean, caregivers - bookings.size());
+    }
+
+    private static int intOption(Map<String, String> options, String name, int defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+}
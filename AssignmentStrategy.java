@@ -0,0 +1,178 @@
+package scheduler.model;
+
+import scheduler.db.ConnectionManager;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Decides which free caregiver a reservation gets. ReservationEngine tries the caregivers in the order
+// returned by order() and books the first slot it can still claim, so the order also decides how often
+// concurrent reservations for the same date go after the same row. Chosen with the AssignmentStrategy
+// environment variable:
+//   FIRST        alphabetically first caregiver (the original behaviour; every concurrent booking collides)
+//   ROUND_ROBIN  each reservation starts one caregiver further along (default)
+//   RANDOM       each reservation starts at a random caregiver
+//   LEAST_BOOKED caregivers with the fewest bookings so far first, ties in round-robin order
+public interface AssignmentStrategy {
+
+    enum Kind {
+        FIRST, ROUND_ROBIN, RANDOM, LEAST_BOOKED
+    }
+
+    // The candidates, all free on d, in the order to try them
+    List<String> order(Date d, NavigableSet<String> candidates);
+
+    // Called once a booking with this caregiver has committed
+    default void booked(String caregiver) {
+    }
+
+    // Called at startup with the database available
+    default void load() throws SQLException {
+    }
+
+    Kind getKind();
+
+    static AssignmentStrategy create(Kind kind) {
+        switch (kind) {
+            case FIRST:
+                return new First();
+            case RANDOM:
+                return new Random();
+            case LEAST_BOOKED:
+                return new LeastBooked();
+            default:
+                return new RoundRobin();
+        }
+    }
+
+    static AssignmentStrategy fromEnv() {
+        String value = System.getenv("AssignmentStrategy");
+        if (value == null || value.isEmpty()) {
+            return create(Kind.ROUND_ROBIN);
+        }
+        try {
+            return create(Kind.valueOf(value.toUpperCase()));
+        } catch (IllegalArgumentException e) {
+            System.out.println("Ignoring invalid value for AssignmentStrategy: " + value);
+            return create(Kind.ROUND_ROBIN);
+        }
+    }
+
+    // The candidates starting at position offset (mod their number) and wrapping around
+    static String[] rotate(NavigableSet<String> candidates, long offset) {
+        String[] all = candidates.toArray(new String[0]);
+        if (all.length < 2) {
+            return all;
+        }
+        int start = (int) Math.floorMod(offset, (long) all.length);
+        String[] rotated = new String[all.length];
+        System.arraycopy(all, start, rotated, 0, all.length - start);
+        System.arraycopy(all, 0, rotated, all.length - start, start);
+        return rotated;
+    }
+
+    class First implements AssignmentStrategy {
+        @Override
+        public List<String> order(Date d, NavigableSet<String> candidates) {
+            return Arrays.asList(candidates.toArray(new String[0]));
+        }
+
+        @Override
+        public Kind getKind() {
+            return Kind.FIRST;
+        }
+    }
+
+    class RoundRobin implements AssignmentStrategy {
+        private final AtomicLong next = new AtomicLong();
+
+        @Override
+        public List<String> order(Date d, NavigableSet<String> candidates) {
+            return Arrays.asList(rotate(candidates, next.getAndIncrement()));
+        }
+
+        @Override
+        public Kind getKind() {
+            return Kind.ROUND_ROBIN;
+        }
+    }
+
+    class Random implements AssignmentStrategy {
+        @Override
+        public List<String> order(Date d, NavigableSet<String> candidates) {
+            return Arrays.asList(rotate(candidates, ThreadLocalRandom.current().nextInt(Integer.MAX_VALUE)));
+        }
+
+        @Override
+        public Kind getKind() {
+            return Kind.RANDOM;
+        }
+    }
+
+    class LeastBooked implements AssignmentStrategy {
+        private final ConcurrentHashMap<String, AtomicInteger> bookings = new ConcurrentHashMap<>();
+        private final AtomicLong next = new AtomicLong();
+
+        @Override
+        public List<String> order(Date d, NavigableSet<String> candidates) {
+            // rotate first so that concurrent reservations start at different caregivers among equals;
+            // the sort is stable and keeps that order within each booking count
+            String[] rotated = rotate(candidates, next.getAndIncrement());
+            Integer[] positions = new Integer[rotated.length];
+            int[] counts = new int[rotated.length];
+            for (int i = 0; i < rotated.length; i++) {
+                positions[i] = i;
+                AtomicInteger count = bookings.get(rotated[i]);
+                counts[i] = count == null ? 0 : count.get();
+            }
+            Arrays.sort(positions, (a, b) -> Integer.compare(counts[a], counts[b]));
+            String[] ordered = new String[rotated.length];
+            for (int i = 0; i < positions.length; i++) {
+                ordered[i] = rotated[positions[i]];
+            }
+            return Arrays.asList(ordered);
+        }
+
+        @Override
+        public void booked(String caregiver) {
+            bookings.computeIfAbsent(caregiver, k -> new AtomicInteger()).incrementAndGet();
+        }
+
+        // Start from the bookings already in the database
+        @Override
+        public void load() throws SQLException {
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+            try (PreparedStatement statement = con.prepareStatement(
+                    "SELECT cUser, COUNT(*) FROM Appointments GROUP BY cUser");
+                 ResultSet resultSet = statement.executeQuery()) {
+                bookings.clear();
+                while (resultSet.next()) {
+                    bookings.put(resultSet.getString(1), new AtomicInteger(resultSet.getInt(2)));
+                }
+            } finally {
+                cm.closeConnection();
+            }
+        }
+
+        public int getBookings(String caregiver) {
+            AtomicInteger count = bookings.get(caregiver);
+            return count == null ? 0 : count.get();
+        }
+
+        @Override
+        public Kind getKind() {
+            return Kind.LEAST_BOOKED;
+        }
+    }
+}
@@ -0,0 +1,340 @@
+package scheduler.model;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.ReadCoalescer;
+import scheduler.util.Env;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+// In-process copy of the Availabilities table: day -> caregivers free on that day, in username order.
+// Changes made through this process are written through after they reach the database. Changes made by
+// other instances sharing the database are picked up because every day is re-read once its copy is older
+// than the configured time-to-live (AvailabilityIndexTtlMs), so answers are at most that stale. Re-reads go to
+// the read replica only once it has every write made by this process, see ReplicaRouter. Reserve only
+// uses the index to pick candidates; the conditional delete in the database stays the source of truth.
+public class AvailabilityIndex {
+
+    private static final AvailabilityIndex INSTANCE = new AvailabilityIndex(
+            Env.getLong("AvailabilityIndexTtlMs", 5_000));
+
+    private static final String GET_ALL = "SELECT Time, cUser FROM Availabilities";
+    private static final String GET_DAY = "SELECT cUser FROM Availabilities WHERE Time = ? ORDER BY cUser";
+    private static final String GET_RANGE = "SELECT Time, cUser FROM Availabilities WHERE Time BETWEEN ? AND ?";
+    private static final String GET_NEXT = "SELECT Time, cUser FROM Availabilities"
+            + " WHERE Time = (SELECT MIN(Time) FROM Availabilities WHERE Time >= ?)";
+
+    private final long ttlMillis;
+    private final ConcurrentSkipListMap<LocalDate, Day> days = new ConcurrentSkipListMap<>();
+    // concurrent misses on the same day, range or next-date lookup share one query
+    private final ReadCoalescer<LocalDate, Day> dayReads = new ReadCoalescer<>("availability day", this::reload);
+    private final ReadCoalescer<Key, Boolean> rangeReads = new ReadCoalescer<>("availability range", key -> {
+        reload(key.first, key.last);
+        return Boolean.TRUE;
+    });
+    private final ReadCoalescer<Key, Map.Entry<LocalDate, Integer>> nextReads = new ReadCoalescer<>(
+            "next available", key -> readNext(key.first));
+    // bumped by every change, so that a range or next-date lookup never joins a query that started before it
+    private final AtomicLong changes = new AtomicLong();
+    // when the last full load finished; days missing from the map are known to be empty until it expires
+    private volatile long fullLoadAt = 0;
+
+    public AvailabilityIndex(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    public static AvailabilityIndex getInstance() {
+        return INSTANCE;
+    }
+
+    // Load every availability row, called once at startup
+    public void load() throws SQLException {
+        ConcurrentSkipListMap<LocalDate, Day> loaded = new ConcurrentSkipListMap<>();
+        long now = System.currentTimeMillis();
+        long before = changes.get();
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try (PreparedStatement statement = con.prepareStatement(GET_ALL);
+             ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                LocalDate day = resultSet.getDate("Time").toLocalDate();
+                loaded.computeIfAbsent(day, k -> new Day(now)).caregivers.add(resultSet.getString("cUser"));
+            }
+        } finally {
+            cm.closeConnection();
+        }
+        boolean moved = changes.get() != before;
+        if (moved) {
+            // changed while the rows were being read: use them, but read every day again on its next lookup
+            loaded.replaceAll((day, copy) -> copy.expired());
+        }
+        days.clear();
+        days.putAll(loaded);
+        fullLoadAt = moved ? 0 : now;
+    }
+
+    // Caregivers free on the given date, in username order
+    public NavigableSet<String> caregiversOn(Date d) throws SQLException {
+        return Collections.unmodifiableNavigableSet(day(d.toLocalDate()).caregivers);
+    }
+
+    // The same without blocking: complete already when the date is fresh, otherwise once its query is done
+    public CompletableFuture<NavigableSet<String>> caregiversOnAsync(Date d) {
+        LocalDate key = d.toLocalDate();
+        Day day = cached(key);
+        CompletableFuture<Day> read = day != null ? CompletableFuture.completedFuture(day) : dayReads.get(key);
+        return read.thenApply(loaded -> Collections.unmodifiableNavigableSet(loaded.caregivers));
+    }
+
+    // The first free caregiver on the given date, or null if there is none
+    public String firstCaregiverOn(Date d) throws SQLException {
+        NavigableSet<String> caregivers = day(d.toLocalDate()).caregivers;
+        return caregivers.isEmpty() ? null : caregivers.first();
+    }
+
+    public int size(Date d) throws SQLException {
+        return day(d.toLocalDate()).caregivers.size();
+    }
+
+    // Number of free caregivers per date from..to (inclusive), dates without any left out.
+    // Answered from memory while the range is fresh, otherwise with one query that refreshes the whole range.
+    public NavigableMap<LocalDate, Integer> counts(Date from, Date to) throws SQLException {
+        LocalDate first = from.toLocalDate();
+        LocalDate last = to.toLocalDate();
+        if (!isFresh(first, last)) {
+            rangeReads.join(new Key(first, last, changes.get()));
+        }
+        TreeMap<LocalDate, Integer> counts = new TreeMap<>();
+        for (Map.Entry<LocalDate, Day> e : days.subMap(first, true, last, true).entrySet()) {
+            int count = e.getValue().caregivers.size();
+            if (count > 0) {
+                counts.put(e.getKey(), count);
+            }
+        }
+        return counts;
+    }
+
+    // The first date on or after from with a free caregiver and how many there are, or null if there is none.
+    // Answered from memory while everything from that date on is fresh, otherwise with one query.
+    public Map.Entry<LocalDate, Integer> nextAvailable(Date from) throws SQLException {
+        LocalDate first = from.toLocalDate();
+        if (isFresh(fullLoadAt)) {
+            boolean fresh = true;
+            for (Map.Entry<LocalDate, Day> e : days.tailMap(first, true).entrySet()) {
+                if (!isFresh(e.getValue().loadedAt)) {
+                    fresh = false;
+                    break;
+                }
+                if (!e.getValue().caregivers.isEmpty()) {
+                    return Map.entry(e.getKey(), e.getValue().caregivers.size());
+                }
+            }
+            if (fresh) {
+                return null;
+            }
+        }
+        return nextReads.join(new Key(first, null, changes.get()));
+    }
+
+    // The earliest open date and its caregivers in one round trip, kept as that date's copy
+    private Map.Entry<LocalDate, Integer> readNext(LocalDate from) throws SQLException {
+        Day day = new Day(System.currentTimeMillis());
+        LocalDate next = null;
+        long before = changes.get();
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createCacheReadConnection();
+        try (PreparedStatement statement = con.prepareStatement(GET_NEXT)) {
+            statement.setDate(1, Date.valueOf(from));
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    next = resultSet.getDate("Time").toLocalDate();
+                    day.caregivers.add(resultSet.getString("cUser"));
+                }
+            }
+        } finally {
+            cm.closeConnection();
+        }
+        if (next == null) {
+            return null;
+        }
+        days.put(next, settle(day, before));
+        return Map.entry(next, day.caregivers.size());
+    }
+
+    // Called after a slot has been committed to the database
+    public void added(Date d, String cUser) {
+        changed(d.toLocalDate());
+        Day day = days.get(d.toLocalDate());
+        if (day != null) {
+            day.caregivers.add(cUser);
+        } else if (isFresh(fullLoadAt)) {
+            days.computeIfAbsent(d.toLocalDate(), k -> new Day(fullLoadAt)).caregivers.add(cUser);
+        }
+    }
+
+    // Called after a slot has been removed from the database
+    public void removed(Date d, String cUser) {
+        changed(d.toLocalDate());
+        Day day = days.get(d.toLocalDate());
+        if (day != null) {
+            day.caregivers.remove(cUser);
+        }
+    }
+
+    // Forget what we know about a date, the next lookup reads it from the database
+    public void invalidate(Date d) {
+        changed(d.toLocalDate());
+        days.remove(d.toLocalDate());
+        fullLoadAt = 0;
+    }
+
+    private void changed(LocalDate key) {
+        changes.incrementAndGet();
+        dayReads.forget(key);
+    }
+
+    private Day day(LocalDate key) throws SQLException {
+        Day day = cached(key);
+        return day != null ? day : dayReads.join(key);
+    }
+
+    // Our copy of the date while it is fresh, null when it has to be read
+    private Day cached(LocalDate key) {
+        Day day = days.get(key);
+        if (day != null && isFresh(day.loadedAt)) {
+            return day;
+        }
+        if (day == null && isFresh(fullLoadAt)) {
+            return Day.EMPTY;
+        }
+        return null;
+    }
+
+    private Day reload(LocalDate key) throws SQLException {
+        Day day = new Day(System.currentTimeMillis());
+        long before = changes.get();
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createCacheReadConnection();
+        try (PreparedStatement statement = con.prepareStatement(GET_DAY)) {
+            statement.setDate(1, Date.valueOf(key));
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    day.caregivers.add(resultSet.getString("cUser"));
+                }
+            }
+        } finally {
+            cm.closeConnection();
+        }
+        day = settle(day, before);
+        days.put(key, day);
+        return day;
+    }
+
+    // Every day in the range is known: the ones we hold are fresh and the ones we do not are known empty
+    private boolean isFresh(LocalDate first, LocalDate last) {
+        if (!isFresh(fullLoadAt)) {
+            return false;
+        }
+        for (Day day : days.subMap(first, true, last, true).values()) {
+            if (!isFresh(day.loadedAt)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Re-read every day in the range with one query, empty days included
+    private void reload(LocalDate first, LocalDate last) throws SQLException {
+        long now = System.currentTimeMillis();
+        TreeMap<LocalDate, Day> loaded = new TreeMap<>();
+        for (LocalDate day = first; !day.isAfter(last); day = day.plusDays(1)) {
+            loaded.put(day, new Day(now));
+        }
+        long before = changes.get();
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createCacheReadConnection();
+        try (PreparedStatement statement = con.prepareStatement(GET_RANGE)) {
+            statement.setDate(1, Date.valueOf(first));
+            statement.setDate(2, Date.valueOf(last));
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    loaded.get(resultSet.getDate("Time").toLocalDate()).caregivers.add(resultSet.getString("cUser"));
+                }
+            }
+        } finally {
+            cm.closeConnection();
+        }
+        loaded.replaceAll((day, copy) -> settle(copy, before));
+        days.putAll(loaded);
+    }
+
+    // A copy read by a query as it may be kept: if this process changed a slot while the query was in flight,
+    // added() or removed() went to the copy being replaced and the result may predate it, so it is kept
+    // already expired and the next lookup reads the date again
+    private Day settle(Day loaded, long changesBefore) {
+        return changes.get() == changesBefore ? loaded : loaded.expired();
+    }
+
+    private boolean isFresh(long loadedAt) {
+        return System.currentTimeMillis() - loadedAt < ttlMillis;
+    }
+
+    // A range (first..last) or a next-date lookup (last null) as of a number of changes
+    private static class Key {
+        private final LocalDate first;
+        private final LocalDate last;
+        private final long changes;
+
+        private Key(LocalDate first, LocalDate last, long changes) {
+            this.first = first;
+            this.last = last;
+            this.changes = changes;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return first.equals(other.first) && Objects.equals(last, other.last) && changes == other.changes;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(first, last, changes);
+        }
+    }
+
+    private static class Day {
+        private static final Day EMPTY = new Day(Long.MAX_VALUE);
+
+        private final ConcurrentSkipListSet<String> caregivers = new ConcurrentSkipListSet<>();
+        private final long loadedAt;
+
+        private Day(long loadedAt) {
+            this.loadedAt = loadedAt;
+        }
+
+        // The same caregivers, due for a re-read
+        private Day expired() {
+            Day day = new Day(0);
+            day.caregivers.addAll(caregivers);
+            return day;
+        }
+    }
+}
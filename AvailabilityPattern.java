@@ -0,0 +1,114 @@
+package scheduler.model;
+
+import java.sql.Date;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+// The dates named by an upload_availability command:
+//   <date>                                   one day
+//   <from> <to>                              every day in the range
+//   <from> <to> <weekdays>                   those weekdays in the range, e.g. MON,WED,FRI or WEEKDAYS
+//   <from> <to> every <n>                    every n-th day starting at <from>
+//   <from> <to> <weekdays> every <n>         those weekdays of every n-th week starting at <from>
+public class AvailabilityPattern {
+
+    // a longer range is almost certainly a typo in the year
+    public static final int MAX_DAYS = 731;
+
+    private final LocalDate from;
+    private final LocalDate to;
+    private final Set<DayOfWeek> weekdays;
+    private final int every;
+
+    private AvailabilityPattern(LocalDate from, LocalDate to, Set<DayOfWeek> weekdays, int every) {
+        this.from = from;
+        this.to = to;
+        this.weekdays = weekdays;
+        this.every = every;
+    }
+
+    // Parse the arguments after the command name; throws IllegalArgumentException on bad input
+    public static AvailabilityPattern parse(String[] args) {
+        if (args.length == 0 || args.length > 5) {
+            throw new IllegalArgumentException("Wrong number of arguments");
+        }
+        LocalDate from = Date.valueOf(args[0]).toLocalDate();
+        LocalDate to = args.length > 1 ? Date.valueOf(args[1]).toLocalDate() : from;
+        if (to.isBefore(from) || ChronoUnit.DAYS.between(from, to) >= MAX_DAYS) {
+            throw new IllegalArgumentException("Invalid date range");
+        }
+        int i = 2;
+        Set<DayOfWeek> weekdays = EnumSet.allOf(DayOfWeek.class);
+        if (args.length > i && !args[i].equalsIgnoreCase("every")) {
+            weekdays = parseWeekdays(args[i]);
+            i++;
+        }
+        int every = 1;
+        if (args.length > i) {
+            if (!args[i].equalsIgnoreCase("every") || args.length != i + 2) {
+                throw new IllegalArgumentException("Expected: every <n>");
+            }
+            every = Integer.parseInt(args[i + 1]);
+            if (every <= 0) {
+                throw new IllegalArgumentException("Interval must be positive");
+            }
+        }
+        return new AvailabilityPattern(from, to, weekdays, every);
+    }
+
+    // Expand into the individual dates, in order
+    public List<Date> expand() {
+        boolean byWeek = weekdays.size() < 7;
+        LocalDate firstWeek = from.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+        List<Date> dates = new ArrayList<>();
+        for (LocalDate day = from; !day.isAfter(to); day = day.plusDays(1)) {
+            if (!weekdays.contains(day.getDayOfWeek())) {
+                continue;
+            }
+            long step = byWeek ? ChronoUnit.WEEKS.between(firstWeek, day) : ChronoUnit.DAYS.between(from, day);
+            if (step % every == 0) {
+                dates.add(Date.valueOf(day));
+            }
+        }
+        return dates;
+    }
+
+    public Date getFrom() {
+        return Date.valueOf(from);
+    }
+
+    public Date getTo() {
+        return Date.valueOf(to);
+    }
+
+    private static Set<DayOfWeek> parseWeekdays(String spec) {
+        String s = spec.toUpperCase(Locale.ROOT);
+        if (s.equals("WEEKDAYS")) {
+            return EnumSet.range(DayOfWeek.MONDAY, DayOfWeek.FRIDAY);
+        }
+        if (s.equals("WEEKENDS")) {
+            return EnumSet.of(DayOfWeek.SATURDAY, DayOfWeek.SUNDAY);
+        }
+        Set<DayOfWeek> days = EnumSet.noneOf(DayOfWeek.class);
+        for (String name : s.split(",")) {
+            days.add(weekday(name));
+        }
+        return days;
+    }
+
+    private static DayOfWeek weekday(String name) {
+        for (DayOfWeek day : DayOfWeek.values()) {
+            if (name.length() >= 3 && day.name().startsWith(name)) {
+                return day;
+            }
+        }
+        throw new IllegalArgumentException("Unknown weekday: " + name);
+    }
+}
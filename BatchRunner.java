@@ -0,0 +1,122 @@
+package scheduler;
+
+import scheduler.util.Env;
+import scheduler.util.PasswordHasher;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+// Runs a command script or a recorded command log through one Scheduler session as fast as the backend allows.
+// There is no greeting, prompt or menu, output goes through one large buffer, and the runner reads up to
+// BatchLookahead commands ahead: the password hash of every create_patient and create_caregiver in that window
+// starts on the hashing pool right away, so it is computed while the commands before it are still talking to
+// the database. Commands themselves still run one at a time and in order, since each one can depend on the
+// login and data left by the ones before it. Blank lines and lines starting with # are skipped.
+public class BatchRunner {
+
+    private final BufferedReader in;
+    private final PrintStream out;
+    private final int lookahead;
+
+    private long commands = 0;
+    private long prehashed = 0;
+
+    public BatchRunner(BufferedReader in, PrintStream out, int lookahead) {
+        if (lookahead <= 0) {
+            throw new IllegalArgumentException("lookahead must be positive!");
+        }
+        this.in = in;
+        this.out = out;
+        this.lookahead = lookahead;
+    }
+
+    public static void main(String[] args) {
+        PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16),
+                false, StandardCharsets.UTF_8);
+        long start = System.nanoTime();
+        try (BufferedReader in = args.length > 0
+                ? Files.newBufferedReader(Paths.get(args[0]), StandardCharsets.UTF_8)
+                : new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8), 1 << 16)) {
+            BatchRunner runner = new BatchRunner(in, out, Env.getInt("BatchLookahead", 32));
+            runner.run();
+            out.flush();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            // on stderr so that stdout holds exactly the session's replies
+            System.err.printf("Ran %d commands in %.2f s (%.0f commands/s), %d password hashes started ahead%n",
+                    runner.commands, seconds, runner.commands / Math.max(seconds, 1e-9), runner.prehashed);
+        } catch (IOException e) {
+            out.flush();
+            System.out.println("Error while reading commands");
+            e.printStackTrace();
+        }
+    }
+
+    public void run() throws IOException {
+        Scheduler session = new Scheduler(in, out, null, false);
+        ArrayDeque<Command> window = new ArrayDeque<>();
+        boolean endOfInput = false;
+        while (true) {
+            while (!endOfInput && window.size() < lookahead) {
+                String line = in.readLine();
+                if (line == null) {
+                    endOfInput = true;
+                } else if (!line.isEmpty() && !line.startsWith("#")) {
+                    String[] tokens = line.split(" ");
+                    if (tokens.length > 0) {
+                        window.add(new Command(tokens, prehash(tokens)));
+                    }
+                }
+            }
+            Command next = window.poll();
+            if (next == null) {
+                return;
+            }
+            commands++;
+            if (!session.execute(next.tokens, next.hash)) {
+                // quit: drop the hashes started for commands that will not run
+                for (Command skipped : window) {
+                    if (skipped.hash != null) {
+                        skipped.hash.cancel(false);
+                    }
+                }
+                return;
+            }
+        }
+    }
+
+    // Start the hash of a create command's password, or null when there is nothing to start or no room for it
+    private Future<PasswordHasher.Hashed> prehash(String[] tokens) {
+        if (tokens.length != 3 || !(tokens[0].equals("create_patient") || tokens[0].equals("create_caregiver"))) {
+            return null;
+        }
+        try {
+            Future<PasswordHasher.Hashed> hash = PasswordHasher.getInstance().hashLater(tokens[2]);
+            prehashed++;
+            return hash;
+        } catch (RejectedExecutionException e) {
+            // the command hashes for itself when it runs
+            return null;
+        }
+    }
+
+    private static class Command {
+        private final String[] tokens;
+        private final Future<PasswordHasher.Hashed> hash;
+
+        private Command(String[] tokens, Future<PasswordHasher.Hashed> hash) {
+            this.tokens = tokens;
+            this.hash = hash;
+        }
+    }
+}
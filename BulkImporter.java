@@ -0,0 +1,499 @@
+package scheduler;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.InList;
+import scheduler.journal.Journal;
+import scheduler.journal.JournalEvent;
+import scheduler.model.AvailabilityIndex;
+import scheduler.model.Caregiver;
+import scheduler.model.Patient;
+import scheduler.model.UsernameFilter;
+import scheduler.model.Vaccine;
+import scheduler.model.VaccineInventory;
+import scheduler.model.Waitlist;
+import scheduler.util.Env;
+import scheduler.util.PasswordHasher;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+// Streams a CSV file into the database in chunks, one transaction per chunk:
+//   scheduler import patients <file> [checkpoint]       username,password
+//   scheduler import caregivers <file> [checkpoint]     username,password
+//   scheduler import doses <file> [checkpoint]          vaccine,number
+//   scheduler import availability <file> [checkpoint]   date,caregiver
+// The file is read line by line, passwords of a chunk are hashed in parallel, and rows go through the same
+// builders as the interactive commands. Each chunk's transaction also records how many lines of the file have
+// been consumed under the checkpoint name (the file name by default) in ImportCheckpoints, so a rerun after a
+// failure resumes exactly after the last committed chunk, even for doses, which are not idempotent.
+public class BulkImporter {
+
+    public enum Kind {
+        PATIENTS, CAREGIVERS, DOSES, AVAILABILITY
+    }
+
+    private static final int MAX_CHUNK_SIZE = InList.MAX;
+
+    private final Kind kind;
+    private final int chunkSize;
+    private final ForkJoinPool hashPool;
+
+    private long imported = 0;
+    private long skipped = 0;
+    private long rejected = 0;
+
+    public BulkImporter(Kind kind, int chunkSize, int hashThreads) {
+        if (chunkSize <= 0 || hashThreads <= 0) {
+            throw new IllegalArgumentException("Chunk size and hash threads must be positive!");
+        }
+        // a chunk's keys are bound as IN (...) parameters, SQL Server allows 2100 per statement
+        if (chunkSize > MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Chunk size cannot exceed " + MAX_CHUNK_SIZE + "!");
+        }
+        this.kind = kind;
+        this.chunkSize = chunkSize;
+        this.hashPool = new ForkJoinPool(hashThreads);
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2 || args.length > 3) {
+            System.out.println("Usage: import <patients|caregivers|doses|availability> <file> [checkpoint]");
+            return;
+        }
+        Kind kind;
+        try {
+            kind = Kind.valueOf(args[0].toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.out.println("Unknown import kind: " + args[0]);
+            return;
+        }
+        Path file = Paths.get(args[1]);
+        String checkpoint = args.length > 2 ? args[2] : file.getFileName().toString();
+        BulkImporter importer = new BulkImporter(kind,
+                Env.getInt("ImportChunkSize", 1000),
+                Env.getInt("ImportHashThreads", Runtime.getRuntime().availableProcessors()));
+        try {
+            long start = System.nanoTime();
+            importer.run(file, checkpoint);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.println("Imported " + importer.imported + " rows, skipped " + importer.skipped
+                    + " existing, rejected " + importer.rejected + " in " + String.format("%.1f", seconds)
+                    + " s (" + String.format("%.0f", importer.imported / Math.max(seconds, 1e-9)) + " rows/s)");
+        } catch (IOException | SQLException e) {
+            System.out.println("Import failed, rerun with the same checkpoint to resume");
+            e.printStackTrace();
+        } finally {
+            importer.hashPool.shutdown();
+            ConnectionManager.shutdown();
+        }
+    }
+
+    public void run(Path file, String checkpoint) throws IOException, SQLException {
+        long done = readCheckpoint(checkpoint);
+        // one scan of the table up front, after that mostly new names skip the lookup per chunk
+        if (kind == Kind.PATIENTS) {
+            UsernameFilter.patients().load();
+        } else if (kind == Kind.CAREGIVERS) {
+            UsernameFilter.caregivers().load();
+        } else {
+            // the slots and doses imported go to the patients waiting for them
+            Waitlist.getInstance().load();
+        }
+        long lineNo = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            List<Row> chunk = new ArrayList<>(chunkSize);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNo++;
+                if (lineNo <= done) {
+                    continue;
+                }
+                Row row = parse(lineNo, line);
+                if (row != null) {
+                    chunk.add(row);
+                }
+                if (chunk.size() == chunkSize) {
+                    importChunk(chunk, new Checkpoint(checkpoint, lineNo));
+                    chunk.clear();
+                }
+            }
+            if (!chunk.isEmpty()) {
+                importChunk(chunk, new Checkpoint(checkpoint, lineNo));
+            }
+        } finally {
+            if (kind == Kind.DOSES || kind == Kind.AVAILABILITY) {
+                // the allocator thread is a daemon, let it book before the import exits
+                Waitlist.getInstance().awaitIdle();
+            }
+        }
+    }
+
+    private Row parse(long lineNo, String line) {
+        String trimmed = line.trim();
+        if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+            return null;
+        }
+        String[] fields = trimmed.split(",", -1);
+        if (fields.length != 2 || fields[0].trim().isEmpty() || fields[1].trim().isEmpty()) {
+            reject(lineNo, "expected 2 columns");
+            return null;
+        }
+        String first = fields[0].trim();
+        String second = fields[1].trim();
+        // an optional header on the first line
+        if (lineNo == 1 && (first.equalsIgnoreCase("username") || first.equalsIgnoreCase("vaccine")
+                || first.equalsIgnoreCase("date"))) {
+            return null;
+        }
+        try {
+            switch (kind) {
+                case DOSES:
+                    int doses = Integer.parseInt(second);
+                    if (doses <= 0) {
+                        reject(lineNo, "doses must be positive");
+                        return null;
+                    }
+                    break;
+                case AVAILABILITY:
+                    Date.valueOf(first);
+                    break;
+                default:
+                    break;
+            }
+        } catch (IllegalArgumentException e) {
+            reject(lineNo, e.getMessage());
+            return null;
+        }
+        return new Row(lineNo, first, second);
+    }
+
+    private void reject(long lineNo, String reason) {
+        rejected++;
+        System.out.println("Line " + lineNo + " rejected: " + reason);
+    }
+
+    private void importChunk(List<Row> chunk, Checkpoint checkpoint) throws SQLException {
+        switch (kind) {
+            case PATIENTS:
+            case CAREGIVERS:
+                importUsers(chunk, checkpoint);
+                break;
+            case DOSES:
+                importDoses(chunk, checkpoint);
+                break;
+            case AVAILABILITY:
+                importAvailability(chunk, checkpoint);
+                break;
+        }
+    }
+
+    private void importUsers(List<Row> chunk, Checkpoint checkpoint) throws SQLException {
+        String table = kind == Kind.PATIENTS ? "Patients" : "Caregivers";
+        Map<String, String> passwords = new LinkedHashMap<>();
+        for (Row row : chunk) {
+            passwords.putIfAbsent(row.first, row.second);
+        }
+        skipped += chunk.size() - passwords.size();
+
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try {
+            con.setAutoCommit(false);
+            // only names the filter cannot rule out need to be looked up
+            UsernameFilter filter = kind == Kind.PATIENTS ? UsernameFilter.patients() : UsernameFilter.caregivers();
+            List<String> maybeTaken = new ArrayList<>();
+            for (String username : passwords.keySet()) {
+                if (filter.mightContain(username)) {
+                    maybeTaken.add(username);
+                }
+            }
+            Set<String> existing = existing(con, "SELECT Username FROM " + table + " WHERE Username IN ",
+                    maybeTaken);
+            passwords.keySet().removeAll(existing);
+            skipped += existing.size();
+
+            List<UserRecord> records = hash(passwords);
+            String addUser = "INSERT INTO " + table + " (Username, Salt, Hash, HashVersion, HashCost) VALUES (?, ?, ?, ?, ?)";
+            try (PreparedStatement statement = con.prepareStatement(addUser)) {
+                for (UserRecord record : records) {
+                    statement.setString(1, record.username);
+                    statement.setBytes(2, record.salt);
+                    statement.setBytes(3, record.hash);
+                    statement.setInt(4, record.hashVersion);
+                    statement.setInt(5, record.hashCost);
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+            checkpoint.save(con);
+            con.commit();
+            imported += records.size();
+            for (UserRecord record : records) {
+                filter.added(record.username);
+            }
+        } catch (SQLException e) {
+            con.rollback();
+            throw e;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // Hash every password of the chunk on the hashing pool and build the rows through the model builders
+    private List<UserRecord> hash(Map<String, String> passwords) throws SQLException {
+        try {
+            return hashPool.submit(() -> passwords.entrySet().parallelStream()
+                    .map(e -> {
+                        // already on our own bounded pool, so hash right here rather than queueing on the shared one
+                        PasswordHasher.Hashed hashed = PasswordHasher.getInstance().hashHere(e.getValue());
+                        if (kind == Kind.PATIENTS) {
+                            Patient patient = new Patient.PatientBuilder(e.getKey(), hashed).build();
+                            return new UserRecord(patient.getUsername(), patient.getSalt(), patient.getHash(),
+                                    patient.getHashVersion(), patient.getHashCost());
+                        }
+                        Caregiver caregiver = new Caregiver.CaregiverBuilder(e.getKey(), hashed).build();
+                        return new UserRecord(caregiver.getUsername(), caregiver.getSalt(), caregiver.getHash(),
+                                caregiver.getHashVersion(), caregiver.getHashCost());
+                    })
+                    .collect(Collectors.toList())).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while hashing passwords");
+        } catch (ExecutionException e) {
+            throw new SQLException("Error occurred when hashing passwords", e.getCause());
+        }
+    }
+
+    private void importDoses(List<Row> chunk, Checkpoint checkpoint) throws SQLException {
+        // one statement per vaccine and chunk, however many rows name it
+        Map<String, Integer> totals = new LinkedHashMap<>();
+        for (Row row : chunk) {
+            totals.merge(row.first, Integer.parseInt(row.second), Integer::sum);
+        }
+        List<Vaccine> vaccines = new ArrayList<>();
+        for (Map.Entry<String, Integer> e : totals.entrySet()) {
+            vaccines.add(new Vaccine.VaccineBuilder(e.getKey(), e.getValue()).build());
+        }
+
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        Set<String> existing;
+        try {
+            con.setAutoCommit(false);
+            existing = existing(con, "SELECT Name FROM Vaccines WHERE Name IN ", new ArrayList<>(totals.keySet()));
+            try (PreparedStatement update = con.prepareStatement(
+                    "UPDATE Vaccines SET Doses = Doses + ? WHERE Name = ?");
+                 PreparedStatement insert = con.prepareStatement("INSERT INTO Vaccines VALUES (?, ?)")) {
+                for (Vaccine vaccine : vaccines) {
+                    if (existing.contains(vaccine.getVaccineName())) {
+                        update.setInt(1, vaccine.getAvailableDoses());
+                        update.setString(2, vaccine.getVaccineName());
+                        update.addBatch();
+                    } else {
+                        insert.setString(1, vaccine.getVaccineName());
+                        insert.setInt(2, vaccine.getAvailableDoses());
+                        insert.addBatch();
+                    }
+                }
+                update.executeBatch();
+                insert.executeBatch();
+            }
+            checkpoint.save(con);
+            con.commit();
+            imported += chunk.size();
+        } catch (SQLException e) {
+            con.rollback();
+            throw e;
+        } finally {
+            cm.closeConnection();
+        }
+        VaccineInventory inventory = VaccineInventory.getInstance();
+        List<JournalEvent> events = new ArrayList<>(vaccines.size());
+        for (Vaccine vaccine : vaccines) {
+            if (existing.contains(vaccine.getVaccineName())) {
+                inventory.applied(vaccine.getVaccineName(), vaccine.getAvailableDoses());
+            } else {
+                inventory.created(vaccine.getVaccineName(), vaccine.getAvailableDoses());
+            }
+            events.add(JournalEvent.dosesAdded(vaccine.getVaccineName(), vaccine.getAvailableDoses()));
+        }
+        Journal.getInstance().record(events);
+        for (Vaccine vaccine : vaccines) {
+            Waitlist.getInstance().dosesAdded(vaccine.getVaccineName());
+        }
+    }
+
+    private void importAvailability(List<Row> chunk, Checkpoint checkpoint) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        Map<String, Set<Date>> wanted = new LinkedHashMap<>();
+        try {
+            con.setAutoCommit(false);
+            // a slot of a caregiver who does not exist would fail the whole batch on the foreign key
+            Set<String> named = new LinkedHashSet<>();
+            for (Row row : chunk) {
+                named.add(row.second);
+            }
+            Set<String> known = existing(con, "SELECT Username FROM Caregivers WHERE Username IN ",
+                    new ArrayList<>(named));
+            for (Row row : chunk) {
+                if (!known.contains(row.second)) {
+                    reject(row.lineNo, "unknown caregiver " + row.second);
+                } else if (!wanted.computeIfAbsent(row.second, k -> new HashSet<>()).add(Date.valueOf(row.first))) {
+                    skipped++;
+                }
+            }
+            List<String> caregivers = new ArrayList<>(wanted.keySet());
+            try (PreparedStatement statement = con.prepareStatement("SELECT Time, cUser FROM Availabilities"
+                    + " WHERE cUser IN " + InList.placeholders(caregivers.size()))) {
+                InList.bind(statement, 1, caregivers);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        Set<Date> dates = wanted.get(resultSet.getString("cUser"));
+                        if (dates != null && dates.remove(resultSet.getDate("Time"))) {
+                            skipped++;
+                        }
+                    }
+                }
+            }
+            int inserted = 0;
+            try (PreparedStatement statement = con.prepareStatement("INSERT INTO Availabilities VALUES (? , ?)")) {
+                for (Map.Entry<String, Set<Date>> e : wanted.entrySet()) {
+                    for (Date d : e.getValue()) {
+                        statement.setDate(1, d);
+                        statement.setString(2, e.getKey());
+                        statement.addBatch();
+                        inserted++;
+                    }
+                }
+                statement.executeBatch();
+            }
+            checkpoint.save(con);
+            con.commit();
+            imported += inserted;
+        } catch (SQLException e) {
+            con.rollback();
+            throw e;
+        } finally {
+            cm.closeConnection();
+        }
+        AvailabilityIndex index = AvailabilityIndex.getInstance();
+        List<JournalEvent> events = new ArrayList<>();
+        Set<Date> dates = new TreeSet<>();
+        for (Map.Entry<String, Set<Date>> e : wanted.entrySet()) {
+            for (Date d : e.getValue()) {
+                index.added(d, e.getKey());
+                events.add(JournalEvent.availabilityAdded(d, e.getKey()));
+                dates.add(d);
+            }
+        }
+        Journal.getInstance().record(events);
+        Waitlist.getInstance().slotsOpened(dates);
+    }
+
+    private static Set<String> existing(Connection con, String query, List<String> keys) throws SQLException {
+        if (keys.isEmpty()) {
+            return Collections.emptySet();
+        }
+        Set<String> found = new HashSet<>();
+        try (PreparedStatement statement = con.prepareStatement(query + InList.placeholders(keys.size()))) {
+            InList.bind(statement, 1, keys);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    found.add(resultSet.getString(1));
+                }
+            }
+        }
+        return found;
+    }
+
+    private static long readCheckpoint(String name) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try (PreparedStatement statement = con.prepareStatement(
+                "SELECT Lines FROM ImportCheckpoints WHERE Name = ?")) {
+            statement.setString(1, name);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() ? resultSet.getLong("Lines") : 0;
+            }
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private static class Row {
+        private final long lineNo;
+        private final String first;
+        private final String second;
+
+        private Row(long lineNo, String first, String second) {
+            this.lineNo = lineNo;
+            this.first = first;
+            this.second = second;
+        }
+    }
+
+    // Lines of the file consumed once the current chunk commits, saved in the chunk's transaction
+    private static class Checkpoint {
+        private final String name;
+        private final long lines;
+
+        private Checkpoint(String name, long lines) {
+            this.name = name;
+            this.lines = lines;
+        }
+
+        private void save(Connection con) throws SQLException {
+            try (PreparedStatement update = con.prepareStatement(
+                    "UPDATE ImportCheckpoints SET Lines = ? WHERE Name = ?")) {
+                update.setLong(1, lines);
+                update.setString(2, name);
+                if (update.executeUpdate() > 0) {
+                    return;
+                }
+            }
+            try (PreparedStatement insert = con.prepareStatement("INSERT INTO ImportCheckpoints VALUES (?, ?)")) {
+                insert.setString(1, name);
+                insert.setLong(2, lines);
+                insert.executeUpdate();
+            }
+        }
+    }
+
+    private static class UserRecord {
+        private final String username;
+        private final byte[] salt;
+        private final byte[] hash;
+        private final int hashVersion;
+        private final int hashCost;
+
+        private UserRecord(String username, byte[] salt, byte[] hash, int hashVersion, int hashCost) {
+            this.username = username;
+            this.salt = salt;
+            this.hash = hash;
+            this.hashVersion = hashVersion;
+            this.hashCost = hashCost;
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package scheduler.model;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.InList;
+import scheduler.journal.Journal;
+import scheduler.journal.JournalEvent;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+// Cancels many appointments in one transaction: the rows are deleted with one batch and the doses go back with
+// one update per vaccine. Cancelling by id only finds the user's own appointments and puts every caregiver slot
+// they held back into Availabilities with one batch (unless the caregiver has uploaded that day again since);
+// cancelling a caregiver's day instead withdraws the slots they still had open on it, so nobody is booked there
+// again. Retried like a reservation.
+public class Cancellation {
+
+    private static final String GET_BY_DATE =
+            "SELECT Id, Time, cUser, vaxName FROM Appointments WHERE Time = ? AND cUser = ?";
+    private static final String GET_BY_IDS_FOR_PATIENT =
+            "SELECT Id, Time, cUser, vaxName FROM Appointments WHERE pUser = ? AND Id IN ";
+    private static final String GET_BY_IDS_FOR_CAREGIVER =
+            "SELECT Id, Time, cUser, vaxName FROM Appointments WHERE cUser = ? AND Id IN ";
+    private static final String DELETE = "DELETE FROM Appointments WHERE Id = ?";
+    private static final String ADD_DOSES = "UPDATE Vaccines SET Doses = Doses + ? WHERE Name = ?";
+    private static final String RESTORE_SLOT = "INSERT INTO Availabilities (Time, cUser) SELECT ?, ?"
+            + " WHERE NOT EXISTS (SELECT 1 FROM Availabilities WHERE Time = ? AND cUser = ?)";
+    private static final String WITHDRAW_SLOT = "DELETE FROM Availabilities WHERE Time = ? AND cUser = ?";
+
+    private static final int MAX_ATTEMPTS = 5;
+
+    // Cancel the patient's appointments with the given ids; ids with no appointment of theirs are reported,
+    // not an error, the same way whether the appointment is someone else's or does not exist
+    public static Result cancelForPatient(Collection<Integer> ids, String patient) throws SQLException {
+        return run(new ArrayList<>(new LinkedHashSet<>(ids)), GET_BY_IDS_FOR_PATIENT, null, patient);
+    }
+
+    // Cancel the caregiver's appointments with the given ids, reporting the others like cancelForPatient
+    public static Result cancelForCaregiver(Collection<Integer> ids, String caregiver) throws SQLException {
+        return run(new ArrayList<>(new LinkedHashSet<>(ids)), GET_BY_IDS_FOR_CAREGIVER, null, caregiver);
+    }
+
+    // Cancel every appointment the caregiver has on the given date and close their day
+    public static Result cancelDate(Date d, String caregiver) throws SQLException {
+        return run(null, null, d, caregiver);
+    }
+
+    private static Result run(List<Integer> ids, String byIds, Date d, String user) throws SQLException {
+        long start = System.nanoTime();
+        int attempt = 1;
+        while (true) {
+            try {
+                return attempt(ids, byIds, d, user, start);
+            } catch (SQLException e) {
+                if (attempt >= MAX_ATTEMPTS || !ReservationEngine.isRetryable(e)) {
+                    throw e;
+                }
+                attempt++;
+            }
+        }
+    }
+
+    private static Result attempt(List<Integer> ids, String byIds, Date d, String user, long start)
+            throws SQLException {
+        List<Row> cancelled = new ArrayList<>();
+        Map<String, Integer> doses = new TreeMap<>();
+        Set<Map.Entry<Date, String>> slots = new LinkedHashSet<>();
+        List<Map.Entry<Date, String>> restored = new ArrayList<>();
+        int withdrawn = 0;
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try {
+            con.setAutoCommit(false);
+            List<Row> rows = ids != null ? find(con, byIds, user, ids) : find(con, d, user);
+            // a row another session cancelled in the meantime deletes nothing and is left out
+            try (PreparedStatement statement = con.prepareStatement(DELETE)) {
+                for (Row row : rows) {
+                    statement.setInt(1, row.id);
+                    statement.addBatch();
+                }
+                int[] counts = statement.executeBatch();
+                for (int i = 0; i < rows.size(); i++) {
+                    if (counts[i] > 0) {
+                        cancelled.add(rows.get(i));
+                    }
+                }
+            }
+            for (Row row : cancelled) {
+                doses.merge(row.vaxName, 1, Integer::sum);
+                slots.add(new AbstractMap.SimpleImmutableEntry<>(row.time, row.cUser));
+            }
+            try (PreparedStatement statement = con.prepareStatement(ADD_DOSES)) {
+                for (Map.Entry<String, Integer> e : doses.entrySet()) {
+                    statement.setInt(1, e.getValue());
+                    statement.setString(2, e.getKey());
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+            if (ids == null) {
+                try (PreparedStatement statement = con.prepareStatement(WITHDRAW_SLOT)) {
+                    statement.setDate(1, d);
+                    statement.setString(2, user);
+                    withdrawn = statement.executeUpdate();
+                }
+            } else {
+                restored.addAll(restore(con, slots));
+            }
+            con.commit();
+        } catch (SQLException e) {
+            con.rollback();
+            throw e;
+        } finally {
+            cm.closeConnection();
+        }
+
+        VaccineInventory inventory = VaccineInventory.getInstance();
+        AvailabilityIndex index = AvailabilityIndex.getInstance();
+        List<JournalEvent> events = new ArrayList<>(cancelled.size() + restored.size() + 1);
+        for (Row row : cancelled) {
+            events.add(JournalEvent.cancelled(row.id, row.vaxName));
+        }
+        if (withdrawn > 0) {
+            index.removed(d, user);
+            events.add(JournalEvent.availabilityRemoved(d, user));
+        }
+        Set<Date> dates = new TreeSet<>();
+        for (Map.Entry<Date, String> slot : restored) {
+            index.added(slot.getKey(), slot.getValue());
+            events.add(JournalEvent.availabilityAdded(slot.getKey(), slot.getValue()));
+            dates.add(slot.getKey());
+        }
+        Journal.getInstance().record(events);
+        for (Map.Entry<String, Integer> e : doses.entrySet()) {
+            inventory.applied(e.getKey(), e.getValue());
+            Waitlist.getInstance().dosesAdded(e.getKey());
+        }
+        Waitlist.getInstance().slotsOpened(dates);
+
+        List<Integer> missing = new ArrayList<>();
+        if (ids != null) {
+            Set<Integer> found = new TreeSet<>();
+            for (Row row : cancelled) {
+                found.add(row.id);
+            }
+            for (int id : ids) {
+                if (!found.contains(id)) {
+                    missing.add(id);
+                }
+            }
+        }
+        return new Result(cancelled.size(), missing, doses, restored.size(), withdrawn, System.nanoTime() - start);
+    }
+
+    // Put the slots back, except those the caregiver has uploaded again; returns the ones put back
+    private static List<Map.Entry<Date, String>> restore(Connection con, Set<Map.Entry<Date, String>> slots)
+            throws SQLException {
+        List<Map.Entry<Date, String>> batch = new ArrayList<>(slots);
+        List<Map.Entry<Date, String>> restored = new ArrayList<>();
+        try (PreparedStatement statement = con.prepareStatement(RESTORE_SLOT)) {
+            for (Map.Entry<Date, String> slot : batch) {
+                statement.setDate(1, slot.getKey());
+                statement.setString(2, slot.getValue());
+                statement.setDate(3, slot.getKey());
+                statement.setString(4, slot.getValue());
+                statement.addBatch();
+            }
+            int[] counts = statement.executeBatch();
+            for (int i = 0; i < batch.size(); i++) {
+                if (counts[i] > 0) {
+                    restored.add(batch.get(i));
+                }
+            }
+        }
+        return restored;
+    }
+
+    private static List<Row> find(Connection con, String byIds, String owner, List<Integer> ids)
+            throws SQLException {
+        List<Row> rows = new ArrayList<>();
+        for (List<Integer> chunk : InList.chunks(ids)) {
+            try (PreparedStatement statement = con.prepareStatement(byIds + InList.placeholders(chunk.size()))) {
+                statement.setString(1, owner);
+                InList.bind(statement, 2, chunk);
+                read(statement, rows);
+            }
+        }
+        return rows;
+    }
+
+    private static List<Row> find(Connection con, Date d, String caregiver) throws SQLException {
+        List<Row> rows = new ArrayList<>();
+        try (PreparedStatement statement = con.prepareStatement(GET_BY_DATE)) {
+            statement.setDate(1, d);
+            statement.setString(2, caregiver);
+            read(statement, rows);
+        }
+        return rows;
+    }
+
+    private static void read(PreparedStatement statement, List<Row> rows) throws SQLException {
+        try (ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                rows.add(new Row(resultSet.getInt("Id"), resultSet.getDate("Time"), resultSet.getString("cUser"),
+                        resultSet.getString("vaxName")));
+            }
+        }
+    }
+
+    private static class Row {
+        private final int id;
+        private final Date time;
+        private final String cUser;
+        private final String vaxName;
+
+        private Row(int id, Date time, String cUser, String vaxName) {
+            this.id = id;
+            this.time = time;
+            this.cUser = cUser;
+            this.vaxName = vaxName;
+        }
+    }
+
+    public static class Result {
+        private final int cancelled;
+        private final List<Integer> missing;
+        private final Map<String, Integer> doses;
+        private final int restoredSlots;
+        private final int withdrawnSlots;
+        private final long elapsedNanos;
+
+        private Result(int cancelled, List<Integer> missing, Map<String, Integer> doses, int restoredSlots,
+                       int withdrawnSlots, long elapsedNanos) {
+            this.cancelled = cancelled;
+            this.missing = missing;
+            this.doses = doses;
+            this.restoredSlots = restoredSlots;
+            this.withdrawnSlots = withdrawnSlots;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        // Getters
+        public int getCancelled() {
+            return cancelled;
+        }
+
+        // requested ids that had no appointment
+        public List<Integer> getMissing() {
+            return missing;
+        }
+
+        // doses given back per vaccine
+        public Map<String, Integer> getDoses() {
+            return doses;
+        }
+
+        public int getRestoredSlots() {
+            return restoredSlots;
+        }
+
+        // open slots taken off the caregiver's closed day
+        public int getWithdrawnSlots() {
+            return withdrawnSlots;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+    }
+}
@@ -1,26 +1,38 @@
 package scheduler.model;
 
 import scheduler.db.ConnectionManager;
-import scheduler.util.Util;
+import scheduler.journal.Journal;
+import scheduler.journal.JournalEvent;
+import scheduler.util.PasswordHasher;
 
 import java.sql.*;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.RejectedExecutionException;
 
 public class Caregiver {
     private final String username;
     private final byte[] salt;
     private final byte[] hash;
+    // how hash was computed, see PasswordHasher
+    private final int hashVersion;
+    private final int hashCost;
 
     private Caregiver(CaregiverBuilder builder) {
         this.username = builder.username;
         this.salt = builder.salt;
         this.hash = builder.hash;
+        this.hashVersion = builder.hashVersion;
+        this.hashCost = builder.hashCost;
     }
 
     private Caregiver(CaregiverGetter getter) {
         this.username = getter.username;
         this.salt = getter.salt;
         this.hash = getter.hash;
+        this.hashVersion = getter.hashVersion;
+        this.hashCost = getter.hashCost;
     }
 
     // Getters
@@ -36,50 +48,148 @@ public class Caregiver {
         return hash;
     }
 
+    public int getHashVersion() {
+        return hashVersion;
+    }
+
+    public int getHashCost() {
+        return hashCost;
+    }
+
     public void saveToDB() throws SQLException {
         ConnectionManager cm = new ConnectionManager();
         Connection con = cm.createConnection();
 
-        String addCaregiver = "INSERT INTO Caregivers VALUES (? , ?, ?)";
-        try {
-            PreparedStatement statement = con.prepareStatement(addCaregiver);
+        String addCaregiver = "INSERT INTO Caregivers (Username, Salt, Hash, HashVersion, HashCost) VALUES (?, ?, ?, ?, ?)";
+        try (PreparedStatement statement = con.prepareStatement(addCaregiver)) {
             statement.setString(1, this.username);
             statement.setBytes(2, this.salt);
             statement.setBytes(3, this.hash);
+            statement.setInt(4, this.hashVersion);
+            statement.setInt(5, this.hashCost);
             statement.executeUpdate();
+            UsernameFilter.caregivers().added(this.username);
         } catch (SQLException e) {
-            throw new SQLException();
+            // keep the SQLState so that callers can tell a taken username from other failures
+            throw new SQLException(e.getMessage(), e.getSQLState(), e);
         } finally {
             cm.closeConnection();
         }
     }
 
-    public void uploadAvailability(Date d) throws SQLException {
+    // Returns false if this caregiver had already uploaded the date; the slot is unique per (Time, cUser)
+    public boolean uploadAvailability(Date d) throws SQLException {
+        return uploadAvailability(List.of(d)).getInserted() == 1;
+    }
+
+    // Insert many slots as one JDBC batch in one transaction. Dates this caregiver already has,
+    // or that appear twice in the list, are skipped and counted as duplicates.
+    public UploadResult uploadAvailability(List<Date> dates) throws SQLException {
+        long start = System.nanoTime();
+        TreeSet<Date> wanted = new TreeSet<>(dates);
+        int duplicates = dates.size() - wanted.size();
+        if (wanted.isEmpty()) {
+            return new UploadResult(0, duplicates, System.nanoTime() - start);
+        }
+
         ConnectionManager cm = new ConnectionManager();
         Connection con = cm.createConnection();
 
+        String getExisting = "SELECT Time FROM Availabilities WHERE cUser = ? AND Time BETWEEN ? AND ?";
         String addAvailability = "INSERT INTO Availabilities VALUES (? , ?)";
+        List<Date> inserted = new ArrayList<>();
         try {
-            PreparedStatement statement = con.prepareStatement(addAvailability);
-            statement.setDate(1, d);
-            statement.setString(2, this.username);
-            statement.executeUpdate();
+            con.setAutoCommit(false);
+            try (PreparedStatement statement = con.prepareStatement(getExisting)) {
+                statement.setString(1, this.username);
+                statement.setDate(2, wanted.first());
+                statement.setDate(3, wanted.last());
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        if (wanted.remove(resultSet.getDate("Time"))) {
+                            duplicates++;
+                        }
+                    }
+                }
+            }
+            try (PreparedStatement statement = con.prepareStatement(addAvailability)) {
+                for (Date d : wanted) {
+                    statement.setDate(1, d);
+                    statement.setString(2, this.username);
+                    statement.addBatch();
+                    inserted.add(d);
+                }
+                statement.executeBatch();
+            }
+            con.commit();
         } catch (SQLException e) {
-            throw new SQLException();
+            con.rollback();
+            // keep the SQLState so that callers can tell a conflicting upload from other failures
+            throw new SQLException(e.getMessage(), e.getSQLState(), e);
         } finally {
             cm.closeConnection();
         }
+        AvailabilityIndex index = AvailabilityIndex.getInstance();
+        List<JournalEvent> events = new ArrayList<>(inserted.size());
+        for (Date d : inserted) {
+            index.added(d, this.username);
+            events.add(JournalEvent.availabilityAdded(d, this.username));
+        }
+        Journal.getInstance().record(events);
+        return new UploadResult(inserted.size(), duplicates, System.nanoTime() - start);
+    }
+
+    public static class UploadResult {
+        private final int inserted;
+        private final int duplicates;
+        private final long elapsedNanos;
+
+        private UploadResult(int inserted, int duplicates, long elapsedNanos) {
+            this.inserted = inserted;
+            this.duplicates = duplicates;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        // Getters
+        public int getInserted() {
+            return inserted;
+        }
+
+        public int getDuplicates() {
+            return duplicates;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        public double getRowsPerSecond() {
+            return elapsedNanos == 0 ? 0 : inserted * 1_000_000_000.0 / elapsedNanos;
+        }
     }
 
     public static class CaregiverBuilder {
         private final String username;
         private final byte[] salt;
         private final byte[] hash;
+        private final int hashVersion;
+        private final int hashCost;
 
+        // a hash made by Util.generateHash
         public CaregiverBuilder(String username, byte[] salt, byte[] hash) {
+            this(username, salt, hash, PasswordHasher.LEGACY_VERSION, PasswordHasher.LEGACY_COST);
+        }
+
+        public CaregiverBuilder(String username, PasswordHasher.Hashed hashed) {
+            this(username, hashed.getSalt(), hashed.getHash(), hashed.getVersion(), hashed.getCost());
+        }
+
+        public CaregiverBuilder(String username, byte[] salt, byte[] hash, int hashVersion, int hashCost) {
             this.username = username;
             this.salt = salt;
             this.hash = hash;
+            this.hashVersion = hashVersion;
+            this.hashCost = hashCost;
         }
 
         public Caregiver build() {
@@ -92,6 +202,8 @@ public class Caregiver {
         private final String password;
         private byte[] salt;
         private byte[] hash;
+        private int hashVersion;
+        private int hashCost;
 
         public CaregiverGetter(String username, String password) {
             this.username = username;
@@ -100,31 +212,64 @@ public class Caregiver {
 
         public Caregiver get() throws SQLException {
             ConnectionManager cm = new ConnectionManager();
-            Connection con = cm.createConnection();
+            Connection con = cm.createReadConnection();
 
-            String getCaregiver = "SELECT Salt, Hash FROM Caregivers WHERE Username = ?";
-            try {
-                PreparedStatement statement = con.prepareStatement(getCaregiver);
+            String getCaregiver = "SELECT Salt, Hash, HashVersion, HashCost FROM Caregivers WHERE Username = ?";
+            try (PreparedStatement statement = con.prepareStatement(getCaregiver)) {
                 statement.setString(1, this.username);
                 ResultSet resultSet = statement.executeQuery();
-                while (resultSet.next()) {
-                    byte[] salt = resultSet.getBytes("Salt");
-                    // we need to call Util.trim() to get rid of the paddings,
-                    // try to remove the use of Util.trim() and you'll see :)
-                    byte[] hash = Util.trim(resultSet.getBytes("Hash"));
-                    // check if the password matches
-                    byte[] calculatedHash = Util.generateHash(password, salt);
-                    if (!Arrays.equals(hash, calculatedHash)) {
-                        return null;
-                    } else {
-                        this.salt = salt;
-                        this.hash = hash;
-                        return new Caregiver(this);
-                    }
+                if (!resultSet.next()) {
+                    return null;
                 }
-                return null;
+                this.salt = resultSet.getBytes("Salt");
+                this.hash = resultSet.getBytes("Hash");
+                this.hashVersion = resultSet.getInt("HashVersion");
+                this.hashCost = resultSet.getInt("HashCost");
             } catch (SQLException e) {
                 throw new SQLException();
+            } finally {
+                // give the connection back before the slow part
+                cm.closeConnection();
+            }
+            // check if the password matches
+            PasswordHasher hasher = PasswordHasher.getInstance();
+            if (!hasher.verify(password, salt, hash, hashVersion, hashCost)) {
+                return null;
+            }
+            if (hasher.needsUpgrade(hashVersion, hashCost)) {
+                upgrade(hasher);
+            }
+            return new Caregiver(this);
+        }
+
+        // Rehash with the current algorithm and cost now that we know the password; a failure here
+        // does not fail the login, the row is simply upgraded on a later one
+        private void upgrade(PasswordHasher hasher) {
+            ConnectionManager cm = new ConnectionManager();
+            try {
+                PasswordHasher.Hashed hashed = hasher.hash(password);
+                Connection con = cm.createConnection();
+                // only if nobody else upgraded the row in the meantime
+                String upgradeHash = "UPDATE Caregivers SET Salt = ?, Hash = ?, HashVersion = ?, HashCost = ?"
+                        + " WHERE Username = ? AND HashVersion = ? AND HashCost = ?";
+                try (PreparedStatement statement = con.prepareStatement(upgradeHash)) {
+                    statement.setBytes(1, hashed.getSalt());
+                    statement.setBytes(2, hashed.getHash());
+                    statement.setInt(3, hashed.getVersion());
+                    statement.setInt(4, hashed.getCost());
+                    statement.setString(5, this.username);
+                    statement.setInt(6, this.hashVersion);
+                    statement.setInt(7, this.hashCost);
+                    if (statement.executeUpdate() == 1) {
+                        this.salt = hashed.getSalt();
+                        this.hash = hashed.getHash();
+                        this.hashVersion = hashed.getVersion();
+                        this.hashCost = hashed.getCost();
+                        hasher.recordUpgrade();
+                    }
+                }
+            } catch (SQLException | RejectedExecutionException e) {
+                System.out.println("Could not upgrade the password hash of " + username);
             } finally {
                 cm.closeConnection();
             }
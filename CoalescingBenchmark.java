@@ -0,0 +1,148 @@
+package scheduler.bench;
+
+import scheduler.Scheduler;
+import scheduler.db.ConnectionManager;
+import scheduler.db.ReadCoalescer;
+import scheduler.db.SchemaMigrator;
+import scheduler.metrics.LatencyHistogram;
+import scheduler.util.PasswordHasher;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Many sessions searching the same few dates at once, to see how many database reads the coalescing saves:
+//   scheduler bench-coalesce [--sessions n] [--dates n] [--caregivers n] [--measure ms]
+// Every session runs search_caregiver_schedule on one of dates popular days back to back. Run it with a short
+// AvailabilityIndexTtlMs and VaccineCacheTtlMs (or 0) so that the caches keep expiring under the burst; the
+// report shows, per coalescer, the cache misses that asked for a read and the queries actually issued.
+public class CoalescingBenchmark {
+
+    private static final String PASSWORD = "bench_pw";
+
+    private final int sessions;
+    private final int dates;
+    private final long measureMillis;
+    private final DataGenerator generator;
+    private final PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+
+    public CoalescingBenchmark(Map<String, String> options) {
+        this.sessions = intOption(options, "sessions", 64);
+        this.dates = intOption(options, "dates", 3);
+        this.measureMillis = intOption(options, "measure", 5_000);
+        this.generator = new DataGenerator(intOption(options, "caregivers", 200), 1, Math.max(dates, 1), 0);
+    }
+
+    public static void main(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+        }
+        try {
+            new CoalescingBenchmark(options).run();
+        } catch (SQLException | InterruptedException e) {
+            System.out.println("Error occurred when running the coalescing benchmark");
+            e.printStackTrace();
+        } finally {
+            ConnectionManager.shutdown();
+        }
+    }
+
+    public void run() throws SQLException, InterruptedException {
+        setUp();
+        List<Scheduler> clients = new ArrayList<>();
+        for (int i = 0; i < sessions; i++) {
+            Scheduler s = new Scheduler(null, discard, null);
+            s.execute(new String[]{"login_patient", DataGenerator.patient(0), PASSWORD});
+            clients.add(s);
+        }
+
+        List<ReadCoalescer<?, ?>> coalescers = ReadCoalescer.all();
+        long[] requests = new long[coalescers.size()];
+        long[] loads = new long[coalescers.size()];
+        for (int i = 0; i < coalescers.size(); i++) {
+            requests[i] = coalescers.get(i).getRequests();
+            loads[i] = coalescers.get(i).getLoads();
+        }
+
+        LatencyHistogram latency = new LatencyHistogram();
+        ExecutorService pool = Executors.newFixedThreadPool(sessions);
+        long start = System.nanoTime();
+        long end = start + measureMillis * 1_000_000;
+        try {
+            List<Future<?>> running = new ArrayList<>();
+            for (Scheduler client : clients) {
+                running.add(pool.submit(() -> {
+                    while (System.nanoTime() < end) {
+                        String day = DataGenerator.day(ThreadLocalRandom.current().nextInt(dates)).toString();
+                        long begin = System.nanoTime();
+                        client.execute(new String[]{"search_caregiver_schedule", day});
+                        latency.record(System.nanoTime() - begin);
+                    }
+                }));
+            }
+            for (Future<?> f : running) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    e.printStackTrace();
+                }
+            }
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("%d sessions on %d dates: %.1f searches/s, p50 %.3f ms, p99 %.3f ms%n", sessions, dates,
+                latency.count() / Math.max(seconds, 1e-9), latency.percentile(50) / 1e6,
+                latency.percentile(99) / 1e6);
+        System.out.printf("%-20s %10s %10s %8s%n", "reads", "requests", "queries", "ratio");
+        for (int i = 0; i < coalescers.size(); i++) {
+            long r = coalescers.get(i).getRequests() - requests[i];
+            long l = coalescers.get(i).getLoads() - loads[i];
+            System.out.printf("%-20s %10d %10d %8.1f%n", coalescers.get(i).getName(), r, l,
+                    l == 0 ? 1.0 : (double) r / l);
+        }
+    }
+
+    private void setUp() throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try {
+            SchemaMigrator.migrate(con, SchemaMigrator.latestVersion());
+            generator.load(con);
+            // the one patient every session logs in as
+            PasswordHasher.Hashed hashed = PasswordHasher.getInstance().hash(PASSWORD);
+            try (PreparedStatement statement = con.prepareStatement(
+                    "UPDATE Patients SET Salt = ?, Hash = ?, HashVersion = ?, HashCost = ? WHERE Username = ?")) {
+                statement.setBytes(1, hashed.getSalt());
+                statement.setBytes(2, hashed.getHash());
+                statement.setInt(3, hashed.getVersion());
+                statement.setInt(4, hashed.getCost());
+                statement.setString(5, DataGenerator.patient(0));
+                statement.executeUpdate();
+            }
+        } finally {
+            cm.closeConnection();
+        }
+        Scheduler.loadCaches();
+    }
+
+    private static int intOption(Map<String, String> options, String name, int defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+}
@@ -0,0 +1,117 @@
+package scheduler.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Per-command counters for everything dispatched by Scheduler.execute: how often it ran, how often it failed,
+// its latency, and what it cost in the database (connections borrowed, statements executed, rows read and
+// time spent inside JDBC calls). The database side is collected by InstrumentedJdbc for whatever command is
+// running on the current thread; work done on background threads is counted under "background".
+public class CommandMetrics {
+
+    public static final String BACKGROUND = "background";
+
+    private static final CommandMetrics INSTANCE = new CommandMetrics();
+
+    private final ConcurrentHashMap<String, Stats> commands = new ConcurrentHashMap<>();
+    private final ThreadLocal<Scope> current = new ThreadLocal<>();
+
+    public static CommandMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    // Start timing a command on this thread; pair with Scope.close()
+    public Scope begin(String command) {
+        Scope scope = new Scope(this, stats(command), current.get());
+        current.set(scope);
+        return scope;
+    }
+
+    public Stats stats(String command) {
+        return commands.computeIfAbsent(command, k -> new Stats());
+    }
+
+    // Stats of the command running on this thread
+    Stats currentStats() {
+        Scope scope = current.get();
+        return scope != null ? scope.stats : stats(BACKGROUND);
+    }
+
+    // A snapshot of every command seen so far, in name order
+    public Map<String, Stats> snapshot() {
+        return new TreeMap<>(commands);
+    }
+
+    public static class Scope implements AutoCloseable {
+        private final CommandMetrics owner;
+        private final Stats stats;
+        private final Scope outer;
+        private final long start = System.nanoTime();
+        private boolean failed = false;
+
+        private Scope(CommandMetrics owner, Stats stats, Scope outer) {
+            this.owner = owner;
+            this.stats = stats;
+            this.outer = outer;
+        }
+
+        public void fail() {
+            failed = true;
+        }
+
+        @Override
+        public void close() {
+            stats.latency.record(System.nanoTime() - start);
+            stats.count.incrementAndGet();
+            if (failed) {
+                stats.errors.incrementAndGet();
+            }
+            if (outer == null) {
+                owner.current.remove();
+            } else {
+                owner.current.set(outer);
+            }
+        }
+    }
+
+    public static class Stats {
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicLong connections = new AtomicLong();
+        final AtomicLong statements = new AtomicLong();
+        final AtomicLong rowsRead = new AtomicLong();
+        final AtomicLong jdbcNanos = new AtomicLong();
+
+        // Getters
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getErrors() {
+            return errors.get();
+        }
+
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+
+        public long getConnections() {
+            return connections.get();
+        }
+
+        public long getStatements() {
+            return statements.get();
+        }
+
+        public long getRowsRead() {
+            return rowsRead.get();
+        }
+
+        public long getJdbcNanos() {
+            return jdbcNanos.get();
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package scheduler.db;
+
+import scheduler.metrics.InstrumentedJdbc;
+import scheduler.util.Env;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+
+public class ConnectionManager {
+
+    // DBBackend selects where connections go: the remote SQL Server (default) or an embedded
+    // in-process H2 database in SQL Server compatibility mode, see EmbeddedDatabase
+    public enum Backend {
+        SQLSERVER, H2
+    }
+
+    private static final Backend backend = backendFromEnv();
+
+    private static final String driverName = "com.microsoft.sqlserver.jdbc.SQLServerDriver";
+    private static final String serverName = System.getenv("Server");
+    private static final String dbName = System.getenv("DBName");
+    private static final String userID = System.getenv("UserID");
+    private static final String password = System.getenv("Password");
+    private static final String connectionUrl = sqlServerUrl(serverName);
+
+    // one pool shared by every ConnectionManager in the process, created on first use
+    private static ConnectionPool pool = null;
+    // read replica, set up together with the pool when ReplicaServer (SQL Server) or H2ReplicaUrl (H2) is set
+    private static volatile ReplicaRouter router = null;
+    private static ReplicationStandIn standIn = null;
+
+    // the pooled connection goes back to the pool it came from, callers only see the instrumented wrapper
+    private Connection pooled = null;
+    private Connection con = null;
+    private ConnectionPool source = null;
+    private boolean readOnly = false;
+
+    public ConnectionManager() {
+    }
+
+    // Borrow a connection from the shared pool; callers still pair this with closeConnection(). Fails when no
+    // connection can be had within the pool's wait timeout, the pool is closed or the database cannot be reached.
+    public Connection createConnection() throws SQLException {
+        return borrow(getPool(), false);
+    }
+
+    // Borrow a connection for read-only queries: from the replica while it is within the lag bound and has the
+    // writes of the session running on this thread (see ReplicaRouter), from the primary otherwise
+    public Connection createReadConnection() throws SQLException {
+        return createReadConnection(false);
+    }
+
+    // The same for results kept in caches shared by every session, which must not miss any write of this process
+    public Connection createCacheReadConnection() throws SQLException {
+        return createReadConnection(true);
+    }
+
+    private Connection createReadConnection(boolean processWide) throws SQLException {
+        ConnectionPool primary = getPool();
+        ReplicaRouter replica = router;
+        return borrow(replica != null && replica.useReplica(processWide) ? replica.getReplica() : primary, true);
+    }
+
+    private Connection borrow(ConnectionPool from, boolean readOnly) throws SQLException {
+        source = from;
+        this.readOnly = readOnly;
+        pooled = from.borrow();
+        con = InstrumentedJdbc.wrap(pooled);
+        return con;
+    }
+
+    // Hand the connection back to the pool instead of closing the physical connection
+    public void closeConnection() {
+        (source != null ? source : getPool()).release(pooled);
+        ReplicaRouter replica = router;
+        if (pooled != null && !readOnly && replica != null) {
+            // anything done on the primary may have been a write the session expects to read back
+            replica.wrote();
+        }
+        pooled = null;
+        con = null;
+        source = null;
+    }
+
+    public static ConnectionPool.PoolStats getPoolStats() {
+        return getPool().getStats();
+    }
+
+    // The replica router, or null when no replica is configured
+    public static synchronized ReplicaRouter getReplicaRouter() {
+        getPool();
+        return router;
+    }
+
+    // The replication stand-in of the embedded backend, or null when it is not running
+    public static synchronized ReplicationStandIn getReplicationStandIn() {
+        getPool();
+        return standIn;
+    }
+
+    public static synchronized void shutdown() {
+        if (standIn != null) {
+            standIn.shutdown();
+            standIn = null;
+        }
+        if (router != null) {
+            router.shutdown();
+            router = null;
+        }
+        if (pool != null) {
+            pool.close();
+            pool = null;
+        }
+    }
+
+    public static Backend getBackend() {
+        return backend;
+    }
+
+    private static synchronized ConnectionPool getPool() {
+        if (pool == null) {
+            ConnectionPool.ConnectionFactory factory;
+            ConnectionPool.ConnectionFactory replicaFactory = null;
+            if (backend == Backend.H2) {
+                EmbeddedDatabase embedded = EmbeddedDatabase.fromEnv();
+                factory = embedded::connect;
+                EmbeddedDatabase replica = EmbeddedDatabase.replicaFromEnv();
+                if (replica != null) {
+                    replicaFactory = replica::connect;
+                    standIn = new ReplicationStandIn(factory, replicaFactory, Env.getInt("ReplicaSyncMs", 500));
+                }
+            } else {
+                try {
+                    Class.forName(driverName);
+                } catch (ClassNotFoundException e) {
+                    System.out.println(e.toString());
+                }
+                factory = () -> DriverManager.getConnection(connectionUrl);
+                String replicaServer = System.getenv("ReplicaServer");
+                if (replicaServer != null && !replicaServer.isEmpty()) {
+                    // a readable secondary, which may well be the primary's own server name
+                    String replicaUrl = sqlServerUrl(replicaServer) + "applicationIntent=ReadOnly;";
+                    replicaFactory = () -> DriverManager.getConnection(replicaUrl);
+                }
+            }
+            int maxSize = Env.getInt("PoolMaxSize", 10);
+            pool = poolBuilder(factory, maxSize).build();
+            if (replicaFactory != null) {
+                ConnectionPool replicaPool = poolBuilder(replicaFactory, Env.getInt("ReplicaPoolMaxSize", maxSize))
+                        .build();
+                router = new ReplicaRouter(factory, replicaPool, Env.getInt("ReplicaMaxLagMs", 2_000),
+                        Env.getInt("ReplicaHeartbeatMs", 250), Env.getInt("ReplicaCheckMs", 100));
+            }
+        }
+        return pool;
+    }
+
+    private static ConnectionPool.PoolBuilder poolBuilder(ConnectionPool.ConnectionFactory factory, int maxSize) {
+        return new ConnectionPool.PoolBuilder(factory)
+                .minSize(Env.getInt("PoolMinSize", 1))
+                .maxSize(maxSize)
+                .idleTimeoutMillis(Env.getInt("PoolIdleTimeoutMs", 60_000))
+                .waitTimeoutMillis(Env.getInt("PoolWaitTimeoutMs", 30_000))
+                .validationTimeoutSeconds(Env.getInt("PoolValidationTimeoutSec", 5))
+                .statementCacheSize(Env.getInt("PoolStatementCacheSize", 64));
+    }
+
+    private static String sqlServerUrl(String server) {
+        return "jdbc:sqlserver://" + server + ".database.windows.net:1433;"
+                + "database=" + dbName + ";user=" + userID + "@" + server + ";password=" + password
+                + ";encrypt=true;trustServerCertificate=false;hostNameInCertificate=*.database.windows.net;loginTimeout=30;";
+    }
+
+    private static Backend backendFromEnv() {
+        String value = System.getenv("DBBackend");
+        if (value == null || value.isEmpty()) {
+            return Backend.SQLSERVER;
+        }
+        try {
+            return Backend.valueOf(value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.out.println("Ignoring invalid value for DBBackend: " + value);
+            return Backend.SQLSERVER;
+        }
+    }
+}
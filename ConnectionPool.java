@@ -0,0 +1,421 @@
+package scheduler.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class ConnectionPool {
+
+    // creates a new physical connection, e.g. DriverManager.getConnection(url)
+    public interface ConnectionFactory {
+        Connection create() throws SQLException;
+    }
+
+    private final ConnectionFactory factory;
+    private final int minSize;
+    private final int maxSize;
+    private final long idleTimeoutMillis;
+    private final long waitTimeoutMillis;
+    private final int validationTimeoutSeconds;
+    private final int statementCacheSize;
+
+    // idle connections, most recently returned at the head
+    private final ArrayDeque<IdleConnection> idle = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private final ScheduledExecutorService evictor;
+
+    // all counters are guarded by lock
+    private int open = 0;
+    private int borrowed = 0;
+    private int waiting = 0;
+    private long created = 0;
+    private long evicted = 0;
+    private long timeouts = 0;
+    private boolean closed = false;
+
+    private ConnectionPool(PoolBuilder builder) {
+        this.factory = builder.factory;
+        this.minSize = builder.minSize;
+        this.maxSize = builder.maxSize;
+        this.idleTimeoutMillis = builder.idleTimeoutMillis;
+        this.waitTimeoutMillis = builder.waitTimeoutMillis;
+        this.validationTimeoutSeconds = builder.validationTimeoutSeconds;
+        this.statementCacheSize = builder.statementCacheSize;
+
+        this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "connection-pool-evictor");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1000, idleTimeoutMillis / 2);
+        // opens the first minSize connections right away, then tops them up after every eviction round
+        this.evictor.scheduleWithFixedDelay(() -> {
+            evictIdle();
+            fill();
+        }, 0, period, TimeUnit.MILLISECONDS);
+    }
+
+    // Borrow a connection, waiting at most waitTimeoutMillis for one to become free
+    public Connection borrow() throws SQLException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitTimeoutMillis);
+        while (true) {
+            IdleConnection candidate = null;
+            boolean mayCreate = false;
+            lock.lock();
+            try {
+                while (!closed && idle.isEmpty() && open >= maxSize) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        timeouts++;
+                        throw new SQLException("Timed out after " + waitTimeoutMillis
+                                + " ms waiting for a database connection");
+                    }
+                    waiting++;
+                    try {
+                        available.awaitNanos(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException("Interrupted while waiting for a database connection");
+                    } finally {
+                        waiting--;
+                    }
+                }
+                if (closed) {
+                    throw new SQLException("Connection pool is closed");
+                }
+                if (!idle.isEmpty()) {
+                    candidate = idle.pollFirst();
+                } else {
+                    // reserve the slot before connecting so that the pool never exceeds maxSize
+                    open++;
+                    mayCreate = true;
+                }
+                borrowed++;
+            } finally {
+                lock.unlock();
+            }
+
+            if (mayCreate) {
+                try {
+                    Connection con = factory.create();
+                    if (statementCacheSize > 0) {
+                        con = StatementCache.wrap(con, statementCacheSize);
+                    }
+                    lock.lock();
+                    try {
+                        created++;
+                    } finally {
+                        lock.unlock();
+                    }
+                    return con;
+                } catch (SQLException | RuntimeException e) {
+                    discard(null, false);
+                    throw e;
+                }
+            }
+            // validation-on-borrow: a stale connection is dropped and we try again
+            if (isValid(candidate.connection)) {
+                return candidate.connection;
+            }
+            discard(candidate.connection, true);
+        }
+    }
+
+    // Return a borrowed connection to the pool
+    public void release(Connection con) {
+        if (con == null) {
+            return;
+        }
+        boolean reusable;
+        try {
+            // counted in StatementCache.getLeaked
+            StatementCache.reclaim(con);
+            reusable = !con.isClosed();
+            if (reusable && !con.getAutoCommit()) {
+                // never hand out a connection with someone else's open transaction
+                con.rollback();
+                con.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            reusable = false;
+        }
+        lock.lock();
+        try {
+            if (reusable && !closed) {
+                borrowed--;
+                idle.addFirst(new IdleConnection(con, System.currentTimeMillis()));
+                available.signal();
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        discard(con, false);
+    }
+
+    public PoolStats getStats() {
+        lock.lock();
+        try {
+            return new PoolStats(open, idle.size(), borrowed, waiting, created, evicted, timeouts);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void close() {
+        evictor.shutdownNow();
+        lock.lock();
+        try {
+            closed = true;
+            for (IdleConnection c : idle) {
+                closeQuietly(c.connection);
+                open--;
+            }
+            idle.clear();
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isValid(Connection con) {
+        try {
+            return con.isValid(validationTimeoutSeconds);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    // Drop a borrowed connection (or a failed creation attempt) and free its slot
+    private void discard(Connection con, boolean evict) {
+        closeQuietly(con);
+        lock.lock();
+        try {
+            open--;
+            borrowed--;
+            if (evict) {
+                evicted++;
+            }
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Close connections that have been idle for too long, but keep at least minSize open
+    private void evictIdle() {
+        long cutoff = System.currentTimeMillis() - idleTimeoutMillis;
+        ArrayDeque<Connection> expired = new ArrayDeque<>();
+        lock.lock();
+        try {
+            // the oldest idle connections are at the tail
+            Iterator<IdleConnection> it = idle.descendingIterator();
+            while (it.hasNext() && open > minSize) {
+                IdleConnection c = it.next();
+                if (c.idleSince > cutoff) {
+                    break;
+                }
+                it.remove();
+                open--;
+                evicted++;
+                expired.add(c.connection);
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Connection con : expired) {
+            closeQuietly(con);
+        }
+    }
+
+    // Open idle connections until minSize are open, so that borrows after startup or after broken connections
+    // were dropped do not wait for a connect
+    private void fill() {
+        while (true) {
+            lock.lock();
+            try {
+                if (closed || open >= minSize) {
+                    return;
+                }
+                open++;
+            } finally {
+                lock.unlock();
+            }
+            Connection con;
+            try {
+                con = factory.create();
+                if (statementCacheSize > 0) {
+                    con = StatementCache.wrap(con, statementCacheSize);
+                }
+            } catch (SQLException | RuntimeException e) {
+                // unreachable for now: borrow reports it, the next round tries again
+                lock.lock();
+                try {
+                    open--;
+                } finally {
+                    lock.unlock();
+                }
+                return;
+            }
+            lock.lock();
+            try {
+                if (!closed) {
+                    created++;
+                    idle.addFirst(new IdleConnection(con, System.currentTimeMillis()));
+                    available.signal();
+                    continue;
+                }
+                open--;
+            } finally {
+                lock.unlock();
+            }
+            closeQuietly(con);
+            return;
+        }
+    }
+
+    private static void closeQuietly(Connection con) {
+        if (con == null) {
+            return;
+        }
+        try {
+            con.close();
+        } catch (SQLException e) {
+            System.out.println("Error while closing connection");
+        }
+    }
+
+    private static class IdleConnection {
+        private final Connection connection;
+        private final long idleSince;
+
+        private IdleConnection(Connection connection, long idleSince) {
+            this.connection = connection;
+            this.idleSince = idleSince;
+        }
+    }
+
+    public static class PoolStats {
+        private final int open;
+        private final int idle;
+        private final int borrowed;
+        private final int waiting;
+        private final long created;
+        private final long evicted;
+        private final long timeouts;
+
+        private PoolStats(int open, int idle, int borrowed, int waiting, long created, long evicted, long timeouts) {
+            this.open = open;
+            this.idle = idle;
+            this.borrowed = borrowed;
+            this.waiting = waiting;
+            this.created = created;
+            this.evicted = evicted;
+            this.timeouts = timeouts;
+        }
+
+        // Getters
+        public int getOpen() {
+            return open;
+        }
+
+        public int getIdle() {
+            return idle;
+        }
+
+        public int getBorrowed() {
+            return borrowed;
+        }
+
+        public int getWaiting() {
+            return waiting;
+        }
+
+        public long getCreated() {
+            return created;
+        }
+
+        public long getEvicted() {
+            return evicted;
+        }
+
+        public long getTimeouts() {
+            return timeouts;
+        }
+
+        @Override
+        public String toString() {
+            return "PoolStats{" +
+                    "open=" + open +
+                    ", idle=" + idle +
+                    ", borrowed=" + borrowed +
+                    ", waiting=" + waiting +
+                    ", created=" + created +
+                    ", evicted=" + evicted +
+                    ", timeouts=" + timeouts +
+                    '}';
+        }
+    }
+
+    public static class PoolBuilder {
+        private final ConnectionFactory factory;
+        private int minSize = 1;
+        private int maxSize = 10;
+        private long idleTimeoutMillis = 60_000;
+        private long waitTimeoutMillis = 30_000;
+        private int validationTimeoutSeconds = 5;
+        private int statementCacheSize = 64;
+
+        public PoolBuilder(ConnectionFactory factory) {
+            this.factory = factory;
+        }
+
+        public PoolBuilder minSize(int minSize) {
+            this.minSize = minSize;
+            return this;
+        }
+
+        public PoolBuilder maxSize(int maxSize) {
+            this.maxSize = maxSize;
+            return this;
+        }
+
+        public PoolBuilder idleTimeoutMillis(long idleTimeoutMillis) {
+            this.idleTimeoutMillis = idleTimeoutMillis;
+            return this;
+        }
+
+        public PoolBuilder waitTimeoutMillis(long waitTimeoutMillis) {
+            this.waitTimeoutMillis = waitTimeoutMillis;
+            return this;
+        }
+
+        public PoolBuilder validationTimeoutSeconds(int validationTimeoutSeconds) {
+            this.validationTimeoutSeconds = validationTimeoutSeconds;
+            return this;
+        }
+
+        // prepared statements kept open per connection, 0 turns the cache off
+        public PoolBuilder statementCacheSize(int statementCacheSize) {
+            this.statementCacheSize = statementCacheSize;
+            return this;
+        }
+
+        public ConnectionPool build() {
+            if (maxSize <= 0 || minSize < 0 || minSize > maxSize) {
+                throw new IllegalArgumentException("Invalid pool size: min=" + minSize + ", max=" + maxSize);
+            }
+            if (statementCacheSize < 0) {
+                throw new IllegalArgumentException("Invalid statement cache size: " + statementCacheSize);
+            }
+            return new ConnectionPool(this);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package scheduler.bench;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.Random;
+
+// Fills the scheduler tables with synthetic rows for benchmarks: caregivers bench_c<i> free on every one of
+// the generated days, patients bench_p<i>, and appointments spread at random over both.
+// Users get all-zero salts and hashes, so they cannot log in.
+public class DataGenerator {
+
+    public static final String VACCINE = "benchvax";
+    public static final LocalDate FIRST_DAY = LocalDate.of(2030, 1, 1);
+
+    private static final int BATCH = 10_000;
+
+    private final int caregivers;
+    private final int patients;
+    private final int days;
+    private final int appointments;
+    private final Random random = new Random(42);
+
+    public DataGenerator(int caregivers, int patients, int days, int appointments) {
+        this.caregivers = caregivers;
+        this.patients = patients;
+        this.days = days;
+        this.appointments = appointments;
+    }
+
+    public void load(Connection con) throws SQLException {
+        boolean autoCommit = con.getAutoCommit();
+        con.setAutoCommit(false);
+        try {
+            batchInsert(con, "INSERT INTO Vaccines VALUES (?, ?)", 1, (statement, i) -> {
+                statement.setString(1, VACCINE);
+                statement.setInt(2, Integer.MAX_VALUE / 2);
+            });
+            byte[] zeros = new byte[16];
+            batchInsert(con, "INSERT INTO Caregivers (Username, Salt, Hash) VALUES (?, ?, ?)", caregivers, (statement, i) -> {
+                statement.setString(1, caregiver(i));
+                statement.setBytes(2, zeros);
+                statement.setBytes(3, zeros);
+            });
+            batchInsert(con, "INSERT INTO Patients (Username, Salt, Hash) VALUES (?, ?, ?)", patients, (statement, i) -> {
+                statement.setString(1, patient(i));
+                statement.setBytes(2, zeros);
+                statement.setBytes(3, zeros);
+            });
+            // (day, caregiver) pairs are distinct by construction
+            batchInsert(con, "INSERT INTO Availabilities VALUES (?, ?)", caregivers * days, (statement, i) -> {
+                statement.setDate(1, day(i / caregivers));
+                statement.setString(2, caregiver(i % caregivers));
+            });
+            batchInsert(con, "INSERT INTO Appointments (Time, pUser, cUser, vaxName) VALUES (?, ?, ?, ?)",
+                    appointments, (statement, i) -> {
+                        statement.setDate(1, day(random.nextInt(days)));
+                        statement.setString(2, patient(random.nextInt(patients)));
+                        statement.setString(3, caregiver(random.nextInt(caregivers)));
+                        statement.setString(4, VACCINE);
+                    });
+        } finally {
+            con.setAutoCommit(autoCommit);
+        }
+    }
+
+    // Add count more appointments between the generated users, spread over the given number of days from first on;
+    // called repeatedly to grow a history in steps
+    public void appendAppointments(Connection con, int count, LocalDate first, int days) throws SQLException {
+        boolean autoCommit = con.getAutoCommit();
+        con.setAutoCommit(false);
+        try {
+            batchInsert(con, "INSERT INTO Appointments (Time, pUser, cUser, vaxName) VALUES (?, ?, ?, ?)",
+                    count, (statement, i) -> {
+                        statement.setDate(1, Date.valueOf(first.plusDays(random.nextInt(days))));
+                        statement.setString(2, patient(random.nextInt(patients)));
+                        statement.setString(3, caregiver(random.nextInt(caregivers)));
+                        statement.setString(4, VACCINE);
+                    });
+        } finally {
+            con.setAutoCommit(autoCommit);
+        }
+    }
+
+    // Getters
+    public int getCaregivers() {
+        return caregivers;
+    }
+
+    public int getPatients() {
+        return patients;
+    }
+
+    public int getDays() {
+        return days;
+    }
+
+    public int getAppointments() {
+        return appointments;
+    }
+
+    public static String caregiver(int i) {
+        return "bench_c" + i;
+    }
+
+    public static String patient(int i) {
+        return "bench_p" + i;
+    }
+
+    public static Date day(int i) {
+        return Date.valueOf(FIRST_DAY.plusDays(i));
+    }
+
+    private static void batchInsert(Connection con, String sql, int rows, RowBinder binder) throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement(sql)) {
+            for (int i = 0; i < rows; i++) {
+                binder.bind(statement, i);
+                statement.addBatch();
+                if ((i + 1) % BATCH == 0) {
+                    statement.executeBatch();
+                    con.commit();
+                }
+            }
+            statement.executeBatch();
+            con.commit();
+        }
+    }
+
+    private interface RowBinder {
+        void bind(PreparedStatement statement, int i) throws SQLException;
+    }
+}
@@ -0,0 +1,106 @@
+package scheduler.db;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+// In-process H2 database in SQL Server compatibility mode, used when DBBackend=h2.
+// The first connection creates the schema from database.sql (SchemaFile) and applies every migration,
+// so benchmarks, soak tests and dev instances need no outside service:
+//   H2Url       defaults to a private in-memory database that lives as long as the process
+//   SchemaFile  defaults to database.sql in the working directory
+//   EmbeddedSchemaVersion  stops migrating at that version, e.g. 2 for the index benchmark
+//   H2ReplicaUrl  a second database that ReplicationStandIn keeps in step, used as the read replica
+public class EmbeddedDatabase {
+
+    private static final String driverName = "org.h2.Driver";
+    private static final String defaultUrl = "jdbc:h2:mem:scheduler;MODE=MSSQLServer;DB_CLOSE_DELAY=-1";
+
+    private final String url;
+    private final Path schemaFile;
+    private boolean initialized = false;
+
+    public EmbeddedDatabase(String url, Path schemaFile) {
+        this.url = url;
+        this.schemaFile = schemaFile;
+    }
+
+    public static EmbeddedDatabase fromEnv() {
+        String url = System.getenv("H2Url");
+        String schema = System.getenv("SchemaFile");
+        return new EmbeddedDatabase(url == null || url.isEmpty() ? defaultUrl : url,
+                Paths.get(schema == null || schema.isEmpty() ? "database.sql" : schema));
+    }
+
+    // The read replica's database, or null when H2ReplicaUrl is not set
+    public static EmbeddedDatabase replicaFromEnv() {
+        String url = System.getenv("H2ReplicaUrl");
+        if (url == null || url.isEmpty()) {
+            return null;
+        }
+        String schema = System.getenv("SchemaFile");
+        return new EmbeddedDatabase(url, Paths.get(schema == null || schema.isEmpty() ? "database.sql" : schema));
+    }
+
+    public Connection connect() throws SQLException {
+        try {
+            Class.forName(driverName);
+        } catch (ClassNotFoundException e) {
+            throw new SQLException("The H2 driver is not on the classpath", e);
+        }
+        Connection con = DriverManager.getConnection(url);
+        synchronized (this) {
+            if (!initialized) {
+                initialize(con);
+                initialized = true;
+            }
+        }
+        return con;
+    }
+
+    // Create the baseline schema unless a persistent database already has it, then migrate
+    private void initialize(Connection con) throws SQLException {
+        if (SchemaMigrator.currentVersion(con) == 1 && !hasBaseline(con)) {
+            String script;
+            try {
+                script = new String(Files.readAllBytes(schemaFile), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                throw new SQLException("Could not read schema file " + schemaFile, e);
+            }
+            try (Statement statement = con.createStatement()) {
+                for (String sql : script.split(";")) {
+                    String trimmed = stripComments(sql).trim();
+                    if (!trimmed.isEmpty()) {
+                        statement.execute(trimmed);
+                    }
+                }
+            }
+        }
+        String target = System.getenv("EmbeddedSchemaVersion");
+        SchemaMigrator.migrate(con, target == null || target.isEmpty()
+                ? SchemaMigrator.latestVersion() : Integer.parseInt(target));
+    }
+
+    private static boolean hasBaseline(Connection con) throws SQLException {
+        try (ResultSet resultSet = con.getMetaData().getTables(null, null, "VACCINES", new String[]{"TABLE"})) {
+            return resultSet.next();
+        }
+    }
+
+    private static String stripComments(String sql) {
+        StringBuilder sb = new StringBuilder();
+        for (String line : sql.split("\n")) {
+            if (!line.trim().startsWith("--")) {
+                sb.append(line).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,55 @@
+package scheduler.util;
+
+// Settings read from environment variables; a value that does not parse is reported and the default used
+public final class Env {
+
+    private Env() {
+    }
+
+    public static int getInt(String name, int defaultValue) {
+        String value = get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return invalid(name, value, defaultValue);
+        }
+    }
+
+    public static long getLong(String name, long defaultValue) {
+        String value = get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return invalid(name, value, defaultValue);
+        }
+    }
+
+    public static double getDouble(String name, double defaultValue) {
+        String value = get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return invalid(name, value, defaultValue);
+        }
+    }
+
+    // null when unset or empty
+    private static String get(String name) {
+        String value = System.getenv(name);
+        return value == null || value.isEmpty() ? null : value;
+    }
+
+    private static <T> T invalid(String name, String value, T defaultValue) {
+        System.out.println("Ignoring invalid value for " + name + ": " + value);
+        return defaultValue;
+    }
+}
@@ -0,0 +1,109 @@
+package scheduler.bench;
+
+import scheduler.Scheduler;
+import scheduler.db.ConnectionManager;
+import scheduler.db.SchemaMigrator;
+import scheduler.metrics.LatencyHistogram;
+import scheduler.model.ReservationEngine;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// A clinic block booked one reserve per patient against the same block booked with reserveGroup, against a
+// scratch database filled by DataGenerator (DBBackend=h2 runs everything in process):
+//   scheduler bench-group [--group n] [--rounds n]
+// Each round books group patients on a fresh day both ways, on days with one slot per patient. Reports
+// bookings per second and the time to book the whole group; the first round of each is a warm-up.
+public class GroupReservationBenchmark {
+
+    private final int group;
+    private final int rounds;
+    private final DataGenerator generator;
+
+    public GroupReservationBenchmark(Map<String, String> options) {
+        this.group = intOption(options, "group", 200);
+        this.rounds = intOption(options, "rounds", 10);
+        this.generator = new DataGenerator(group, group, 2 * (rounds + 1), 0);
+    }
+
+    public static void main(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+        }
+        try {
+            new GroupReservationBenchmark(options).run();
+        } catch (SQLException e) {
+            System.out.println("Error occurred when running the group reservation benchmark");
+            e.printStackTrace();
+        } finally {
+            ConnectionManager.shutdown();
+        }
+    }
+
+    public void run() throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try {
+            SchemaMigrator.migrate(con, SchemaMigrator.latestVersion());
+            generator.load(con);
+        } finally {
+            cm.closeConnection();
+        }
+        Scheduler.loadCaches();
+
+        ReservationEngine engine = new ReservationEngine();
+        List<String> patients = new ArrayList<>();
+        for (int i = 0; i < group; i++) {
+            patients.add(DataGenerator.patient(i));
+        }
+        LatencyHistogram single = new LatencyHistogram();
+        LatencyHistogram grouped = new LatencyHistogram();
+        long booked = 0;
+        for (int round = 0; round <= rounds; round++) {
+            Date one = DataGenerator.day(2 * round);
+            long start = System.nanoTime();
+            for (String patient : patients) {
+                if (engine.reserve(one, DataGenerator.VACCINE, patient).getStatus()
+                        == ReservationEngine.Status.RESERVED) {
+                    booked++;
+                }
+            }
+            long singleNanos = System.nanoTime() - start;
+
+            Date all = DataGenerator.day(2 * round + 1);
+            start = System.nanoTime();
+            for (ReservationEngine.Result result : engine.reserveGroup(all, DataGenerator.VACCINE, patients, false)) {
+                if (result.getStatus() == ReservationEngine.Status.RESERVED) {
+                    booked++;
+                }
+            }
+            long groupNanos = System.nanoTime() - start;
+            if (round > 0) {
+                single.record(singleNanos);
+                grouped.record(groupNanos);
+            }
+        }
+
+        System.out.printf("%d patients per group, %d rounds, %d of %d booked%n", group, rounds, booked,
+                2L * group * (rounds + 1));
+        System.out.printf("%-14s %12s %14s %14s%n", "path", "bookings/s", "p50 group ms", "p99 group ms");
+        report("reserve", single);
+        report("reserve_group", grouped);
+    }
+
+    private void report(String name, LatencyHistogram latency) {
+        System.out.printf("%-14s %12.0f %14.3f %14.3f%n", name, group / Math.max(latency.percentile(50) / 1e9, 1e-9),
+                latency.percentile(50) / 1e6, latency.percentile(99) / 1e6);
+    }
+
+    private static int intOption(Map<String, String> options, String name, int defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+}
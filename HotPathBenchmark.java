@@ -0,0 +1,290 @@
+package scheduler.bench;
+
+import scheduler.Scheduler;
+import scheduler.db.ConnectionManager;
+import scheduler.db.SchemaMigrator;
+import scheduler.model.AvailabilityIndex;
+import scheduler.model.ReservationEngine;
+import scheduler.util.PasswordHasher;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+// Benchmarks the scheduler's hot commands end to end through Scheduler.execute, against a scratch database
+// filled by DataGenerator; DBBackend=h2 runs everything in process:
+//   scheduler bench [--caregivers n] [--patients n] [--days n] [--appointments n]
+//                   [--warmup ms] [--measure ms] [--label name] [--compare results.csv]
+// Each command is warmed up, then run back to back for the measurement window; throughput and p50/p99
+// latency are printed and saved to bench-<label>.csv. Passing an earlier run's file with --compare prints
+// the change per command, so a regression between two commits shows up as a negative throughput delta.
+public class HotPathBenchmark {
+
+    private static final String PASSWORD = "bench_pw";
+
+    private final Map<String, String> options;
+    private final DataGenerator generator;
+    private final long warmupMillis;
+    private final long measureMillis;
+    private final Random random = new Random(7);
+    private final PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+    private final ReservationEngine engine = new ReservationEngine();
+    // first day index past the generated ones that nothing has used yet
+    private int nextDay;
+
+    public HotPathBenchmark(Map<String, String> options) {
+        this.options = options;
+        this.generator = new DataGenerator(intOption("caregivers", 200), intOption("patients", 10_000),
+                intOption("days", 60), intOption("appointments", 100_000));
+        this.warmupMillis = intOption("warmup", 2_000);
+        this.measureMillis = intOption("measure", 5_000);
+        this.nextDay = generator.getDays();
+    }
+
+    public static void main(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+        }
+        try {
+            new HotPathBenchmark(options).run();
+        } catch (SQLException | IOException e) {
+            System.out.println("Error occurred when running the benchmarks");
+            e.printStackTrace();
+        } finally {
+            ConnectionManager.shutdown();
+        }
+    }
+
+    public void run() throws SQLException, IOException {
+        setUp();
+        Map<String, Result> results = new LinkedHashMap<>();
+
+        Scheduler patient = session("login_patient", DataGenerator.patient(0));
+        Scheduler caregiver = session("login_caregiver", DataGenerator.caregiver(0));
+
+        results.put("search_caregiver_schedule", measure(() -> patient.execute(new String[]{
+                "search_caregiver_schedule", randomDay()})));
+        results.put("show_appointments", measure(() -> caregiver.execute(new String[]{
+                "show_appointments", "--limit", "50"})));
+        results.put("login", measure(() -> {
+            Scheduler s = new Scheduler(null, discard, null);
+            s.execute(new String[]{"login_patient", DataGenerator.patient(0), PASSWORD});
+        }));
+        results.put("add_doses", measure(() -> caregiver.execute(new String[]{
+                "add_doses", DataGenerator.VACCINE, "1"})));
+
+        // reserve and cancel work on days of their own past the generated ones, opened as they are used up and
+        // outside the timed calls, so that every timed reserve books a slot and every timed cancel cancels one
+        ByteArrayOutputStream replies = new ByteArrayOutputStream();
+        Scheduler booker = session("login_patient", DataGenerator.patient(0), new PrintStream(replies));
+        ArrayDeque<String> slots = new ArrayDeque<>();
+        results.put("reserve", measure(() -> {
+            replies.reset();
+            booker.execute(new String[]{"reserve", slots.poll(), DataGenerator.VACCINE});
+            if (!replies.toString().startsWith("Appointment ID")) {
+                throw new IllegalStateException("reserve did not book a free slot: " + replies);
+            }
+        }, () -> {
+            if (slots.isEmpty()) {
+                String day = openDay().toString();
+                for (int i = 0; i < generator.getCaregivers(); i++) {
+                    slots.add(day);
+                }
+            }
+        }));
+
+        ArrayDeque<Integer> ids = new ArrayDeque<>();
+        results.put("cancel", measure(() -> patient.execute(new String[]{
+                "cancel", Integer.toString(ids.poll())}), () -> {
+            if (ids.isEmpty()) {
+                ids.addAll(bookDay());
+            }
+        }));
+
+        report(results);
+    }
+
+    private void setUp() throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try {
+            SchemaMigrator.migrate(con, SchemaMigrator.latestVersion());
+            long start = System.nanoTime();
+            generator.load(con);
+            System.out.printf("Loaded %d caregivers x %d days, %d patients, %d appointments in %.1f s%n",
+                    generator.getCaregivers(), generator.getDays(), generator.getPatients(),
+                    generator.getAppointments(), (System.nanoTime() - start) / 1e9);
+            // the first patient and caregiver get a real password so that they can log in
+            PasswordHasher.Hashed hashed = PasswordHasher.getInstance().hash(PASSWORD);
+            for (String[] user : new String[][]{{"Patients", DataGenerator.patient(0)},
+                    {"Caregivers", DataGenerator.caregiver(0)}}) {
+                try (PreparedStatement statement = con.prepareStatement("UPDATE " + user[0]
+                        + " SET Salt = ?, Hash = ?, HashVersion = ?, HashCost = ? WHERE Username = ?")) {
+                    statement.setBytes(1, hashed.getSalt());
+                    statement.setBytes(2, hashed.getHash());
+                    statement.setInt(3, hashed.getVersion());
+                    statement.setInt(4, hashed.getCost());
+                    statement.setString(5, user[1]);
+                    statement.executeUpdate();
+                }
+            }
+        } finally {
+            cm.closeConnection();
+        }
+        Scheduler.loadCaches();
+    }
+
+    private Scheduler session(String login, String username) {
+        return session(login, username, discard);
+    }
+
+    private Scheduler session(String login, String username, PrintStream out) {
+        Scheduler s = new Scheduler(null, out, null);
+        s.execute(new String[]{login, username, PASSWORD});
+        return s;
+    }
+
+    // Give every caregiver a slot on the next unused day, returns the day
+    private Date openDay() {
+        Date d = DataGenerator.day(nextDay++);
+        ConnectionManager cm = new ConnectionManager();
+        try {
+            Connection con = cm.createConnection();
+            try (PreparedStatement statement = con.prepareStatement("INSERT INTO Availabilities VALUES (?, ?)")) {
+                for (int i = 0; i < generator.getCaregivers(); i++) {
+                    statement.setDate(1, d);
+                    statement.setString(2, DataGenerator.caregiver(i));
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Could not open slots on " + d, e);
+        } finally {
+            cm.closeConnection();
+        }
+        AvailabilityIndex.getInstance().invalidate(d);
+        return d;
+    }
+
+    // Book every slot of a newly opened day, returns the appointment ids
+    private List<Integer> bookDay() {
+        Date d = openDay();
+        List<Integer> ids = new ArrayList<>();
+        try {
+            for (int i = 0; i < generator.getCaregivers(); i++) {
+                ReservationEngine.Result result = engine.reserve(d, DataGenerator.VACCINE, DataGenerator.patient(0));
+                if (result.getStatus() != ReservationEngine.Status.RESERVED) {
+                    throw new IllegalStateException("Could not book a slot on " + d + ": " + result.getStatus());
+                }
+                ids.add(result.getAppointmentId());
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Could not book a slot on " + d, e);
+        }
+        return ids;
+    }
+
+    private Result measure(Runnable op) {
+        return measure(op, () -> { });
+    }
+
+    // Run op back to back until the window ends; prepare runs before each call, untimed, to top up its input
+    private Result measure(Runnable op, Runnable prepare) {
+        long warmupEnd = System.nanoTime() + warmupMillis * 1_000_000;
+        while (System.nanoTime() < warmupEnd) {
+            prepare.run();
+            op.run();
+        }
+        LatencySamples samples = new LatencySamples(10_000);
+        long end = System.nanoTime() + measureMillis * 1_000_000;
+        long busy = 0;
+        long now = System.nanoTime();
+        while (now < end) {
+            prepare.run();
+            long begin = System.nanoTime();
+            op.run();
+            now = System.nanoTime();
+            samples.add(now - begin);
+            busy += now - begin;
+        }
+        return new Result(samples.count() / Math.max(busy / 1e9, 1e-9), samples.percentile(50),
+                samples.percentile(99));
+    }
+
+    private void report(Map<String, Result> results) throws IOException {
+        Map<String, Result> baseline = options.containsKey("compare")
+                ? readResults(Paths.get(options.get("compare"))) : null;
+        System.out.printf("%-26s %12s %12s %12s%s%n", "command", "ops/s", "p50", "p99",
+                baseline != null ? String.format(" %12s %12s", "ops/s delta", "p99 delta") : "");
+        List<String> lines = new ArrayList<>();
+        lines.add("command,ops_per_sec,p50_ns,p99_ns");
+        for (Map.Entry<String, Result> e : results.entrySet()) {
+            Result r = e.getValue();
+            String delta = "";
+            Result b = baseline != null ? baseline.get(e.getKey()) : null;
+            if (b != null) {
+                delta = String.format(" %+11.1f%% %+11.1f%%", percent(r.opsPerSecond, b.opsPerSecond),
+                        percent(r.p99Nanos, b.p99Nanos));
+            }
+            System.out.printf("%-26s %12.1f %10.3fms %10.3fms%s%n", e.getKey(), r.opsPerSecond,
+                    r.p50Nanos / 1e6, r.p99Nanos / 1e6, delta);
+            lines.add(e.getKey() + "," + r.opsPerSecond + "," + r.p50Nanos + "," + r.p99Nanos);
+        }
+        Path file = Paths.get("bench-" + options.getOrDefault("label", "current") + ".csv");
+        Files.write(file, lines, StandardCharsets.UTF_8);
+        System.out.println("Results written to " + file);
+    }
+
+    private static Map<String, Result> readResults(Path file) throws IOException {
+        Map<String, Result> results = new HashMap<>();
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        for (String line : lines.subList(1, lines.size())) {
+            String[] f = line.split(",");
+            results.put(f[0], new Result(Double.parseDouble(f[1]), Long.parseLong(f[2]), Long.parseLong(f[3])));
+        }
+        return results;
+    }
+
+    private static double percent(double now, double before) {
+        return before == 0 ? 0 : (now - before) * 100.0 / before;
+    }
+
+    private String randomDay() {
+        return DataGenerator.day(random.nextInt(generator.getDays())).toString();
+    }
+
+    private int intOption(String name, int defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    private static class Result {
+        private final double opsPerSecond;
+        private final long p50Nanos;
+        private final long p99Nanos;
+
+        private Result(double opsPerSecond, long p50Nanos, long p99Nanos) {
+            this.opsPerSecond = opsPerSecond;
+            this.p50Nanos = p50Nanos;
+            this.p99Nanos = p99Nanos;
+        }
+    }
+}
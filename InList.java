@@ -0,0 +1,55 @@
+package scheduler.db;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// IN (...) lists padded to a few fixed lengths: the SQL text of a query over a list of any length is one of
+// SIZES.length variants, so StatementCache keeps a handful of statements for it instead of one per length and
+// the hot statements are not pushed out. The padding repeats the last value, which matches nothing more.
+public final class InList {
+
+    // longest list bound at once, below SQL Server's 2100 parameters with room for a few others
+    public static final int MAX = 2000;
+    private static final int[] SIZES = {1, 10, 100, 1000, MAX};
+
+    private InList() {
+    }
+
+    // "(?, ?, ...)" for a list of n values, n from 1 to MAX
+    public static String placeholders(int n) {
+        return "(" + String.join(", ", Collections.nCopies(padded(n), "?")) + ")";
+    }
+
+    // Bind the values from parameter index first on and pad them as placeholders did; returns the next index
+    public static int bind(PreparedStatement statement, int first, List<?> values) throws SQLException {
+        int n = padded(values.size());
+        for (int i = 0; i < n; i++) {
+            statement.setObject(first + i, values.get(Math.min(i, values.size() - 1)));
+        }
+        return first + n;
+    }
+
+    // The values in lists of at most MAX
+    public static <T> List<List<T>> chunks(List<T> values) {
+        List<List<T>> chunks = new ArrayList<>();
+        for (int from = 0; from < values.size(); from += MAX) {
+            chunks.add(values.subList(from, Math.min(values.size(), from + MAX)));
+        }
+        return chunks;
+    }
+
+    private static int padded(int n) {
+        if (n <= 0 || n > MAX) {
+            throw new IllegalArgumentException("IN list of " + n + " values");
+        }
+        for (int size : SIZES) {
+            if (n <= size) {
+                return size;
+            }
+        }
+        return MAX;
+    }
+}
@@ -0,0 +1,63 @@
+package scheduler.metrics;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+// Wraps a pooled connection so that every JDBC call made through it is charged to the command running on the
+// calling thread (see CommandMetrics): statements that are executed, rows that are read and the wall time spent
+// inside the driver. Statements and result sets created from the connection are wrapped the same way.
+public class InstrumentedJdbc implements InvocationHandler {
+
+    private final Object target;
+
+    private InstrumentedJdbc(Object target) {
+        this.target = target;
+    }
+
+    public static Connection wrap(Connection con) {
+        if (con == null) {
+            return null;
+        }
+        CommandMetrics.getInstance().currentStats().connections.incrementAndGet();
+        return proxy(Connection.class, con);
+    }
+
+    private static <T> T proxy(Class<T> type, Object target) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type},
+                new InstrumentedJdbc(target)));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        CommandMetrics metrics = CommandMetrics.getInstance();
+        CommandMetrics.Stats stats = metrics.currentStats();
+        Object result;
+        long start = System.nanoTime();
+        try {
+            result = method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        } finally {
+            stats.jdbcNanos.addAndGet(System.nanoTime() - start);
+        }
+
+        String name = method.getName();
+        if (target instanceof Statement && name.startsWith("execute")) {
+            stats.statements.incrementAndGet();
+        } else if (target instanceof ResultSet && name.equals("next") && Boolean.TRUE.equals(result)) {
+            stats.rowsRead.incrementAndGet();
+        }
+
+        // hand out wrapped statements and result sets so that their calls are counted too
+        Class<?> type = method.getReturnType();
+        if (result != null && (Statement.class.isAssignableFrom(type) || type == ResultSet.class)) {
+            return proxy(type, result);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,582 @@
+package scheduler.journal;
+
+import scheduler.metrics.LatencyHistogram;
+import scheduler.util.Env;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+// Append-only audit log of every booking change (reserve, cancel, add_doses, upload_availability), kept in
+// memory-mapped segment files under JournalDir. Commands record their events after the database commit and
+// wait until the events are on disk before answering, so the journal holds the committed changes in the order
+// they were made. It is not a write-ahead log: the database stays the system of record and nothing is rebuilt
+// from the journal, and a crash between a commit and the flush loses that command's events. Without JournalDir
+// nothing is recorded.
+//
+// Segment journal-<first seq>.seg: magic, version, first seq, then records of
+//   int body length, int CRC32 of the body, body (see JournalEvent.encode)
+// up to a zero length. A record with a bad checksum is a write torn by a crash; it and everything after it is
+// dropped when the journal is opened. Opening only scans the newest segment, so it takes the same time however
+// long the history.
+//
+// Group commit: appends only copy into the mapping; one flusher thread forces the written range to disk and
+// wakes every caller whose events it covered, so concurrent commands share one flush. JournalGroupCommitMs
+// lets the flusher wait that long for more events before each flush.
+//
+// Full segments stay in JournalDir; with JournalArchiveDir set, a background thread moves them there once
+// JournalArchiveSegments of them have piled up. "scheduler journal dump" reads both directories in seq order.
+public class Journal {
+
+    private static final int MAGIC = 0x524a4e4c;
+    private static final int FORMAT_VERSION = 1;
+    private static final int SEGMENT_HEADER = 16;
+    private static final int RECORD_HEADER = 8;
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final Journal INSTANCE = fromEnv();
+
+    private final Path dir;
+    private final Path archiveDir;
+    private final int segmentBytes;
+    private final long groupCommitMillis;
+    private final int archiveSegments;
+
+    private FileChannel lockChannel;
+    private FileLock lock;
+    // everything below is guarded by this
+    private Segment current;
+    private final List<Path> sealed = new ArrayList<>();
+    private long nextSeq;
+    private long writtenSeq;
+    private long durableSeq;
+    private IOException flushError;
+    private boolean running;
+    private Thread flusher;
+
+    private final ReentrantLock archiveLock = new ReentrantLock();
+    private final AtomicBoolean archiving = new AtomicBoolean(false);
+
+    private final AtomicLong appended = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong archived = new AtomicLong();
+    private final LatencyHistogram commitTime = new LatencyHistogram();
+    private long recoveryNanos;
+
+    // A journal that records nothing
+    private Journal() {
+        this.dir = null;
+        this.archiveDir = null;
+        this.segmentBytes = 0;
+        this.groupCommitMillis = 0;
+        this.archiveSegments = 0;
+    }
+
+    public Journal(Path dir, Path archiveDir, long segmentBytes, long groupCommitMillis, int archiveSegments)
+            throws IOException {
+        if (segmentBytes < 4096 || segmentBytes > Integer.MAX_VALUE || archiveSegments <= 0) {
+            throw new IllegalArgumentException("Invalid journal settings");
+        }
+        this.dir = dir;
+        this.archiveDir = archiveDir;
+        this.segmentBytes = (int) segmentBytes;
+        this.groupCommitMillis = groupCommitMillis;
+        this.archiveSegments = archiveSegments;
+        long start = System.nanoTime();
+        Files.createDirectories(dir);
+        lockChannel = FileChannel.open(dir.resolve("journal.lock"), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+        lock = lockChannel.tryLock();
+        if (lock == null) {
+            lockChannel.close();
+            throw new IOException("Journal " + dir + " is in use by another process");
+        }
+        recover();
+        this.recoveryNanos = System.nanoTime() - start;
+        running = true;
+        flusher = new Thread(this::flushLoop, "journal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    private static Journal fromEnv() {
+        String dir = System.getenv("JournalDir");
+        if (dir == null || dir.isEmpty()) {
+            return new Journal();
+        }
+        String archive = System.getenv("JournalArchiveDir");
+        try {
+            return new Journal(Paths.get(dir), archive == null || archive.isEmpty() ? null : Paths.get(archive),
+                    Env.getLong("JournalSegmentBytes", 64L << 20),
+                    Env.getLong("JournalGroupCommitMs", 0),
+                    Env.getInt("JournalArchiveSegments", 4));
+        } catch (IOException | IllegalArgumentException e) {
+            // not fatal: the database is the system of record, the session just runs without a journal
+            System.out.println("Error occurred when opening the journal in " + dir);
+            e.printStackTrace();
+            return new Journal();
+        }
+    }
+
+    public static Journal getInstance() {
+        return INSTANCE;
+    }
+
+    public boolean isEnabled() {
+        return dir != null;
+    }
+
+    // Append the events as one batch and return once they are on disk. The changes are already committed in the
+    // database, so a journal failure is reported but not passed on to the command.
+    public void record(JournalEvent... events) {
+        if (!isEnabled() || events.length == 0) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            awaitDurable(append(events));
+            commitTime.record(System.nanoTime() - start);
+        } catch (IOException e) {
+            failures.incrementAndGet();
+            System.out.println("Error while writing the journal");
+            e.printStackTrace();
+        }
+    }
+
+    public void record(List<JournalEvent> events) {
+        record(events.toArray(new JournalEvent[0]));
+    }
+
+    private synchronized long append(JournalEvent[] events) throws IOException {
+        if (!running) {
+            throw new IOException("Journal is closed");
+        }
+        for (JournalEvent event : events) {
+            int needed = RECORD_HEADER + event.maxEncodedSize();
+            if (needed > segmentBytes - SEGMENT_HEADER - 4) {
+                throw new IOException("Journal event does not fit in a segment");
+            }
+            // keep room for the zero length that ends the segment
+            if (current.buffer.remaining() < needed + 4) {
+                roll();
+            }
+            event.stamp(nextSeq++, System.currentTimeMillis());
+            write(current.buffer, event);
+            writtenSeq = event.getSeq();
+        }
+        appended.addAndGet(events.length);
+        notifyAll();
+        return writtenSeq;
+    }
+
+    private static void write(MappedByteBuffer buffer, JournalEvent event) {
+        int start = buffer.position();
+        buffer.position(start + RECORD_HEADER);
+        event.encode(buffer);
+        int length = buffer.position() - start - RECORD_HEADER;
+        CRC32 crc = new CRC32();
+        crc.update(buffer.slice(start + RECORD_HEADER, length));
+        buffer.putInt(start + 4, (int) crc.getValue());
+        buffer.putInt(start, length);
+    }
+
+    private synchronized void awaitDurable(long seq) throws IOException {
+        while (durableSeq < seq) {
+            if (flushError != null) {
+                throw flushError;
+            }
+            if (!running) {
+                throw new IOException("Journal closed before the events were flushed");
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the journal");
+            }
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            Segment segment;
+            int from;
+            int to;
+            long seq;
+            synchronized (this) {
+                while (running && writtenSeq == durableSeq) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (writtenSeq == durableSeq) {
+                    return;
+                }
+            }
+            if (groupCommitMillis > 0) {
+                try {
+                    Thread.sleep(groupCommitMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            synchronized (this) {
+                segment = current;
+                from = segment.flushed;
+                to = segment.buffer.position();
+                seq = writtenSeq;
+            }
+            // appends carry on past 'to' while the range is forced
+            try {
+                segment.buffer.force(from, to - from);
+            } catch (UncheckedIOException e) {
+                synchronized (this) {
+                    failures.incrementAndGet();
+                    flushError = e.getCause();
+                    notifyAll();
+                }
+                continue;
+            }
+            flushes.incrementAndGet();
+            synchronized (this) {
+                segment.flushed = Math.max(segment.flushed, to);
+                durableSeq = Math.max(durableSeq, seq);
+                flushError = null;
+                notifyAll();
+            }
+        }
+    }
+
+    // Seal the current segment and continue in a new one; called with the monitor held
+    private void roll() throws IOException {
+        current.buffer.force();
+        durableSeq = writtenSeq;
+        notifyAll();
+        current.channel.close();
+        sealed.add(current.path);
+        current = Segment.create(dir, nextSeq, segmentBytes);
+        if (archiveDir != null && sealed.size() >= archiveSegments && archiving.compareAndSet(false, true)) {
+            Thread archiver = new Thread(() -> {
+                try {
+                    archive();
+                } catch (IOException e) {
+                    failures.incrementAndGet();
+                    System.out.println("Error while archiving the journal");
+                    e.printStackTrace();
+                } finally {
+                    archiving.set(false);
+                }
+            }, "journal-archiver");
+            archiver.setDaemon(true);
+            archiver.start();
+        }
+    }
+
+    // Move every full segment to JournalArchiveDir; returns how many were moved
+    public int archive() throws IOException {
+        if (archiveDir == null) {
+            return 0;
+        }
+        archiveLock.lock();
+        try {
+            List<Path> full;
+            synchronized (this) {
+                full = new ArrayList<>(sealed);
+            }
+            Files.createDirectories(archiveDir);
+            for (Path segment : full) {
+                Files.move(segment, archiveDir.resolve(segment.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+                synchronized (this) {
+                    sealed.remove(segment);
+                }
+                archived.incrementAndGet();
+            }
+            syncDirectory(archiveDir);
+            syncDirectory(dir);
+            return full.size();
+        } finally {
+            archiveLock.unlock();
+        }
+    }
+
+    // Find where the newest segment's intact records end and reopen it there, cutting off a torn tail; the full
+    // segments before it are never read
+    private void recover() throws IOException {
+        List<Path> segments = list(dir, SEGMENT_PREFIX, SEGMENT_SUFFIX);
+        long lastSeq = 0;
+        if (segments.isEmpty()) {
+            current = Segment.create(dir, 1, segmentBytes);
+        } else {
+            sealed.addAll(segments.subList(0, segments.size() - 1));
+            current = Segment.open(segments.get(segments.size() - 1));
+            long[] last = {current.buffer.getLong(8) - 1};
+            int end = scan(current.buffer, 1, event -> last[0] = event.getSeq());
+            if (end + 4 <= current.buffer.limit() && current.buffer.getInt(end) != 0) {
+                // torn write: clear it so that the next scan stops in the same place
+                for (int i = end; i < current.buffer.limit(); i++) {
+                    current.buffer.put(i, (byte) 0);
+                }
+                current.buffer.force();
+            }
+            current.buffer.position(end);
+            current.flushed = end;
+            lastSeq = last[0];
+        }
+        nextSeq = lastSeq + 1;
+        writtenSeq = lastSeq;
+        durableSeq = writtenSeq;
+    }
+
+    // Read every event with seq >= fromSeq from the segments in the given directories, in seq order
+    public static void read(List<Path> dirs, long fromSeq, Consumer<JournalEvent> consumer) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        for (Path d : dirs) {
+            segments.addAll(list(d, SEGMENT_PREFIX, SEGMENT_SUFFIX));
+        }
+        // the zero-padded first seq in the names orders segments across directories too
+        segments.sort(Comparator.comparing(Path::getFileName));
+        for (Path segment : segments) {
+            readSegment(segment, fromSeq, consumer);
+        }
+    }
+
+    private static void readSegment(Path path, long fromSeq, Consumer<JournalEvent> consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            checkHeader(buffer, path);
+            scan(buffer, fromSeq, consumer);
+        }
+    }
+
+    // Hand every intact record with seq >= fromSeq to the consumer; returns where the intact records end
+    private static int scan(ByteBuffer buffer, long fromSeq, Consumer<JournalEvent> consumer) {
+        int position = SEGMENT_HEADER;
+        CRC32 crc = new CRC32();
+        while (position + RECORD_HEADER <= buffer.limit()) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || length > buffer.limit() - position - RECORD_HEADER) {
+                break;
+            }
+            ByteBuffer body = buffer.slice(position + RECORD_HEADER, length);
+            crc.reset();
+            crc.update(body.duplicate());
+            if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                break;
+            }
+            JournalEvent event = JournalEvent.decode(body);
+            if (event.getSeq() >= fromSeq) {
+                consumer.accept(event);
+            }
+            position += RECORD_HEADER + length;
+        }
+        return position;
+    }
+
+    private static void checkHeader(ByteBuffer buffer, Path path) throws IOException {
+        if (buffer.limit() < SEGMENT_HEADER || buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION) {
+            throw new IOException("Not a journal segment: " + path);
+        }
+    }
+
+    // Files in dir with the given prefix and suffix; the zero-padded seq in the names makes name order seq order
+    private static List<Path> list(Path dir, String prefix, String suffix) throws IOException {
+        List<Path> paths = new ArrayList<>();
+        if (!Files.isDirectory(dir)) {
+            return paths;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, prefix + "*" + suffix)) {
+            for (Path path : stream) {
+                paths.add(path);
+            }
+        }
+        Collections.sort(paths);
+        return paths;
+    }
+
+    // Make created, renamed and deleted files in dir durable; not every platform can open a directory
+    private static void syncDirectory(Path dir) {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // best effort
+        }
+    }
+
+    // Flush what is left and release the directory
+    public void close() {
+        if (!isEnabled()) {
+            return;
+        }
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            notifyAll();
+        }
+        try {
+            flusher.join();
+            synchronized (this) {
+                current.buffer.force();
+                durableSeq = writtenSeq;
+                current.channel.close();
+                notifyAll();
+            }
+            lock.release();
+            lockChannel.close();
+        } catch (IOException e) {
+            System.out.println("Error while closing the journal");
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Getters
+    public synchronized long getWrittenSeq() {
+        return writtenSeq;
+    }
+
+    public synchronized long getDurableSeq() {
+        return durableSeq;
+    }
+
+    public synchronized int getSegments() {
+        return isEnabled() ? sealed.size() + 1 : 0;
+    }
+
+    public long getAppended() {
+        return appended.get();
+    }
+
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    // Segments moved to JournalArchiveDir
+    public long getArchived() {
+        return archived.get();
+    }
+
+    public long getRecoveryNanos() {
+        return recoveryNanos;
+    }
+
+    // From record() being called until its events are on disk
+    public LatencyHistogram getCommitTime() {
+        return commitTime;
+    }
+
+    private static class Segment {
+        private final Path path;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        // bytes known to be on disk
+        private int flushed;
+
+        private Segment(Path path, FileChannel channel, MappedByteBuffer buffer) {
+            this.path = path;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        private static Segment create(Path dir, long firstSeq, int size) throws IOException {
+            Path path = dir.resolve(SEGMENT_PREFIX + String.format("%020d", firstSeq) + SEGMENT_SUFFIX);
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            // mapping past the end grows the file with zeros, which read as the end marker after the last record
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, FORMAT_VERSION);
+            buffer.putLong(8, firstSeq);
+            buffer.force(0, SEGMENT_HEADER);
+            syncDirectory(dir);
+            Segment segment = new Segment(path, channel, buffer);
+            buffer.position(SEGMENT_HEADER);
+            segment.flushed = SEGMENT_HEADER;
+            return segment;
+        }
+
+        private static Segment open(Path path) throws IOException {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            checkHeader(buffer, path);
+            return new Segment(path, channel, buffer);
+        }
+    }
+
+    // scheduler journal dump [fromSeq] | archive
+    public static void main(String[] args) {
+        String command = args.length > 0 ? args[0] : "dump";
+        String dir = System.getenv("JournalDir");
+        if (dir == null || dir.isEmpty()) {
+            System.out.println("Set JournalDir to the journal directory");
+            return;
+        }
+        if (command.equals("dump")) {
+            // read-only, works while a session holds the journal
+            long from = args.length > 1 ? Long.parseLong(args[1]) : 1;
+            List<Path> dirs = new ArrayList<>();
+            String archive = System.getenv("JournalArchiveDir");
+            if (archive != null && !archive.isEmpty()) {
+                dirs.add(Paths.get(archive));
+            }
+            dirs.add(Paths.get(dir));
+            try {
+                read(dirs, from, System.out::println);
+            } catch (IOException e) {
+                System.out.println("Error while reading the journal");
+                e.printStackTrace();
+            }
+            return;
+        }
+        if (!command.equals("archive")) {
+            System.out.println("Usage: journal dump [fromSeq] | archive");
+            return;
+        }
+        Journal journal = getInstance();
+        if (!journal.isEnabled()) {
+            return;
+        }
+        try {
+            System.out.printf("Opened the journal at seq %d in %.1f ms%n", journal.getWrittenSeq(),
+                    journal.recoveryNanos / 1e6);
+            if (journal.archiveDir == null) {
+                System.out.println("Set JournalArchiveDir to the directory full segments are moved to");
+                return;
+            }
+            System.out.println("Moved " + journal.archive() + " full segments to " + journal.archiveDir);
+        } catch (IOException e) {
+            System.out.println("Error while archiving the journal");
+            e.printStackTrace();
+        } finally {
+            journal.close();
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package scheduler.journal;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Date;
+import java.time.LocalDate;
+
+// One booking change as recorded in the journal. Which fields are set depends on the type:
+//   RESERVED            appointmentId, date, patient, caregiver, vaccine
+//   CANCELLED           appointmentId, vaccine
+//   DOSES_ADDED         vaccine, amount
+//   AVAILABILITY_ADDED  date, caregiver
+//   AVAILABILITY_REMOVED date, caregiver
+public class JournalEvent {
+
+    public enum Type {
+        RESERVED, CANCELLED, DOSES_ADDED, AVAILABILITY_ADDED, AVAILABILITY_REMOVED
+    }
+
+    private static final Type[] TYPES = Type.values();
+
+    private final Type type;
+    private final int appointmentId;
+    private final LocalDate date;
+    private final String patient;
+    private final String caregiver;
+    private final String vaccine;
+    private final int amount;
+    // assigned when the event is appended
+    private long seq;
+    private long timeMillis;
+
+    private JournalEvent(Type type, int appointmentId, LocalDate date, String patient, String caregiver,
+                         String vaccine, int amount) {
+        this.type = type;
+        this.appointmentId = appointmentId;
+        this.date = date;
+        this.patient = patient;
+        this.caregiver = caregiver;
+        this.vaccine = vaccine;
+        this.amount = amount;
+    }
+
+    public static JournalEvent reserved(int appointmentId, Date d, String patient, String caregiver, String vaccine) {
+        return new JournalEvent(Type.RESERVED, appointmentId, d.toLocalDate(), patient, caregiver, vaccine, 0);
+    }
+
+    public static JournalEvent cancelled(int appointmentId, String vaccine) {
+        return new JournalEvent(Type.CANCELLED, appointmentId, null, null, null, vaccine, 0);
+    }
+
+    public static JournalEvent dosesAdded(String vaccine, int amount) {
+        return new JournalEvent(Type.DOSES_ADDED, -1, null, null, null, vaccine, amount);
+    }
+
+    public static JournalEvent availabilityAdded(Date d, String caregiver) {
+        return new JournalEvent(Type.AVAILABILITY_ADDED, -1, d.toLocalDate(), null, caregiver, null, 0);
+    }
+
+    public static JournalEvent availabilityRemoved(Date d, String caregiver) {
+        return new JournalEvent(Type.AVAILABILITY_REMOVED, -1, d.toLocalDate(), null, caregiver, null, 0);
+    }
+
+    // Body of a journal record: seq, time, type, id, day, amount and the three names
+    void encode(ByteBuffer buffer) {
+        buffer.putLong(seq);
+        buffer.putLong(timeMillis);
+        buffer.put((byte) type.ordinal());
+        buffer.putInt(appointmentId);
+        buffer.putLong(date == null ? Long.MIN_VALUE : date.toEpochDay());
+        buffer.putInt(amount);
+        putString(buffer, patient);
+        putString(buffer, caregiver);
+        putString(buffer, vaccine);
+    }
+
+    static JournalEvent decode(ByteBuffer buffer) {
+        long seq = buffer.getLong();
+        long timeMillis = buffer.getLong();
+        Type type = TYPES[buffer.get()];
+        int appointmentId = buffer.getInt();
+        long day = buffer.getLong();
+        int amount = buffer.getInt();
+        JournalEvent event = new JournalEvent(type, appointmentId,
+                day == Long.MIN_VALUE ? null : LocalDate.ofEpochDay(day),
+                getString(buffer), getString(buffer), getString(buffer), amount);
+        event.seq = seq;
+        event.timeMillis = timeMillis;
+        return event;
+    }
+
+    // Upper bound of the encoded size, used to check that a record fits before encoding it
+    int maxEncodedSize() {
+        return 8 + 8 + 1 + 4 + 8 + 4 + maxSize(patient) + maxSize(caregiver) + maxSize(vaccine);
+    }
+
+    void stamp(long seq, long timeMillis) {
+        this.seq = seq;
+        this.timeMillis = timeMillis;
+    }
+
+    private static int maxSize(String s) {
+        return 2 + (s == null ? 0 : 3 * s.length());
+    }
+
+    private static void putString(ByteBuffer buffer, String s) {
+        if (s == null) {
+            buffer.putShort((short) -1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        short length = buffer.getShort();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Getters
+    public Type getType() {
+        return type;
+    }
+
+    public long getSeq() {
+        return seq;
+    }
+
+    public long getTimeMillis() {
+        return timeMillis;
+    }
+
+    public int getAppointmentId() {
+        return appointmentId;
+    }
+
+    public LocalDate getDate() {
+        return date;
+    }
+
+    public String getPatient() {
+        return patient;
+    }
+
+    public String getCaregiver() {
+        return caregiver;
+    }
+
+    public String getVaccine() {
+        return vaccine;
+    }
+
+    public int getAmount() {
+        return amount;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(seq).append(' ').append(java.time.Instant.ofEpochMilli(timeMillis)).append(' ').append(type);
+        if (appointmentId >= 0) {
+            sb.append(" id=").append(appointmentId);
+        }
+        if (date != null) {
+            sb.append(" date=").append(date);
+        }
+        if (patient != null) {
+            sb.append(" patient=").append(patient);
+        }
+        if (caregiver != null) {
+            sb.append(" caregiver=").append(caregiver);
+        }
+        if (vaccine != null) {
+            sb.append(" vaccine=").append(vaccine);
+        }
+        if (type == Type.DOSES_ADDED) {
+            sb.append(" amount=").append(amount);
+        }
+        return sb.toString();
+    }
+}
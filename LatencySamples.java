@@ -0,0 +1,53 @@
+package scheduler.bench;
+
+import java.util.Arrays;
+
+// Latency samples of one benchmarked operation, in nanoseconds
+public class LatencySamples {
+    private long[] samples;
+    private int count = 0;
+    private boolean sorted = true;
+
+    public LatencySamples(int expected) {
+        this.samples = new long[Math.max(16, expected)];
+    }
+
+    public void add(long nanos) {
+        if (count == samples.length) {
+            samples = Arrays.copyOf(samples, count * 2);
+        }
+        samples[count++] = nanos;
+        sorted = false;
+    }
+
+    public int count() {
+        return count;
+    }
+
+    // p in [0, 100], nearest-rank
+    public long percentile(double p) {
+        if (count == 0) {
+            return 0;
+        }
+        if (!sorted) {
+            Arrays.sort(samples, 0, count);
+            sorted = true;
+        }
+        int rank = (int) Math.ceil(p / 100.0 * count);
+        return samples[Math.min(count - 1, Math.max(0, rank - 1))];
+    }
+
+    public long mean() {
+        long total = 0;
+        for (int i = 0; i < count; i++) {
+            total += samples[i];
+        }
+        return count == 0 ? 0 : total / count;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("n=%d mean=%.3fms p50=%.3fms p99=%.3fms",
+                count, mean() / 1e6, percentile(50) / 1e6, percentile(99) / 1e6);
+    }
+}
@@ -0,0 +1,208 @@
+package scheduler.metrics;
+
+import com.sun.net.httpserver.HttpServer;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.ReadCoalescer;
+import scheduler.db.ReplicaRouter;
+import scheduler.db.StatementCache;
+import scheduler.journal.Journal;
+import scheduler.model.UsernameFilter;
+import scheduler.model.Waitlist;
+import scheduler.util.Env;
+import scheduler.util.PasswordHasher;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+// Serves CommandMetrics in the Prometheus text format on http://localhost:<MetricsPort>/metrics.
+// Disabled unless MetricsPort is set; scraping only reads the counters, so it never blocks a command.
+public class MetricsEndpoint {
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private static HttpServer server = null;
+
+    // Start the endpoint if MetricsPort is set, once per process
+    public static synchronized void startFromEnv() {
+        int port = Env.getInt("MetricsPort", 0);
+        if (server != null || port <= 0) {
+            return;
+        }
+        try {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        } catch (IOException e) {
+            System.out.println("Error while starting the metrics endpoint");
+            e.printStackTrace();
+            return;
+        }
+        server.createContext("/metrics", exchange -> {
+            byte[] body = render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        });
+        // a scrape is a few microseconds of formatting, the dispatcher thread can do it itself
+        server.setExecutor(null);
+        server.start();
+        System.out.println("Metrics available on http://" + server.getAddress().getHostString() + ":"
+                + server.getAddress().getPort() + "/metrics");
+    }
+
+    public static synchronized void stop() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+    }
+
+    public static String render() {
+        Map<String, CommandMetrics.Stats> snapshot = CommandMetrics.getInstance().snapshot();
+        StringBuilder sb = new StringBuilder();
+        header(sb, "scheduler_command_latency_seconds", "summary", "Latency of scheduler commands");
+        for (Map.Entry<String, CommandMetrics.Stats> e : snapshot.entrySet()) {
+            LatencyHistogram latency = e.getValue().getLatency();
+            // background work has database counters but no command latency
+            if (latency.count() == 0) {
+                continue;
+            }
+            for (double q : QUANTILES) {
+                sample(sb, "scheduler_command_latency_seconds", e.getKey(), "quantile=\"" + q + "\"",
+                        latency.percentile(q * 100) / 1e9);
+            }
+            sample(sb, "scheduler_command_latency_seconds_sum", e.getKey(), null, latency.sum() / 1e9);
+            sample(sb, "scheduler_command_latency_seconds_count", e.getKey(), null, latency.count());
+        }
+        counter(sb, snapshot, "scheduler_command_total", "Commands run", Counter.COUNT);
+        counter(sb, snapshot, "scheduler_command_errors_total", "Commands that gave up on a database error or a bug",
+                Counter.ERRORS);
+        counter(sb, snapshot, "scheduler_db_connections_total", "Pooled connections borrowed", Counter.CONNECTIONS);
+        counter(sb, snapshot, "scheduler_db_statements_total", "SQL statements executed", Counter.STATEMENTS);
+        counter(sb, snapshot, "scheduler_db_rows_read_total", "Result set rows read", Counter.ROWS);
+        counter(sb, snapshot, "scheduler_db_time_seconds_total", "Time spent in JDBC calls", Counter.JDBC_TIME);
+        total(sb, "scheduler_statement_cache_hits_total", "Prepared statements reused", StatementCache.getHits());
+        total(sb, "scheduler_statement_cache_misses_total", "Prepared statements created", StatementCache.getMisses());
+        total(sb, "scheduler_statement_cache_evictions_total", "Prepared statements closed to make room",
+                StatementCache.getEvictions());
+        total(sb, "scheduler_statement_cache_leaked_total", "Prepared statements left open by a command",
+                StatementCache.getLeaked());
+        PasswordHasher hasher = PasswordHasher.getInstance();
+        gauge(sb, "scheduler_hash_queue_depth", "Password hashes waiting for a thread", hasher.getQueueDepth());
+        gauge(sb, "scheduler_hash_running", "Password hashes being computed", hasher.getRunning());
+        total(sb, "scheduler_hash_rejected_total", "Password hashes refused because the queue was full",
+                hasher.getRejected());
+        total(sb, "scheduler_hash_upgraded_total", "Password hashes upgraded on login", hasher.getUpgraded());
+        summary(sb, "scheduler_hash_seconds", "Time to compute one password hash", hasher.getHashTime());
+        summary(sb, "scheduler_hash_queue_seconds", "Time a password hash waited for a thread",
+                hasher.getQueueTime());
+        total(sb, "scheduler_username_filter_skipped_total", "Username checks answered without a query",
+                UsernameFilter.patients().getSkipped() + UsernameFilter.caregivers().getSkipped());
+        total(sb, "scheduler_username_filter_probes_total", "Username checks",
+                UsernameFilter.patients().getProbes() + UsernameFilter.caregivers().getProbes());
+        gauge(sb, "scheduler_username_filter_bytes", "Memory used by the username filters",
+                UsernameFilter.patients().getMemoryBytes() + UsernameFilter.caregivers().getMemoryBytes());
+        long requests = 0;
+        long loads = 0;
+        for (ReadCoalescer<?, ?> reads : ReadCoalescer.all()) {
+            requests += reads.getRequests();
+            loads += reads.getLoads();
+        }
+        total(sb, "scheduler_coalesced_read_requests_total", "Cache misses that needed a database read", requests);
+        total(sb, "scheduler_coalesced_read_queries_total", "Database reads actually issued for them", loads);
+        ReplicaRouter replica = ConnectionManager.getReplicaRouter();
+        if (replica != null) {
+            gauge(sb, "scheduler_replica_lag_milliseconds", "Replica lag at the last heartbeat check",
+                    replica.getLagMillis());
+            total(sb, "scheduler_replica_reads_total", "Read-only queries sent to the replica",
+                    replica.getReplicaReads());
+            total(sb, "scheduler_replica_stale_reads_total", "Read-only queries sent to the primary while the replica"
+                    + " lagged", replica.getStaleReads());
+            total(sb, "scheduler_replica_own_write_reads_total", "Read-only queries sent to the primary to read"
+                    + " back recent writes", replica.getOwnWriteReads());
+        }
+        Waitlist waitlist = Waitlist.getInstance();
+        gauge(sb, "scheduler_waitlist_waiting", "Patients waiting for a slot and a dose", waitlist.getWaiting());
+        total(sb, "scheduler_waitlist_joined_total", "Patients put on the waitlist", waitlist.getJoined());
+        total(sb, "scheduler_waitlist_booked_total", "Waiting patients booked automatically", waitlist.getAssigned());
+        summary(sb, "scheduler_waitlist_time_to_booking_seconds", "Time from joining the waitlist until booked",
+                waitlist.getTimeToAssignment());
+        Journal journal = Journal.getInstance();
+        if (journal.isEnabled()) {
+            total(sb, "scheduler_journal_events_total", "Booking changes written to the journal", journal.getAppended());
+            total(sb, "scheduler_journal_flushes_total", "Journal flushes to disk", journal.getFlushes());
+            total(sb, "scheduler_journal_failures_total", "Journal writes, flushes and archive moves that failed",
+                    journal.getFailures());
+            gauge(sb, "scheduler_journal_segments", "Journal segment files in JournalDir", journal.getSegments());
+            summary(sb, "scheduler_journal_commit_seconds", "Time from recording an event until it is on disk",
+                    journal.getCommitTime());
+        }
+        return sb.toString();
+    }
+
+    private enum Counter {
+        COUNT, ERRORS, CONNECTIONS, STATEMENTS, ROWS, JDBC_TIME
+    }
+
+    private static void counter(StringBuilder sb, Map<String, CommandMetrics.Stats> snapshot, String name,
+                                String help, Counter counter) {
+        header(sb, name, "counter", help);
+        for (Map.Entry<String, CommandMetrics.Stats> e : snapshot.entrySet()) {
+            CommandMetrics.Stats s = e.getValue();
+            double value;
+            switch (counter) {
+                case COUNT: value = s.getCount(); break;
+                case ERRORS: value = s.getErrors(); break;
+                case CONNECTIONS: value = s.getConnections(); break;
+                case STATEMENTS: value = s.getStatements(); break;
+                case ROWS: value = s.getRowsRead(); break;
+                default: value = s.getJdbcNanos() / 1e9; break;
+            }
+            sample(sb, name, e.getKey(), null, value);
+        }
+    }
+
+    private static void gauge(StringBuilder sb, String name, String help, long value) {
+        header(sb, name, "gauge", help);
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void summary(StringBuilder sb, String name, String help, LatencyHistogram histogram) {
+        header(sb, name, "summary", help);
+        for (double q : QUANTILES) {
+            sb.append(name).append("{quantile=\"").append(q).append("\"} ")
+                    .append(histogram.percentile(q * 100) / 1e9).append('\n');
+        }
+        sb.append(name).append("_sum ").append(histogram.sum() / 1e9).append('\n');
+        sb.append(name).append("_count ").append(histogram.count()).append('\n');
+    }
+
+    private static void total(StringBuilder sb, String name, String help, long value) {
+        header(sb, name, "counter", help);
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void header(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String name, String command, String extraLabel, double value) {
+        sb.append(name).append("{command=\"").append(command).append('"');
+        if (extraLabel != null) {
+            sb.append(',').append(extraLabel);
+        }
+        sb.append("} ");
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            sb.append((long) value);
+        } else {
+            sb.append(value);
+        }
+        sb.append('\n');
+    }
+}
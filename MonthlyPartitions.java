@@ -0,0 +1,281 @@
+package scheduler.db;
+
+import scheduler.util.Env;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+// Appointments and Availabilities are kept in two tiers split by month. The hot tier is the tables the scheduler
+// has always used and holds the current and future months plus the newest closed ones. Older months are moved
+// whole into AppointmentsArchive and AvailabilitiesArchive, which are clustered on the month (yyyymm), and listed
+// in the Partitions catalog. Readers ask route() which archived months a date range touches: the hot tables stay
+// the same size however long the history grows, and a query over old months only reads those months.
+//   scheduler partitions list | archive [closedMonthsKeptHot]
+// A month is announced in the catalog before its rows move and every process re-reads the catalog within
+// PartitionCatalogTtlMs, so the archiver waits that long after announcing new months; rows then move one day per
+// transaction, each day being in exactly one of the tiers at any time.
+public class MonthlyPartitions {
+
+    private static final MonthlyPartitions INSTANCE = new MonthlyPartitions(
+            Env.getLong("PartitionCatalogTtlMs", 60_000));
+
+    private static final String ARCHIVING = "ARCHIVING";
+    private static final String ARCHIVED = "ARCHIVED";
+
+    private static final String GET_MONTHS = "SELECT MonthKey FROM Partitions";
+    private static final String GET_CATALOG = "SELECT MonthKey, State, Appointments, Availabilities FROM Partitions"
+            + " ORDER BY MonthKey";
+    private static final String GET_CLOSED = "SELECT DISTINCT YEAR(Time) * 100 + MONTH(Time) FROM Appointments"
+            + " WHERE Time < ? UNION SELECT DISTINCT YEAR(Time) * 100 + MONTH(Time) FROM Availabilities WHERE Time < ?";
+    private static final String ANNOUNCE = "INSERT INTO Partitions (MonthKey, State) VALUES (?, '" + ARCHIVING + "')";
+    private static final String COPY_APPOINTMENTS = "INSERT INTO AppointmentsArchive (MonthKey, Id, Time, pUser, cUser,"
+            + " vaxName) SELECT ?, Id, Time, pUser, cUser, vaxName FROM Appointments WHERE Time = ?";
+    private static final String DELETE_APPOINTMENTS = "DELETE FROM Appointments WHERE Time = ?";
+    private static final String COPY_AVAILABILITIES = "INSERT INTO AvailabilitiesArchive (MonthKey, Time, cUser)"
+            + " SELECT ?, Time, cUser FROM Availabilities WHERE Time = ?";
+    private static final String DELETE_AVAILABILITIES = "DELETE FROM Availabilities WHERE Time = ?";
+    private static final String COUNT_MOVED = "UPDATE Partitions SET Appointments = Appointments + ?,"
+            + " Availabilities = Availabilities + ?, ChangedAt = CURRENT_TIMESTAMP WHERE MonthKey = ?";
+    private static final String MARK_ARCHIVED = "UPDATE Partitions SET State = '" + ARCHIVED + "',"
+            + " ChangedAt = CURRENT_TIMESTAMP WHERE MonthKey = ?";
+
+    private final long ttlMillis;
+    private volatile NavigableSet<Integer> months = Collections.emptyNavigableSet();
+    private volatile long loadedAt = 0;
+
+    public MonthlyPartitions(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    public static MonthlyPartitions getInstance() {
+        return INSTANCE;
+    }
+
+    public static void main(String[] args) {
+        String command = args.length > 0 ? args[0] : "list";
+        ConnectionManager cm = new ConnectionManager();
+        try {
+            Connection con = cm.createConnection();
+            if (command.equals("list")) {
+                list(con);
+            } else if (command.equals("archive")) {
+                int keep = args.length > 1 ? Integer.parseInt(args[1]) : (int) Env.getLong("PartitionHotMonths", 1);
+                YearMonth cutoff = YearMonth.now().minusMonths(keep);
+                int moved = getInstance().archive(con, cutoff, getInstance().ttlMillis);
+                System.out.println("Archived " + moved + " month(s) before " + cutoff);
+            } else {
+                System.out.println("Usage: scheduler partitions list | archive [closedMonthsKeptHot]");
+            }
+        } catch (SQLException e) {
+            System.out.println("Error occurred when archiving closed months");
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.out.println("Interrupted before any rows were moved");
+        } finally {
+            cm.closeConnection();
+            ConnectionManager.shutdown();
+        }
+    }
+
+    public static int monthKey(LocalDate d) {
+        return d.getYear() * 100 + d.getMonthValue();
+    }
+
+    public static YearMonth month(int key) {
+        return YearMonth.of(key / 100, key % 100);
+    }
+
+    // Which archived months hold rows dated from..to (inclusive, null for unbounded); the hot tier always may
+    public Route route(Date from, Date to) throws SQLException {
+        int first = from == null ? Integer.MIN_VALUE : monthKey(from.toLocalDate());
+        int last = to == null ? Integer.MAX_VALUE : monthKey(to.toLocalDate());
+        if (first > last) {
+            return Route.HOT;
+        }
+        NavigableSet<Integer> touched = archivedMonths().subSet(first, true, last, true);
+        return touched.isEmpty() ? Route.HOT : new Route(touched.first(), touched.last());
+    }
+
+    // Months listed in the catalog, re-read once the copy is older than the time-to-live
+    public NavigableSet<Integer> archivedMonths() throws SQLException {
+        if (loadedAt == 0 || System.currentTimeMillis() - loadedAt >= ttlMillis) {
+            refresh();
+        }
+        return months;
+    }
+
+    private synchronized void refresh() throws SQLException {
+        TreeSet<Integer> loaded = new TreeSet<>();
+        long now = System.currentTimeMillis();
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try (PreparedStatement statement = con.prepareStatement(GET_MONTHS);
+             ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                loaded.add(resultSet.getInt(1));
+            }
+        } finally {
+            cm.closeConnection();
+        }
+        months = Collections.unmodifiableNavigableSet(loaded);
+        loadedAt = now;
+    }
+
+    // Move every row dated before the cutoff month into the archive tier, returns the number of months touched.
+    // Rerunning it is safe: it picks up where an interrupted run stopped and sweeps rows added to closed months.
+    public int archive(Connection con, YearMonth cutoff, long announceWaitMillis)
+            throws SQLException, InterruptedException {
+        Date end = Date.valueOf(cutoff.atDay(1));
+        List<Integer> closed = new ArrayList<>();
+        try (PreparedStatement statement = con.prepareStatement(GET_CLOSED)) {
+            statement.setDate(1, end);
+            statement.setDate(2, end);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    closed.add(resultSet.getInt(1));
+                }
+            }
+        }
+        Collections.sort(closed);
+        if (closed.isEmpty()) {
+            return 0;
+        }
+        NavigableSet<Integer> known = new TreeSet<>();
+        try (Statement statement = con.createStatement();
+             ResultSet resultSet = statement.executeQuery(GET_MONTHS)) {
+            while (resultSet.next()) {
+                known.add(resultSet.getInt(1));
+            }
+        }
+        int announced = 0;
+        try (PreparedStatement statement = con.prepareStatement(ANNOUNCE)) {
+            for (int key : closed) {
+                if (!known.contains(key)) {
+                    statement.setInt(1, key);
+                    statement.executeUpdate();
+                    announced++;
+                }
+            }
+        }
+        loadedAt = 0;
+        if (announced > 0 && announceWaitMillis > 0) {
+            System.out.println("Announced " + announced + " month(s), waiting " + announceWaitMillis
+                    + " ms for every instance to route to them");
+            Thread.sleep(announceWaitMillis);
+        }
+        for (int key : closed) {
+            long start = System.nanoTime();
+            long[] moved = moveMonth(con, key);
+            System.out.printf("%s: moved %d appointments and %d availabilities in %.1f s%n", month(key),
+                    moved[0], moved[1], (System.nanoTime() - start) / 1e9);
+        }
+        return closed.size();
+    }
+
+    private long[] moveMonth(Connection con, int key) throws SQLException {
+        long[] moved = new long[2];
+        YearMonth m = month(key);
+        boolean autoCommit = con.getAutoCommit();
+        con.setAutoCommit(false);
+        try (PreparedStatement copyAppointments = con.prepareStatement(COPY_APPOINTMENTS);
+             PreparedStatement deleteAppointments = con.prepareStatement(DELETE_APPOINTMENTS);
+             PreparedStatement copyAvailabilities = con.prepareStatement(COPY_AVAILABILITIES);
+             PreparedStatement deleteAvailabilities = con.prepareStatement(DELETE_AVAILABILITIES);
+             PreparedStatement count = con.prepareStatement(COUNT_MOVED);
+             PreparedStatement done = con.prepareStatement(MARK_ARCHIVED)) {
+            for (LocalDate day = m.atDay(1); !day.isAfter(m.atEndOfMonth()); day = day.plusDays(1)) {
+                Date d = Date.valueOf(day);
+                try {
+                    copyAppointments.setInt(1, key);
+                    copyAppointments.setDate(2, d);
+                    int appointments = copyAppointments.executeUpdate();
+                    deleteAppointments.setDate(1, d);
+                    if (deleteAppointments.executeUpdate() != appointments) {
+                        throw new SQLException("Appointments on " + day + " changed while being archived");
+                    }
+                    copyAvailabilities.setInt(1, key);
+                    copyAvailabilities.setDate(2, d);
+                    int availabilities = copyAvailabilities.executeUpdate();
+                    deleteAvailabilities.setDate(1, d);
+                    if (deleteAvailabilities.executeUpdate() != availabilities) {
+                        throw new SQLException("Availabilities on " + day + " changed while being archived");
+                    }
+                    if (appointments + availabilities > 0) {
+                        count.setLong(1, appointments);
+                        count.setLong(2, availabilities);
+                        count.setInt(3, key);
+                        count.executeUpdate();
+                    }
+                    con.commit();
+                    moved[0] += appointments;
+                    moved[1] += availabilities;
+                } catch (SQLException e) {
+                    con.rollback();
+                    throw e;
+                }
+            }
+            done.setInt(1, key);
+            done.executeUpdate();
+            con.commit();
+        } finally {
+            con.setAutoCommit(autoCommit);
+        }
+        return moved;
+    }
+
+    private static void list(Connection con) throws SQLException {
+        try (Statement statement = con.createStatement()) {
+            try (ResultSet resultSet = statement.executeQuery(GET_CATALOG)) {
+                while (resultSet.next()) {
+                    System.out.printf("%s %-9s %12d appointments %12d availabilities%n",
+                            month(resultSet.getInt("MonthKey")), resultSet.getString("State"),
+                            resultSet.getLong("Appointments"), resultSet.getLong("Availabilities"));
+                }
+            }
+            try (ResultSet resultSet = statement.executeQuery("SELECT (SELECT COUNT(*) FROM Appointments),"
+                    + " (SELECT COUNT(*) FROM Availabilities)")) {
+                resultSet.next();
+                System.out.printf("%-17s %12d appointments %12d availabilities%n", "hot tier",
+                        resultSet.getLong(1), resultSet.getLong(2));
+            }
+        }
+    }
+
+    // The archived months a query has to read, in addition to the hot tables
+    public static class Route {
+        private static final Route HOT = new Route(0, 0);
+
+        private final int firstMonth;
+        private final int lastMonth;
+
+        private Route(int firstMonth, int lastMonth) {
+            this.firstMonth = firstMonth;
+            this.lastMonth = lastMonth;
+        }
+
+        // Getters
+        public boolean includesArchive() {
+            return this != HOT;
+        }
+
+        public int getFirstMonth() {
+            return firstMonth;
+        }
+
+        public int getLastMonth() {
+            return lastMonth;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package scheduler.bench;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.MonthlyPartitions;
+import scheduler.db.SchemaMigrator;
+import scheduler.model.AppointmentQuery;
+import scheduler.model.AvailabilityIndex;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+// Shows that the hot queries stay flat while the appointment history grows, against a scratch database:
+//   scheduler bench-partitions [--steps 1000000,10000000,100000000] [--months 36] [--hot 100000]
+//                              [--caregivers 1000] [--patients 100000] [--samples 200]
+// DataGenerator books --hot appointments into January 2030, which stays in the hot tier. Each step then grows
+// the history spread over the --months closed months before this one to the step's size, archives those months
+// and times show_appointments pages and search ranges through the same model classes the commands use.
+// Past 10M rows use a file database (H2Url=jdbc:h2:/path/db;MODE=MSSQLServer) rather than the in-memory one.
+public class PartitionBenchmark {
+
+    private static final Date HOT_FIRST = Date.valueOf(DataGenerator.FIRST_DAY);
+    private static final Date HOT_LAST = Date.valueOf(DataGenerator.FIRST_DAY.plusDays(30));
+
+    private final Map<String, String> options;
+    private final DataGenerator generator;
+    private final int samples;
+    private final int months;
+    private final Random random = new Random(7);
+
+    public PartitionBenchmark(Map<String, String> options) {
+        this.options = options;
+        this.generator = new DataGenerator(intOption("caregivers", 1_000), intOption("patients", 100_000), 31,
+                intOption("hot", 100_000));
+        this.samples = intOption("samples", 200);
+        this.months = intOption("months", 36);
+    }
+
+    public static void main(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+        }
+        ConnectionManager cm = new ConnectionManager();
+        try {
+            new PartitionBenchmark(options).run(cm.createConnection());
+        } catch (SQLException e) {
+            System.out.println("Error occurred when running the partition benchmark");
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            cm.closeConnection();
+            ConnectionManager.shutdown();
+        }
+    }
+
+    public void run(Connection con) throws SQLException, InterruptedException {
+        SchemaMigrator.migrate(con, SchemaMigrator.latestVersion());
+        if (count(con, "SELECT COUNT(*) FROM Appointments") > 0) {
+            throw new SQLException("The database already has appointments, use a fresh scratch database");
+        }
+        long start = System.nanoTime();
+        generator.load(con);
+        System.out.printf("Loaded %d hot appointments in %.1f s%n", generator.getAppointments(),
+                (System.nanoTime() - start) / 1e9);
+
+        YearMonth current = YearMonth.now();
+        LocalDate historyFirst = current.minusMonths(months).atDay(1);
+        int historyDays = (int) ChronoUnit.DAYS.between(historyFirst, current.atDay(1));
+        long history = 0;
+        List<String> lines = new ArrayList<>();
+        for (String step : options.getOrDefault("steps", "1000000,10000000,100000000").split(",")) {
+            long target = Long.parseLong(step.trim());
+            start = System.nanoTime();
+            while (history < target) {
+                int chunk = (int) Math.min(target - history, 1_000_000);
+                generator.appendAppointments(con, chunk, historyFirst, historyDays);
+                history += chunk;
+            }
+            double loadSeconds = (System.nanoTime() - start) / 1e9;
+            start = System.nanoTime();
+            MonthlyPartitions.getInstance().archive(con, current, 0);
+            System.out.printf("History at %d appointments: generated in %.1f s, archived in %.1f s%n",
+                    history, loadSeconds, (System.nanoTime() - start) / 1e9);
+
+            Map<String, LatencySamples> results = measure(con);
+            StringBuilder line = new StringBuilder(String.format("%12d %10d", history,
+                    count(con, "SELECT COUNT(*) FROM Appointments")));
+            for (LatencySamples result : results.values()) {
+                line.append(String.format(" %8.3f/%-8.3f", result.percentile(50) / 1e6, result.percentile(99) / 1e6));
+            }
+            lines.add(line.toString());
+            // the table so far after every step, since the large steps take a while
+            System.out.println(String.format("%12s %10s", "history", "hot rows") + header(results));
+            for (String l : lines) {
+                System.out.println(l);
+            }
+        }
+    }
+
+    private static String header(Map<String, LatencySamples> results) {
+        StringBuilder header = new StringBuilder();
+        for (String name : results.keySet()) {
+            header.append(String.format(" %-17s", name));
+        }
+        return header.append("  (p50/p99 ms)").toString();
+    }
+
+    private Map<String, LatencySamples> measure(Connection con) throws SQLException {
+        int caregivers = generator.getCaregivers();
+        int patients = generator.getPatients();
+        List<Integer> archived = new ArrayList<>(MonthlyPartitions.getInstance().archivedMonths());
+        Map<String, LatencySamples> results = new LinkedHashMap<>();
+        results.put("hot month cg", time(con, () -> new AppointmentQuery(true,
+                DataGenerator.caregiver(random.nextInt(caregivers)), HOT_FIRST, HOT_LAST, 0, 50)));
+        results.put("hot month pt", time(con, () -> new AppointmentQuery(false,
+                DataGenerator.patient(random.nextInt(patients)), HOT_FIRST, HOT_LAST, 0, 50)));
+        results.put("old month cg", time(con, () -> {
+            YearMonth m = MonthlyPartitions.month(archived.get(random.nextInt(archived.size())));
+            return new AppointmentQuery(true, DataGenerator.caregiver(random.nextInt(caregivers)),
+                    Date.valueOf(m.atDay(1)), Date.valueOf(m.atEndOfMonth()), 0, 50);
+        }));
+        results.put("all history cg", time(con, () -> new AppointmentQuery(true,
+                DataGenerator.caregiver(random.nextInt(caregivers)), null, null, 0, 50)));
+        // a zero time-to-live sends every search to the database
+        AvailabilityIndex index = new AvailabilityIndex(0);
+        LatencySamples search = new LatencySamples(samples);
+        for (int i = 0; i < samples; i++) {
+            long start = System.nanoTime();
+            index.counts(HOT_FIRST, HOT_LAST);
+            search.add(System.nanoTime() - start);
+        }
+        results.put("search month", search);
+        return results;
+    }
+
+    private LatencySamples time(Connection con, QuerySource source) throws SQLException {
+        LatencySamples result = new LatencySamples(samples);
+        for (int i = 0; i < samples; i++) {
+            AppointmentQuery query = source.next();
+            long start = System.nanoTime();
+            try (PreparedStatement statement = query.prepare(con);
+                 ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    resultSet.getInt("Id");
+                }
+            }
+            result.add(System.nanoTime() - start);
+        }
+        return result;
+    }
+
+    private static long count(Connection con, String sql) throws SQLException {
+        try (Statement statement = con.createStatement();
+             ResultSet resultSet = statement.executeQuery(sql)) {
+            resultSet.next();
+            return resultSet.getLong(1);
+        }
+    }
+
+    private int intOption(String name, int defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    private interface QuerySource {
+        AppointmentQuery next();
+    }
+}
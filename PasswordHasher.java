@@ -0,0 +1,288 @@
+package scheduler.util;
+
+import scheduler.metrics.LatencyHistogram;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Hashes and checks passwords on a small dedicated pool instead of the session threads, so a login storm
+// queues up here rather than starving every other command of CPU.
+// Version 1 is the original Util.generateHash (PBKDF2-HMAC-SHA1, 10 iterations); version 2 is PBKDF2-HMAC-SHA256
+// with HashIterations iterations. Both produce 16 bytes, the width of the Hash column. Every row stores the
+// version and iteration count it was hashed with (HashVersion, HashCost), and a successful login rehashes rows
+// that are behind the current settings.
+// At most HashThreads hashes run at once and HashQueueSize more may wait; a caller that finds the queue full
+// waits up to HashQueueWaitMs for room and then gets a RejectedExecutionException.
+public class PasswordHasher {
+
+    public static final int LEGACY_VERSION = 1;
+    public static final int LEGACY_COST = 10;
+    public static final int CURRENT_VERSION = 2;
+
+    private static final int HASH_LENGTH = 16;
+    private static final int SALT_LENGTH = 16;
+
+    private static final PasswordHasher INSTANCE = new PasswordHasher(
+            Env.getInt("HashThreads", Runtime.getRuntime().availableProcessors()),
+            Env.getInt("HashQueueSize", 64),
+            Env.getInt("HashQueueWaitMs", 2_000),
+            Env.getInt("HashIterations", 100_000));
+
+    // one HMAC and its scratch buffers per thread, reused for every hash that thread computes
+    private static final ThreadLocal<Kdf> KDF = ThreadLocal.withInitial(Kdf::new);
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final int iterations;
+    private final long queueWaitMillis;
+    private final ThreadPoolExecutor executor;
+    // running plus queued hashes; the queue itself is sized so that it can never reject
+    private final Semaphore capacity;
+
+    private final LatencyHistogram hashTime = new LatencyHistogram();
+    private final LatencyHistogram queueTime = new LatencyHistogram();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong upgraded = new AtomicLong();
+
+    public PasswordHasher(int threads, int queueSize, long queueWaitMillis, int iterations) {
+        if (threads <= 0 || queueSize < 0 || iterations <= 0) {
+            throw new IllegalArgumentException("Invalid hashing settings");
+        }
+        this.iterations = iterations;
+        this.queueWaitMillis = queueWaitMillis;
+        this.capacity = new Semaphore(threads + queueSize);
+        AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(threads + queueSize), r -> {
+                    Thread t = new Thread(r, "password-hasher-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    public static PasswordHasher getInstance() {
+        return INSTANCE;
+    }
+
+    // Hash a new password with a fresh salt at the current version and cost
+    public Hashed hash(String password) {
+        return submit(() -> hashHere(password));
+    }
+
+    // Check a password against a stored row; version and cost say how the row was hashed
+    public boolean verify(String password, byte[] salt, byte[] hash, int version, int cost) {
+        return submit(() -> matches(password, salt, hash, version, cost));
+    }
+
+    // Rows hashed with an older algorithm or a lower cost are rehashed on the next successful login
+    public boolean needsUpgrade(int version, int cost) {
+        return version < CURRENT_VERSION || cost < iterations;
+    }
+
+    // Hash on the calling thread, for callers that already run on their own bounded pool (the bulk importer)
+    public Hashed hashHere(String password) {
+        byte[] salt = new byte[SALT_LENGTH];
+        RANDOM.nextBytes(salt);
+        long start = System.nanoTime();
+        byte[] hash = KDF.get().derive(password, salt, iterations);
+        hashTime.record(System.nanoTime() - start);
+        completed.incrementAndGet();
+        return new Hashed(salt, hash, CURRENT_VERSION, iterations);
+    }
+
+    private boolean matches(String password, byte[] salt, byte[] hash, int version, int cost) {
+        long start = System.nanoTime();
+        try {
+            if (version == LEGACY_VERSION) {
+                // BINARY(16) pads short values with zeros, so compare both sides without the padding
+                return MessageDigest.isEqual(Util.trim(hash), Util.trim(Util.generateHash(password, salt)));
+            }
+            if (version == CURRENT_VERSION) {
+                return MessageDigest.isEqual(hash, KDF.get().derive(password, salt, cost));
+            }
+            throw new IllegalStateException("Unknown password hash version " + version);
+        } finally {
+            hashTime.record(System.nanoTime() - start);
+            completed.incrementAndGet();
+        }
+    }
+
+    // Start hashing a new password without waiting for the result, so the caller can do other work meanwhile
+    public Future<Hashed> hashLater(String password) {
+        return submitLater(() -> hashHere(password));
+    }
+
+    private <T> T submit(Callable<T> task) {
+        Future<T> future = submitLater(task);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while hashing a password");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private <T> Future<T> submitLater(Callable<T> task) {
+        long queued = System.nanoTime();
+        try {
+            if (!capacity.tryAcquire(queueWaitMillis, TimeUnit.MILLISECONDS)) {
+                rejected.incrementAndGet();
+                throw new RejectedExecutionException("Too many passwords waiting to be hashed");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting to hash a password");
+        }
+        // the slot is given back when the hash finishes or is cancelled, not when someone collects it
+        FutureTask<T> future = new FutureTask<T>(() -> {
+            queueTime.record(System.nanoTime() - queued);
+            return task.call();
+        }) {
+            @Override
+            protected void done() {
+                capacity.release();
+            }
+        };
+        try {
+            executor.execute(future);
+        } catch (RejectedExecutionException e) {
+            capacity.release();
+            throw e;
+        }
+        return future;
+    }
+
+    public void recordUpgrade() {
+        upgraded.incrementAndGet();
+    }
+
+    // Getters
+    public int getIterations() {
+        return iterations;
+    }
+
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public int getRunning() {
+        return executor.getActiveCount();
+    }
+
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public long getUpgraded() {
+        return upgraded.get();
+    }
+
+    public LatencyHistogram getHashTime() {
+        return hashTime;
+    }
+
+    public LatencyHistogram getQueueTime() {
+        return queueTime;
+    }
+
+    public static class Hashed {
+        private final byte[] salt;
+        private final byte[] hash;
+        private final int version;
+        private final int cost;
+
+        private Hashed(byte[] salt, byte[] hash, int version, int cost) {
+            this.salt = salt;
+            this.hash = hash;
+            this.version = version;
+            this.cost = cost;
+        }
+
+        // Getters
+        public byte[] getSalt() {
+            return salt;
+        }
+
+        public byte[] getHash() {
+            return hash;
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        public int getCost() {
+            return cost;
+        }
+    }
+
+    // PBKDF2-HMAC-SHA256 truncated to one 16-byte block, written out so that the iteration loop works in
+    // place on the thread's buffers and reuses one Mac per thread. Each call still allocates the key bytes, the
+    // key spec and the result; SecretKeyFactory would add a factory, a PBEKeySpec and a key object per call
+    private static class Kdf {
+        private final Mac mac;
+        private final byte[] u = new byte[32];
+        private final byte[] t = new byte[32];
+        private final byte[] blockIndex = {0, 0, 0, 1};
+
+        private Kdf() {
+            try {
+                mac = Mac.getInstance("HmacSHA256");
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private byte[] derive(String password, byte[] salt, int iterations) {
+            byte[] key = password.getBytes(StandardCharsets.UTF_8);
+            try {
+                // HMAC pads the key with zeros, so an empty password is the same key as a single zero byte
+                mac.init(new SecretKeySpec(key.length == 0 ? new byte[1] : key, "HmacSHA256"));
+                mac.update(salt);
+                mac.update(blockIndex);
+                mac.doFinal(u, 0);
+                System.arraycopy(u, 0, t, 0, t.length);
+                for (int i = 1; i < iterations; i++) {
+                    mac.update(u);
+                    mac.doFinal(u, 0);
+                    for (int j = 0; j < t.length; j++) {
+                        t[j] ^= u[j];
+                    }
+                }
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                Arrays.fill(key, (byte) 0);
+            }
+            byte[] hash = new byte[HASH_LENGTH];
+            System.arraycopy(t, 0, hash, 0, HASH_LENGTH);
+            return hash;
+        }
+    }
+}
@@ -1,30 +1,41 @@
 package scheduler.model;
 
 import scheduler.db.ConnectionManager;
-import scheduler.util.Util;
+import scheduler.db.InList;
+import scheduler.util.PasswordHasher;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
 
 public class Patient {
 
     private final String username;
     private final byte[] salt;
     private final byte[] hash;
+    // how hash was computed, see PasswordHasher
+    private final int hashVersion;
+    private final int hashCost;
 
     private Patient(PatientBuilder builder) {
         this.username = builder.username;
         this.salt = builder.salt;
         this.hash = builder.hash;
+        this.hashVersion = builder.hashVersion;
+        this.hashCost = builder.hashCost;
     }
 
     private Patient(PatientGetter getter) {
         this.username = getter.username;
         this.salt = getter.salt;
         this.hash = getter.hash;
+        this.hashVersion = getter.hashVersion;
+        this.hashCost = getter.hashCost;
     }
 
     public String getUsername() {
@@ -39,33 +50,80 @@ public class Patient {
         return hash;
     }
 
+    public int getHashVersion() {
+        return hashVersion;
+    }
+
+    public int getHashCost() {
+        return hashCost;
+    }
+
     public void saveToDB() throws SQLException {
         ConnectionManager cm = new ConnectionManager();
         Connection con = cm.createConnection();
 
-        String addPatient = "INSERT INTO Patients VALUES (? , ?, ?)";
-        try {
-            PreparedStatement statement = con.prepareStatement(addPatient);
+        String addPatient = "INSERT INTO Patients (Username, Salt, Hash, HashVersion, HashCost) VALUES (?, ?, ?, ?, ?)";
+        try (PreparedStatement statement = con.prepareStatement(addPatient)) {
             statement.setString(1, this.username);
             statement.setBytes(2, this.salt);
             statement.setBytes(3, this.hash);
+            statement.setInt(4, this.hashVersion);
+            statement.setInt(5, this.hashCost);
             statement.executeUpdate();
+            UsernameFilter.patients().added(this.username);
         } catch (SQLException e) {
-            throw new SQLException();
+            // keep the SQLState so that callers can tell a taken username from other failures
+            throw new SQLException(e.getMessage(), e.getSQLState(), e);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // The usernames among the given ones that belong to a patient
+    public static Set<String> existing(List<String> usernames) throws SQLException {
+        Set<String> found = new HashSet<>();
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try {
+            for (List<String> chunk : InList.chunks(usernames)) {
+                try (PreparedStatement statement = con.prepareStatement(
+                        "SELECT Username FROM Patients WHERE Username IN " + InList.placeholders(chunk.size()))) {
+                    InList.bind(statement, 1, chunk);
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        while (resultSet.next()) {
+                            found.add(resultSet.getString(1));
+                        }
+                    }
+                }
+            }
         } finally {
             cm.closeConnection();
         }
+        return found;
     }
 
     public static class PatientBuilder {
         private final String username;
         private final byte[] salt;
         private final byte[] hash;
+        private final int hashVersion;
+        private final int hashCost;
 
+        // a hash made by Util.generateHash
         public PatientBuilder(String username, byte[] salt, byte[] hash) {
+            this(username, salt, hash, PasswordHasher.LEGACY_VERSION, PasswordHasher.LEGACY_COST);
+        }
+
+        public PatientBuilder(String username, PasswordHasher.Hashed hashed) {
+            this(username, hashed.getSalt(), hashed.getHash(), hashed.getVersion(), hashed.getCost());
+        }
+
+        public PatientBuilder(String username, byte[] salt, byte[] hash, int hashVersion, int hashCost) {
             this.username = username;
             this.salt = salt;
             this.hash = hash;
+            this.hashVersion = hashVersion;
+            this.hashCost = hashCost;
         }
 
         public Patient build() {
@@ -78,6 +136,8 @@ public class Patient {
         private final String password;
         private byte[] salt;
         private byte[] hash;
+        private int hashVersion;
+        private int hashCost;
 
         public PatientGetter(String username, String password) {
             this.username = username;
@@ -86,31 +146,64 @@ public class Patient {
 
         public Patient get() throws SQLException {
             ConnectionManager cm = new ConnectionManager();
-            Connection con = cm.createConnection();
+            Connection con = cm.createReadConnection();
 
-            String getPatient = "SELECT Salt, Hash FROM Patients WHERE Username = ?";
-            try {
-                PreparedStatement statement = con.prepareStatement(getPatient);
+            String getPatient = "SELECT Salt, Hash, HashVersion, HashCost FROM Patients WHERE Username = ?";
+            try (PreparedStatement statement = con.prepareStatement(getPatient)) {
                 statement.setString(1, this.username);
                 ResultSet resultSet = statement.executeQuery();
-                while (resultSet.next()) {
-                    byte[] salt = resultSet.getBytes("Salt");
-                    // we need to call Util.trim() to get rid of the paddings,
-                    // try to remove the use of Util.trim() and you'll see :)
-                    byte[] hash = Util.trim(resultSet.getBytes("Hash"));
-                    // check if the password matches
-                    byte[] calculatedHash = Util.generateHash(password, salt);
-                    if (!Arrays.equals(hash, calculatedHash)) {
-                        return null;
-                    } else {
-                        this.salt = salt;
-                        this.hash = hash;
-                        return new Patient(this);
-                    }
+                if (!resultSet.next()) {
+                    return null;
                 }
-                return null;
+                this.salt = resultSet.getBytes("Salt");
+                this.hash = resultSet.getBytes("Hash");
+                this.hashVersion = resultSet.getInt("HashVersion");
+                this.hashCost = resultSet.getInt("HashCost");
             } catch (SQLException e) {
                 throw new SQLException();
+            } finally {
+                // give the connection back before the slow part
+                cm.closeConnection();
+            }
+            // check if the password matches
+            PasswordHasher hasher = PasswordHasher.getInstance();
+            if (!hasher.verify(password, salt, hash, hashVersion, hashCost)) {
+                return null;
+            }
+            if (hasher.needsUpgrade(hashVersion, hashCost)) {
+                upgrade(hasher);
+            }
+            return new Patient(this);
+        }
+
+        // Rehash with the current algorithm and cost now that we know the password; a failure here
+        // does not fail the login, the row is simply upgraded on a later one
+        private void upgrade(PasswordHasher hasher) {
+            ConnectionManager cm = new ConnectionManager();
+            try {
+                PasswordHasher.Hashed hashed = hasher.hash(password);
+                Connection con = cm.createConnection();
+                // only if nobody else upgraded the row in the meantime
+                String upgradeHash = "UPDATE Patients SET Salt = ?, Hash = ?, HashVersion = ?, HashCost = ?"
+                        + " WHERE Username = ? AND HashVersion = ? AND HashCost = ?";
+                try (PreparedStatement statement = con.prepareStatement(upgradeHash)) {
+                    statement.setBytes(1, hashed.getSalt());
+                    statement.setBytes(2, hashed.getHash());
+                    statement.setInt(3, hashed.getVersion());
+                    statement.setInt(4, hashed.getCost());
+                    statement.setString(5, this.username);
+                    statement.setInt(6, this.hashVersion);
+                    statement.setInt(7, this.hashCost);
+                    if (statement.executeUpdate() == 1) {
+                        this.salt = hashed.getSalt();
+                        this.hash = hashed.getHash();
+                        this.hashVersion = hashed.getVersion();
+                        this.hashCost = hashed.getCost();
+                        hasher.recordUpgrade();
+                    }
+                }
+            } catch (SQLException | RejectedExecutionException e) {
+                System.out.println("Could not upgrade the password hash of " + username);
             } finally {
                 cm.closeConnection();
             }
@@ -0,0 +1,131 @@
+package scheduler.bench;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.SchemaMigrator;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+// Times every query shape the scheduler issues, before and after the index migration (version 3).
+// It fills the tables with generated rows, so run it against a scratch database created from database.sql
+// (or DBBackend=h2 with EmbeddedSchemaVersion=2):
+//   scheduler bench-schema [availabilityRows] [appointmentRows] [samples]
+public class QueryShapeBenchmark {
+
+    private static final int INDEX_VERSION = 3;
+
+    private final int appointmentRows;
+    private final int samples;
+    private final int caregivers;
+    private final int patients;
+    private final int days;
+    private final DataGenerator generator;
+    private final Random random = new Random(42);
+
+    public QueryShapeBenchmark(int availabilityRows, int appointmentRows, int samples) {
+        this.appointmentRows = appointmentRows;
+        this.samples = samples;
+        this.caregivers = Math.max(1, availabilityRows / 500);
+        this.patients = Math.max(1, appointmentRows / 20);
+        this.days = (availabilityRows + caregivers - 1) / caregivers;
+        this.generator = new DataGenerator(caregivers, patients, days, appointmentRows);
+    }
+
+    public static void main(String[] args) {
+        int availabilityRows = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int appointmentRows = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+        int samples = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        ConnectionManager cm = new ConnectionManager();
+        try {
+            new QueryShapeBenchmark(availabilityRows, appointmentRows, samples).run(cm.createConnection());
+        } catch (SQLException e) {
+            System.out.println("Error occurred when running the schema benchmark");
+            e.printStackTrace();
+        } finally {
+            cm.closeConnection();
+            ConnectionManager.shutdown();
+        }
+    }
+
+    public void run(Connection con) throws SQLException {
+        if (SchemaMigrator.currentVersion(con) >= INDEX_VERSION) {
+            throw new SQLException("The database already has the indexes, use a fresh scratch database");
+        }
+        SchemaMigrator.migrate(con, INDEX_VERSION - 1);
+        long start = System.nanoTime();
+        generator.load(con);
+        System.out.printf("Loaded %d availabilities and %d appointments in %.1f s%n",
+                caregivers * days, appointmentRows, (System.nanoTime() - start) / 1e9);
+
+        Map<String, LatencySamples> before = measure(con);
+        start = System.nanoTime();
+        SchemaMigrator.migrate(con, INDEX_VERSION);
+        System.out.printf("Built indexes in %.1f s%n", (System.nanoTime() - start) / 1e9);
+        Map<String, LatencySamples> after = measure(con);
+
+        System.out.printf("%-28s %12s %12s %12s %12s%n", "query", "p50 before", "p50 after", "p99 before", "p99 after");
+        for (String name : before.keySet()) {
+            LatencySamples b = before.get(name);
+            LatencySamples a = after.get(name);
+            System.out.printf("%-28s %10.3fms %10.3fms %10.3fms %10.3fms%n", name,
+                    b.percentile(50) / 1e6, a.percentile(50) / 1e6, b.percentile(99) / 1e6, a.percentile(99) / 1e6);
+        }
+    }
+
+    private Map<String, LatencySamples> measure(Connection con) throws SQLException {
+        Map<String, LatencySamples> results = new LinkedHashMap<>();
+        results.put("caregivers on date", time(con,
+                "SELECT cUser FROM Availabilities WHERE Time = ? ORDER BY cUser",
+                statement -> statement.setDate(1, DataGenerator.day(random.nextInt(days)))));
+        results.put("first caregiver on date", time(con,
+                "SELECT TOP 1 cUser FROM Availabilities WHERE Time = ? ORDER BY cUser",
+                statement -> statement.setDate(1, DataGenerator.day(random.nextInt(days)))));
+        results.put("caregiver slots in range", time(con,
+                "SELECT Time FROM Availabilities WHERE cUser = ? AND Time BETWEEN ? AND ?",
+                statement -> {
+                    int first = random.nextInt(days);
+                    statement.setString(1, DataGenerator.caregiver(random.nextInt(caregivers)));
+                    statement.setDate(2, DataGenerator.day(first));
+                    statement.setDate(3, DataGenerator.day(first + 30));
+                }));
+        results.put("caregiver appointments page", time(con,
+                "SELECT TOP (50) Id, vaxName, Time, pUser FROM Appointments WHERE cUser = ? AND Id > ? ORDER BY Id",
+                statement -> {
+                    statement.setString(1, DataGenerator.caregiver(random.nextInt(caregivers)));
+                    statement.setInt(2, random.nextInt(Math.max(1, appointmentRows)));
+                }));
+        results.put("patient appointments page", time(con,
+                "SELECT TOP (50) Id, vaxName, Time, cUser FROM Appointments WHERE pUser = ? AND Id > ? ORDER BY Id",
+                statement -> {
+                    statement.setString(1, DataGenerator.patient(random.nextInt(patients)));
+                    statement.setInt(2, 0);
+                }));
+        return results;
+    }
+
+    private LatencySamples time(Connection con, String sql, Binder binder) throws SQLException {
+        LatencySamples result = new LatencySamples(samples);
+        try (PreparedStatement statement = con.prepareStatement(sql)) {
+            for (int i = 0; i < samples; i++) {
+                binder.bind(statement);
+                long start = System.nanoTime();
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        resultSet.getObject(1);
+                    }
+                }
+                result.add(System.nanoTime() - start);
+            }
+        }
+        return result;
+    }
+
+    private interface Binder {
+        void bind(PreparedStatement statement) throws SQLException;
+    }
+}
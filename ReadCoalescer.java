@@ -0,0 +1,123 @@
+package scheduler.db;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Runs one database read per key at a time: callers asking for a key whose read is already in flight get the
+// same CompletableFuture instead of issuing their own query, so a burst of sessions searching the same popular
+// date the moment its cached copy expires costs one query. Results are not kept here; the caches that own the
+// loaders (AvailabilityIndex, VaccineInventory) hold them for their time-to-live.
+// get() reads on a loader thread and never blocks the caller; join() reads on the calling thread when it is
+// the first to ask, so that a plain synchronous command keeps its database work on its own metrics.
+public final class ReadCoalescer<K, V> {
+
+    public interface Loader<K, V> {
+        V load(K key) throws SQLException;
+    }
+
+    private static final ExecutorService LOADERS = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("read-loader-", 0).factory());
+    private static final List<ReadCoalescer<?, ?>> ALL = Collections.synchronizedList(new ArrayList<>());
+
+    private final String name;
+    private final Loader<K, V> loader;
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    public ReadCoalescer(String name, Loader<K, V> loader) {
+        this.name = name;
+        this.loader = loader;
+        ALL.add(this);
+    }
+
+    // Every coalescer created so far, for stats and metrics
+    public static List<ReadCoalescer<?, ?>> all() {
+        synchronized (ALL) {
+            return new ArrayList<>(ALL);
+        }
+    }
+
+    public CompletableFuture<V> get(K key) {
+        return start(key, true);
+    }
+
+    public V join(K key) throws SQLException {
+        try {
+            return start(key, false).join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new SQLException(cause);
+        }
+    }
+
+    // Requests from now on start a new read rather than join one that began before a change to the key
+    public void forget(K key) {
+        inFlight.remove(key);
+    }
+
+    private CompletableFuture<V> start(K key, boolean async) {
+        requests.incrementAndGet();
+        CompletableFuture<V> created = new CompletableFuture<>();
+        CompletableFuture<V> running = inFlight.putIfAbsent(key, created);
+        if (running != null) {
+            return running;
+        }
+        loads.incrementAndGet();
+        Runnable read = () -> {
+            try {
+                created.complete(loader.load(key));
+            } catch (Throwable e) {
+                failures.incrementAndGet();
+                created.completeExceptionally(e);
+            } finally {
+                inFlight.remove(key, created);
+            }
+        };
+        if (async) {
+            LOADERS.execute(read);
+        } else {
+            read.run();
+        }
+        return created;
+    }
+
+    // Getters
+    public String getName() {
+        return name;
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getLoads() {
+        return loads.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    // Requests answered per database read, 1 when nothing was coalesced
+    public double getRatio() {
+        long l = loads.get();
+        return l == 0 ? 1 : (double) requests.get() / l;
+    }
+}
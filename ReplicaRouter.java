@@ -0,0 +1,213 @@
+package scheduler.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Decides whether a read-only query may go to the read replica (see ConnectionManager.createReadConnection).
+// Two guarantees, both measured with a heartbeat:
+//   bounded staleness  the replica is used only while it has applied every commit made on the primary up to
+//                      ReplicaMaxLagMs ago, otherwise the read goes to the primary
+//   read your writes   a session's reads go to the primary until the replica has caught up with its last write
+// Every process writes its own clock into its row of ReplicationHeartbeat on the primary every
+// ReplicaHeartbeatMs and reads that row back from the replica at most every ReplicaCheckMs. A heartbeat written
+// after a commit is replicated after it, so a replica showing stamp s has every write committed before s, on the
+// same clock the writes here were stamped with.
+public class ReplicaRouter {
+
+    private static final String BEAT = "UPDATE ReplicationHeartbeat SET Stamp = ? WHERE Instance = ?";
+    private static final String FIRST_BEAT = "INSERT INTO ReplicationHeartbeat (Instance, Stamp) VALUES (?, ?)";
+    private static final String FORGET_OLD = "DELETE FROM ReplicationHeartbeat WHERE Stamp < ?";
+    private static final String GET_BEAT = "SELECT Stamp FROM ReplicationHeartbeat WHERE Instance = ?";
+
+    // the session whose command is running on this thread, see bind
+    private static final ThreadLocal<Session> current = new ThreadLocal<>();
+
+    private final ConnectionPool.ConnectionFactory primary;
+    private final ConnectionPool replica;
+    private final long maxLagMillis;
+    private final long checkMillis;
+    private final String instance = UUID.randomUUID().toString();
+    private final ScheduledExecutorService heartbeat;
+
+    // the last time a connection to the primary was given back by any thread of this process
+    private final AtomicLong lastWrite = new AtomicLong(0);
+    // newest heartbeat of this process seen on the replica and when the replica was last asked
+    private volatile long replicaStamp = 0;
+    private volatile long checkedAt = 0;
+    private Connection beatConnection = null;
+
+    private final AtomicLong replicaReads = new AtomicLong();
+    private final AtomicLong staleReads = new AtomicLong();
+    private final AtomicLong ownWriteReads = new AtomicLong();
+    private final AtomicLong heartbeatFailures = new AtomicLong();
+
+    // One session per user connection; a command binds it to the thread it runs on
+    public static class Session {
+        private volatile long lastWrite = 0;
+    }
+
+    public ReplicaRouter(ConnectionPool.ConnectionFactory primary, ConnectionPool replica, long maxLagMillis,
+                         long heartbeatMillis, long checkMillis) {
+        this.primary = primary;
+        this.replica = replica;
+        this.maxLagMillis = maxLagMillis;
+        this.checkMillis = checkMillis;
+        this.heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "replica-heartbeat");
+            t.setDaemon(true);
+            return t;
+        });
+        heartbeat.scheduleWithFixedDelay(this::beat, 0, heartbeatMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public static void bind(Session session) {
+        current.set(session);
+    }
+
+    public static void unbind() {
+        current.remove();
+    }
+
+    // Called when a primary connection is given back: whatever it did may have been a write
+    void wrote() {
+        long now = System.currentTimeMillis();
+        lastWrite.accumulateAndGet(now, Math::max);
+        Session session = current.get();
+        if (session != null) {
+            session.lastWrite = now;
+        }
+    }
+
+    // True if a read may go to the replica: it is within the lag bound and has caught up with the writes the read
+    // must see, those of the bound session, or of the whole process for results kept in caches shared by sessions
+    boolean useReplica(boolean processWide) {
+        Session session = current.get();
+        long mustSee = processWide ? lastWrite.get() : session != null ? session.lastWrite : 0;
+        long now = System.currentTimeMillis();
+        if ((replicaStamp <= mustSee || now - replicaStamp > maxLagMillis) && now - checkedAt >= checkMillis) {
+            check(now);
+        }
+        long stamp = replicaStamp;
+        if (now - stamp > maxLagMillis) {
+            staleReads.incrementAndGet();
+            return false;
+        }
+        if (stamp <= mustSee) {
+            ownWriteReads.incrementAndGet();
+            return false;
+        }
+        replicaReads.incrementAndGet();
+        return true;
+    }
+
+    private synchronized void check(long now) {
+        if (now - checkedAt < checkMillis) {
+            return;
+        }
+        checkedAt = now;
+        Connection con = null;
+        try {
+            con = replica.borrow();
+            try (PreparedStatement statement = con.prepareStatement(GET_BEAT)) {
+                statement.setString(1, instance);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    if (resultSet.next()) {
+                        replicaStamp = Math.max(replicaStamp, resultSet.getLong(1));
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            // treated as lagging until a check succeeds
+            heartbeatFailures.incrementAndGet();
+        } finally {
+            replica.release(con);
+        }
+    }
+
+    // Write this process's clock on the primary, on a connection of its own so it is never counted as a write
+    private void beat() {
+        long now = System.currentTimeMillis();
+        try {
+            if (beatConnection == null) {
+                beatConnection = primary.create();
+                try (PreparedStatement statement = beatConnection.prepareStatement(FORGET_OLD)) {
+                    // rows of processes that stopped a day ago
+                    statement.setLong(1, now - TimeUnit.DAYS.toMillis(1));
+                    statement.executeUpdate();
+                }
+            }
+            try (PreparedStatement statement = beatConnection.prepareStatement(BEAT)) {
+                statement.setLong(1, now);
+                statement.setString(2, instance);
+                if (statement.executeUpdate() > 0) {
+                    return;
+                }
+            }
+            try (PreparedStatement statement = beatConnection.prepareStatement(FIRST_BEAT)) {
+                statement.setString(1, instance);
+                statement.setLong(2, now);
+                statement.executeUpdate();
+            }
+        } catch (SQLException e) {
+            heartbeatFailures.incrementAndGet();
+            close(beatConnection);
+            beatConnection = null;
+        }
+    }
+
+    void shutdown() {
+        heartbeat.shutdownNow();
+        try {
+            heartbeat.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        close(beatConnection);
+        beatConnection = null;
+        replica.close();
+    }
+
+    private static void close(Connection con) {
+        if (con == null) {
+            return;
+        }
+        try {
+            con.close();
+        } catch (SQLException e) {
+            // already broken
+        }
+    }
+
+    // Getters
+    ConnectionPool getReplica() {
+        return replica;
+    }
+
+    // How far behind the primary the replica was at the last check, in milliseconds
+    public long getLagMillis() {
+        return replicaStamp == 0 ? -1 : Math.max(0, checkedAt - replicaStamp);
+    }
+
+    public long getReplicaReads() {
+        return replicaReads.get();
+    }
+
+    public long getStaleReads() {
+        return staleReads.get();
+    }
+
+    public long getOwnWriteReads() {
+        return ownWriteReads.get();
+    }
+
+    public long getHeartbeatFailures() {
+        return heartbeatFailures.get();
+    }
+}
@@ -0,0 +1,174 @@
+package scheduler.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Keeps a second embedded database (H2ReplicaUrl) in step with the primary so that replica routing can be
+// exercised locally: every ReplicaSyncMs it copies the scheduler's tables over in one replica transaction,
+// heartbeat rows read first, so the replica never claims to be newer than the data it holds. A full copy is
+// fine for the data sizes used in tests and soak runs; a real deployment gets its replica from SQL Server.
+public class ReplicationStandIn {
+
+    // parents before children, so that rows can be inserted in this order and deleted in the reverse one
+    private static final String[] TABLES = {"Vaccines", "Patients", "Caregivers", "Availabilities", "Appointments",
+            "Waitlist", "Partitions", "AppointmentsArchive", "AvailabilitiesArchive"};
+    private static final String HEARTBEAT = "ReplicationHeartbeat";
+    private static final int BATCH = 1_000;
+
+    private final ConnectionPool.ConnectionFactory primary;
+    private final ConnectionPool.ConnectionFactory replica;
+    private final ScheduledExecutorService syncer;
+    private Connection from = null;
+    private Connection to = null;
+
+    private final AtomicLong syncs = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile long lastSyncNanos = 0;
+
+    public ReplicationStandIn(ConnectionPool.ConnectionFactory primary, ConnectionPool.ConnectionFactory replica,
+                              long syncMillis) {
+        this.primary = primary;
+        this.replica = replica;
+        this.syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "replication-stand-in");
+            t.setDaemon(true);
+            return t;
+        });
+        syncer.scheduleWithFixedDelay(this::sync, syncMillis, syncMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void sync() {
+        long start = System.nanoTime();
+        try {
+            if (from == null) {
+                from = primary.create();
+                to = replica.create();
+                to.setAutoCommit(false);
+            }
+            List<Object[]> beats = read(from, HEARTBEAT);
+            try (Statement statement = to.createStatement()) {
+                for (int i = TABLES.length - 1; i >= 0; i--) {
+                    statement.executeUpdate("DELETE FROM " + TABLES[i]);
+                }
+                statement.executeUpdate("DELETE FROM " + HEARTBEAT);
+            }
+            for (String table : TABLES) {
+                copy(table);
+            }
+            insert(HEARTBEAT, beats);
+            to.commit();
+            syncs.incrementAndGet();
+            lastSyncNanos = System.nanoTime() - start;
+        } catch (SQLException e) {
+            failures.incrementAndGet();
+            System.out.println("Replication stand-in failed to copy the primary, retrying");
+            e.printStackTrace();
+            close();
+        }
+    }
+
+    private void copy(String table) throws SQLException {
+        try (Statement statement = from.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT * FROM " + table)) {
+            int columns = resultSet.getMetaData().getColumnCount();
+            try (PreparedStatement insert = to.prepareStatement(insertSql(table, columns))) {
+                int rows = 0;
+                while (resultSet.next()) {
+                    for (int c = 1; c <= columns; c++) {
+                        insert.setObject(c, resultSet.getObject(c));
+                    }
+                    insert.addBatch();
+                    if (++rows % BATCH == 0) {
+                        insert.executeBatch();
+                    }
+                }
+                insert.executeBatch();
+            }
+        }
+    }
+
+    private static List<Object[]> read(Connection con, String table) throws SQLException {
+        List<Object[]> rows = new ArrayList<>();
+        try (Statement statement = con.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT * FROM " + table)) {
+            int columns = resultSet.getMetaData().getColumnCount();
+            while (resultSet.next()) {
+                Object[] row = new Object[columns];
+                for (int c = 0; c < columns; c++) {
+                    row[c] = resultSet.getObject(c + 1);
+                }
+                rows.add(row);
+            }
+        }
+        return rows;
+    }
+
+    private void insert(String table, List<Object[]> rows) throws SQLException {
+        if (rows.isEmpty()) {
+            return;
+        }
+        try (PreparedStatement insert = to.prepareStatement(insertSql(table, rows.get(0).length))) {
+            for (Object[] row : rows) {
+                for (int c = 0; c < row.length; c++) {
+                    insert.setObject(c + 1, row[c]);
+                }
+                insert.addBatch();
+            }
+            insert.executeBatch();
+        }
+    }
+
+    private static String insertSql(String table, int columns) {
+        StringBuilder sb = new StringBuilder("INSERT INTO ").append(table).append(" VALUES (");
+        for (int c = 0; c < columns; c++) {
+            sb.append(c == 0 ? "?" : ", ?");
+        }
+        return sb.append(")").toString();
+    }
+
+    private void close() {
+        for (Connection con : new Connection[]{from, to}) {
+            if (con != null) {
+                try {
+                    con.close();
+                } catch (SQLException e) {
+                    // already broken
+                }
+            }
+        }
+        from = null;
+        to = null;
+    }
+
+    void shutdown() {
+        syncer.shutdownNow();
+        try {
+            syncer.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        close();
+    }
+
+    // Getters
+    public long getSyncs() {
+        return syncs.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    public long getLastSyncNanos() {
+        return lastSyncNanos;
+    }
+}
@@ -0,0 +1,668 @@
+package scheduler.model;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.InList;
+import scheduler.journal.Journal;
+import scheduler.journal.JournalEvent;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ReservationEngine {
+
+    private static final String CLAIM_SLOT = "DELETE FROM Availabilities WHERE Time = ? AND cUser = ?";
+    private static final String TAKE_DOSE = "UPDATE Vaccines SET Doses = Doses - 1 WHERE Name = ? AND Doses > 0";
+    private static final String CHECK_VACCINE = "SELECT Doses FROM Vaccines WHERE Name = ?";
+    private static final String TAKE_DOSES = "UPDATE Vaccines SET Doses = Doses - ? WHERE Name = ? AND Doses >= ?";
+    private static final String ADD_APPOINTMENT =
+            "INSERT INTO Appointments (Time, pUser, cUser, vaxName) VALUES (?, ?, ?, ?)";
+    private static final String RELEASE_SLOT = "INSERT INTO Availabilities (Time, cUser) VALUES (?, ?)";
+    private static final String LEAVE_WAITLIST = "DELETE FROM Waitlist WHERE Time = ? AND pUser = ?";
+
+    // SQLSTATE class 40 is transaction rollback; SQL Server reports deadlock victims as error 1205
+    private static final String SERIALIZATION_FAILURE = "40001";
+    private static final int SQLSERVER_DEADLOCK = 1205;
+
+    public enum Status {
+        RESERVED, NO_CAREGIVER, NO_VACCINE, NO_DOSES, SKIPPED
+    }
+
+    // Runs inside a batch's transaction right after a patient was booked; returning false undoes that booking
+    // (the batch reports it as SKIPPED) and moves on to the next patient
+    public interface BookingCheck {
+        boolean booked(Connection con, int index, String caregiver, int appointmentId) throws SQLException;
+    }
+
+    private final AvailabilityIndex availabilityIndex;
+    private final VaccineInventory inventory;
+    private final AssignmentStrategy strategy;
+    private final Journal journal = Journal.getInstance();
+    private final int maxAttempts;
+    private final long baseBackoffMillis;
+
+    private final AtomicLong reservations = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    // slots that were gone by the time we tried to claim them
+    private final AtomicLong conflicts = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    private static final ReservationEngine INSTANCE = new ReservationEngine();
+
+    public ReservationEngine() {
+        this(AvailabilityIndex.getInstance(), VaccineInventory.getInstance(), AssignmentStrategy.fromEnv(), 5, 10);
+    }
+
+    public ReservationEngine(AvailabilityIndex availabilityIndex, VaccineInventory inventory,
+                             AssignmentStrategy strategy, int maxAttempts, long baseBackoffMillis) {
+        if (maxAttempts <= 0) {
+            throw new IllegalArgumentException("maxAttempts must be positive!");
+        }
+        this.availabilityIndex = availabilityIndex;
+        this.inventory = inventory;
+        this.strategy = strategy;
+        this.maxAttempts = maxAttempts;
+        this.baseBackoffMillis = baseBackoffMillis;
+    }
+
+    // The engine shared by every session in this process
+    public static ReservationEngine getInstance() {
+        return INSTANCE;
+    }
+
+    // Book a free caregiver on the given date for the patient, as one transaction on one connection.
+    // The strategy decides which caregiver is tried first.
+    // Deadlocks and serialization failures are retried with jittered exponential backoff.
+    public Result reserve(Date d, String vaxName, String patient) throws SQLException {
+        long start = System.nanoTime();
+        int attempt = 1;
+        while (true) {
+            try {
+                Result result = attemptReserve(d, vaxName, patient, attempt, start);
+                if (result.getStatus() == Status.RESERVED) {
+                    // committed and the connection is back in the pool; only the reply waits for the journal
+                    journal.record(JournalEvent.reserved(result.getAppointmentId(), d, patient,
+                            result.getCaregiver(), vaxName));
+                }
+                record(result.getLatencyNanos());
+                return result;
+            } catch (SQLException e) {
+                if (attempt >= maxAttempts || !isRetryable(e)) {
+                    record(System.nanoTime() - start);
+                    throw e;
+                }
+                retries.incrementAndGet();
+                backoff(attempt);
+                attempt++;
+            }
+        }
+    }
+
+    // Book the patients, in order, on the given date in one transaction on one connection, each with the next
+    // caregiver the strategy picks. Stops at the first patient for whom there is no slot or no dose left; that
+    // patient's result carries the reason and the patients after it get none. Retried like reserve.
+    public List<Result> reserveAll(Date d, String vaxName, List<String> patients, BookingCheck check)
+            throws SQLException {
+        long start = System.nanoTime();
+        int attempt = 1;
+        while (true) {
+            try {
+                List<Result> results = attemptReserveAll(d, vaxName, patients, check, attempt, start);
+                List<JournalEvent> events = new ArrayList<>();
+                for (int i = 0; i < results.size(); i++) {
+                    Result result = results.get(i);
+                    if (result.getStatus() == Status.RESERVED) {
+                        events.add(JournalEvent.reserved(result.getAppointmentId(), d, patients.get(i),
+                                result.getCaregiver(), vaxName));
+                        record(result.getLatencyNanos());
+                    }
+                }
+                journal.record(events);
+                return results;
+            } catch (SQLException e) {
+                if (attempt >= maxAttempts || !isRetryable(e)) {
+                    throw e;
+                }
+                retries.incrementAndGet();
+                backoff(attempt);
+                attempt++;
+            }
+        }
+    }
+
+    // Book a group of patients on the given date with one batch of slot claims, one dose update and one batch of
+    // inserts, in one transaction. Unless partial, either every patient is booked or none is and each result
+    // carries the reason; with partial, as many patients as there are slots and doses are booked, in order, and
+    // the rest get the reason they were not. Patients must exist. Retried like reserve.
+    public List<Result> reserveGroup(Date d, String vaxName, List<String> patients, boolean partial)
+            throws SQLException {
+        long start = System.nanoTime();
+        int attempt = 1;
+        while (true) {
+            try {
+                List<Result> results = attemptReserveGroup(d, vaxName, patients, partial, attempt, start);
+                List<JournalEvent> events = new ArrayList<>();
+                for (int i = 0; i < results.size(); i++) {
+                    Result result = results.get(i);
+                    if (result.getStatus() == Status.RESERVED) {
+                        events.add(JournalEvent.reserved(result.getAppointmentId(), d, patients.get(i),
+                                result.getCaregiver(), vaxName));
+                        record(result.getLatencyNanos());
+                    }
+                }
+                journal.record(events);
+                return results;
+            } catch (SQLException e) {
+                if (attempt >= maxAttempts || !isRetryable(e)) {
+                    throw e;
+                }
+                retries.incrementAndGet();
+                backoff(attempt);
+                attempt++;
+            }
+        }
+    }
+
+    private List<Result> attemptReserveGroup(Date d, String vaxName, List<String> patients, boolean partial,
+                                             int attempt, long start) throws SQLException {
+        // answer the common failures from memory, before a connection is borrowed
+        NavigableSet<String> candidates = availabilityIndex.caregiversOn(d);
+        int wanted = Math.min(patients.size(), candidates.size());
+        if (wanted == 0 || !partial && wanted < patients.size()) {
+            return unbooked(patients.size(), 0, Status.NO_CAREGIVER, attempt, start);
+        }
+        int taken = inventory.takeUpTo(vaxName, wanted);
+        if (taken == 0 || !partial && taken < patients.size()) {
+            inventory.giveBack(vaxName, taken);
+            Status status = inventory.getDoses(vaxName) == null ? Status.NO_VACCINE : Status.NO_DOSES;
+            return unbooked(patients.size(), 0, status, attempt, start);
+        }
+        int booked = 0;
+        boolean stale = false;
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try {
+            con.setAutoCommit(false);
+            List<String> claimed = claimSlots(con, d, candidates, taken);
+            if (claimed.isEmpty() || !partial && claimed.size() < patients.size()) {
+                con.rollback();
+                return unbooked(patients.size(), 0, Status.NO_CAREGIVER, attempt, start);
+            }
+            Status status = takeDoses(con, vaxName, claimed.size());
+            int left = status == Status.NO_DOSES && partial ? dosesLeft(con, vaxName) : 0;
+            if (left > 0) {
+                // the database holds fewer doses than this instance counted: book as many patients as it has
+                // doses for and put the other claimed slots back
+                stale = true;
+                int n = Math.min(left, claimed.size());
+                releaseSlots(con, d, claimed.subList(n, claimed.size()));
+                claimed = new ArrayList<>(claimed.subList(0, n));
+                status = takeDoses(con, vaxName, n);
+            }
+            if (status != Status.RESERVED) {
+                con.rollback();
+                // another instance changed this vaccine, re-read it on next use
+                inventory.invalidate(vaxName);
+                return unbooked(patients.size(), 0, status, attempt, start);
+            }
+            int[] ids = insertAppointments(con, d, patients.subList(0, claimed.size()), claimed, vaxName);
+            leaveWaitlist(con, d, patients.subList(0, claimed.size()));
+            con.commit();
+            booked = claimed.size();
+            Waitlist.getInstance().booked(d, patients.subList(0, booked));
+            long nanos = System.nanoTime() - start;
+            List<Result> results = new ArrayList<>(patients.size());
+            for (int i = 0; i < booked; i++) {
+                availabilityIndex.removed(d, claimed.get(i));
+                strategy.booked(claimed.get(i));
+                results.add(new Result(Status.RESERVED, ids[i], claimed.get(i), attempt, nanos));
+            }
+            // the patients left over ran out of slots first, unless it was the doses that ran short
+            Status rest = !stale && (booked < taken || taken == wanted) ? Status.NO_CAREGIVER : Status.NO_DOSES;
+            results.addAll(unbooked(patients.size(), booked, rest, attempt, start));
+            return results;
+        } catch (SQLException e) {
+            rollbackQuietly(con);
+            throw e;
+        } finally {
+            cm.closeConnection();
+            inventory.giveBack(vaxName, taken - booked);
+            if (stale) {
+                // re-read once this transaction is no longer in flight
+                inventory.invalidate(vaxName);
+            }
+        }
+    }
+
+    // Results for the patients from index from on, none of whom was booked
+    private static List<Result> unbooked(int patients, int from, Status status, int attempt, long start) {
+        List<Result> results = new ArrayList<>();
+        long nanos = System.nanoTime() - start;
+        for (int i = from; i < patients; i++) {
+            results.add(new Result(status, -1, null, attempt, nanos));
+        }
+        return results;
+    }
+
+    private List<Result> attemptReserveAll(Date d, String vaxName, List<String> patients, BookingCheck check,
+                                           int attempt, long start) throws SQLException {
+        List<Result> results = new ArrayList<>();
+        // our own copy, the caregivers booked or lost to other sessions are dropped from it as we go
+        NavigableSet<String> candidates = new TreeSet<>(availabilityIndex.caregiversOn(d));
+        List<String> claimed = new ArrayList<>();
+        int taken = 0;
+        int reserved = 0;
+        boolean committed = false;
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try {
+            con.setAutoCommit(false);
+            for (int i = 0; i < patients.size(); i++) {
+                if (candidates.isEmpty()) {
+                    results.add(new Result(Status.NO_CAREGIVER, -1, null, attempt, System.nanoTime() - start));
+                    break;
+                }
+                if (!inventory.tryTake(vaxName)) {
+                    Status status = inventory.getDoses(vaxName) == null ? Status.NO_VACCINE : Status.NO_DOSES;
+                    results.add(new Result(status, -1, null, attempt, System.nanoTime() - start));
+                    break;
+                }
+                taken++;
+                Savepoint savepoint = con.setSavepoint();
+                String cUser = claimSlot(con, d, candidates, candidates);
+                if (cUser == null) {
+                    results.add(new Result(Status.NO_CAREGIVER, -1, null, attempt, System.nanoTime() - start));
+                    break;
+                }
+                candidates.remove(cUser);
+                Status status = takeDose(con, vaxName);
+                if (status != Status.RESERVED) {
+                    con.rollback(savepoint);
+                    inventory.invalidate(vaxName);
+                    results.add(new Result(status, -1, null, attempt, System.nanoTime() - start));
+                    break;
+                }
+                int id = insertAppointment(con, d, patients.get(i), cUser, vaxName);
+                if (check != null && !check.booked(con, i, cUser, id)) {
+                    con.rollback(savepoint);
+                    candidates.add(cUser);
+                    results.add(new Result(Status.SKIPPED, -1, null, attempt, System.nanoTime() - start));
+                    continue;
+                }
+                claimed.add(cUser);
+                reserved++;
+                results.add(new Result(Status.RESERVED, id, cUser, attempt, System.nanoTime() - start));
+            }
+            con.commit();
+            committed = true;
+            for (String cUser : claimed) {
+                availabilityIndex.removed(d, cUser);
+                strategy.booked(cUser);
+            }
+            return results;
+        } catch (SQLException e) {
+            rollbackQuietly(con);
+            throw e;
+        } finally {
+            cm.closeConnection();
+            for (int i = committed ? reserved : 0; i < taken; i++) {
+                inventory.giveBack(vaxName);
+            }
+        }
+    }
+
+    private Result attemptReserve(Date d, String vaxName, String patient, int attempt, long start)
+            throws SQLException {
+        // answer the common failures from memory, before a connection is borrowed
+        NavigableSet<String> candidates = availabilityIndex.caregiversOn(d);
+        if (candidates.isEmpty()) {
+            return new Result(Status.NO_CAREGIVER, -1, null, attempt, System.nanoTime() - start);
+        }
+        if (!inventory.tryTake(vaxName)) {
+            Status status = inventory.getDoses(vaxName) == null ? Status.NO_VACCINE : Status.NO_DOSES;
+            return new Result(status, -1, null, attempt, System.nanoTime() - start);
+        }
+        boolean reserved = false;
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try {
+            con.setAutoCommit(false);
+            Status status;
+            String cUser = claimSlot(con, d, candidates, null);
+            if (cUser == null) {
+                status = Status.NO_CAREGIVER;
+            } else {
+                status = takeDose(con, vaxName);
+            }
+            if (status != Status.RESERVED) {
+                // puts back the slot we may have claimed
+                con.rollback();
+                if (status != Status.NO_CAREGIVER) {
+                    // another instance changed this vaccine, re-read it on next use
+                    inventory.invalidate(vaxName);
+                }
+                return new Result(status, -1, null, attempt, System.nanoTime() - start);
+            }
+            int id = insertAppointment(con, d, patient, cUser, vaxName);
+            leaveWaitlist(con, d, List.of(patient));
+            con.commit();
+            reserved = true;
+            Waitlist.getInstance().booked(d, List.of(patient));
+            availabilityIndex.removed(d, cUser);
+            strategy.booked(cUser);
+            return new Result(Status.RESERVED, id, cUser, attempt, System.nanoTime() - start);
+        } catch (SQLException e) {
+            rollbackQuietly(con);
+            throw e;
+        } finally {
+            cm.closeConnection();
+            if (!reserved) {
+                inventory.giveBack(vaxName);
+            }
+        }
+    }
+
+    // Take the first candidate slot, in the strategy's order, that is still free; the delete only succeeds for
+    // one of several concurrent reservations, the others move on to their next caregiver. Caregivers found taken
+    // are also removed from gone when it is given.
+    private String claimSlot(Connection con, Date d, NavigableSet<String> candidates, Set<String> gone)
+            throws SQLException {
+        try (PreparedStatement claim = con.prepareStatement(CLAIM_SLOT)) {
+            for (String cUser : strategy.order(d, candidates)) {
+                claim.setDate(1, d);
+                claim.setString(2, cUser);
+                if (claim.executeUpdate() > 0) {
+                    return cUser;
+                }
+                // taken by another session or instance since the index last saw it
+                conflicts.incrementAndGet();
+                availabilityIndex.removed(d, cUser);
+                if (gone != null) {
+                    gone.remove(cUser);
+                }
+            }
+        }
+        return null;
+    }
+
+    // Claim up to n of the candidate slots, in the strategy's order, with one batch of deletes per round; slots
+    // found taken are dropped and the next candidates tried in another round until n are claimed or none are left
+    private List<String> claimSlots(Connection con, Date d, NavigableSet<String> candidates, int n)
+            throws SQLException {
+        List<String> order = strategy.order(d, candidates);
+        List<String> claimed = new ArrayList<>(n);
+        int next = 0;
+        try (PreparedStatement claim = con.prepareStatement(CLAIM_SLOT)) {
+            while (claimed.size() < n && next < order.size()) {
+                int end = Math.min(order.size(), next + n - claimed.size());
+                for (int i = next; i < end; i++) {
+                    claim.setDate(1, d);
+                    claim.setString(2, order.get(i));
+                    claim.addBatch();
+                }
+                int[] counts = claim.executeBatch();
+                for (int i = next; i < end; i++) {
+                    if (counts[i - next] > 0) {
+                        claimed.add(order.get(i));
+                    } else {
+                        conflicts.incrementAndGet();
+                        availabilityIndex.removed(d, order.get(i));
+                    }
+                }
+                next = end;
+            }
+        }
+        return claimed;
+    }
+
+    private Status takeDoses(Connection con, String vaxName, int doses) throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement(TAKE_DOSES)) {
+            statement.setInt(1, doses);
+            statement.setString(2, vaxName);
+            statement.setInt(3, doses);
+            if (statement.executeUpdate() > 0) {
+                return Status.RESERVED;
+            }
+        }
+        try (PreparedStatement statement = con.prepareStatement(CHECK_VACCINE)) {
+            statement.setString(1, vaxName);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() ? Status.NO_DOSES : Status.NO_VACCINE;
+            }
+        }
+    }
+
+    // The doses the database holds for the vaccine, 0 when there is no such vaccine
+    private static int dosesLeft(Connection con, String vaxName) throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement(CHECK_VACCINE)) {
+            statement.setString(1, vaxName);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() ? resultSet.getInt("Doses") : 0;
+            }
+        }
+    }
+
+    // Put back slots claimed in this transaction that are not going to be booked after all
+    private static void releaseSlots(Connection con, Date d, List<String> caregivers) throws SQLException {
+        if (caregivers.isEmpty()) {
+            return;
+        }
+        try (PreparedStatement statement = con.prepareStatement(RELEASE_SLOT)) {
+            for (String cUser : caregivers) {
+                statement.setDate(1, d);
+                statement.setString(2, cUser);
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+    }
+
+    private Status takeDose(Connection con, String vaxName) throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement(TAKE_DOSE)) {
+            statement.setString(1, vaxName);
+            if (statement.executeUpdate() > 0) {
+                return Status.RESERVED;
+            }
+        }
+        // nothing was decremented: tell an unknown vaccine apart from an empty one
+        try (PreparedStatement statement = con.prepareStatement(CHECK_VACCINE)) {
+            statement.setString(1, vaxName);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() ? Status.NO_DOSES : Status.NO_VACCINE;
+            }
+        }
+    }
+
+    private int insertAppointment(Connection con, Date d, String patient, String cUser, String vaxName)
+            throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement(ADD_APPOINTMENT, Statement.RETURN_GENERATED_KEYS)) {
+            statement.setDate(1, d);
+            statement.setString(2, patient);
+            statement.setString(3, cUser);
+            statement.setString(4, vaxName);
+            statement.executeUpdate();
+            try (ResultSet keys = statement.getGeneratedKeys()) {
+                if (!keys.next()) {
+                    throw new SQLException("No appointment id was generated");
+                }
+                return keys.getInt(1);
+            }
+        }
+    }
+
+    // A patient booked on a date no longer waits for it, whichever line they joined; deleting their rows in the
+    // booking's transaction keeps the waitlist from booking them a second time
+    private static void leaveWaitlist(Connection con, Date d, List<String> patients) throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement(LEAVE_WAITLIST)) {
+            for (String patient : patients) {
+                statement.setDate(1, d);
+                statement.setString(2, patient);
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+    }
+
+    // Insert one appointment per patient, patient i with caregiver i, as one batch; returns their ids in order
+    private int[] insertAppointments(Connection con, Date d, List<String> patients, List<String> caregivers,
+                                     String vaxName) throws SQLException {
+        int[] ids = new int[patients.size()];
+        int found = 0;
+        try (PreparedStatement statement = con.prepareStatement(ADD_APPOINTMENT, Statement.RETURN_GENERATED_KEYS)) {
+            for (int i = 0; i < patients.size(); i++) {
+                statement.setDate(1, d);
+                statement.setString(2, patients.get(i));
+                statement.setString(3, caregivers.get(i));
+                statement.setString(4, vaxName);
+                statement.addBatch();
+            }
+            statement.executeBatch();
+            try (ResultSet keys = statement.getGeneratedKeys()) {
+                while (found < ids.length && keys.next()) {
+                    ids[found++] = keys.getInt(1);
+                }
+            }
+        }
+        if (found < ids.length) {
+            // the driver only reports the last key of a batch (SQL Server's does); each caregiver's slot on d was
+            // claimed in this transaction, so its newest appointment on d is the one just inserted
+            readBackIds(con, d, caregivers, ids);
+        }
+        return ids;
+    }
+
+    private static void readBackIds(Connection con, Date d, List<String> caregivers, int[] ids) throws SQLException {
+        int from = 0;
+        for (List<String> chunk : InList.chunks(caregivers)) {
+            Map<String, Integer> newest = new HashMap<>();
+            try (PreparedStatement statement = con.prepareStatement("SELECT cUser, MAX(Id) FROM Appointments"
+                    + " WHERE Time = ? AND cUser IN " + InList.placeholders(chunk.size()) + " GROUP BY cUser")) {
+                statement.setDate(1, d);
+                InList.bind(statement, 2, chunk);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        newest.put(resultSet.getString(1), resultSet.getInt(2));
+                    }
+                }
+            }
+            for (int i = 0; i < chunk.size(); i++) {
+                Integer id = newest.get(chunk.get(i));
+                if (id == null) {
+                    throw new SQLException("No appointment id found for " + chunk.get(i));
+                }
+                ids[from + i] = id;
+            }
+            from += chunk.size();
+        }
+    }
+
+    static boolean isRetryable(SQLException e) {
+        for (SQLException cur = e; cur != null; cur = cur.getNextException()) {
+            if (SERIALIZATION_FAILURE.equals(cur.getSQLState()) || cur.getErrorCode() == SQLSERVER_DEADLOCK) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void backoff(int attempt) throws SQLException {
+        long ceiling = baseBackoffMillis << Math.min(attempt - 1, 6);
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(ceiling + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while retrying reservation");
+        }
+    }
+
+    private static void rollbackQuietly(Connection con) {
+        try {
+            con.rollback();
+        } catch (SQLException e) {
+            System.out.println("Error while rolling back reservation");
+        }
+    }
+
+    private void record(long nanos) {
+        reservations.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        maxNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    // Getters
+    public long getReservations() {
+        return reservations.get();
+    }
+
+    public long getRetries() {
+        return retries.get();
+    }
+
+    public long getConflicts() {
+        return conflicts.get();
+    }
+
+    public AssignmentStrategy getStrategy() {
+        return strategy;
+    }
+
+    public long getMeanLatencyNanos() {
+        long n = reservations.get();
+        return n == 0 ? 0 : totalNanos.get() / n;
+    }
+
+    public long getMaxLatencyNanos() {
+        return maxNanos.get();
+    }
+
+    public static class Result {
+        private final Status status;
+        private final int appointmentId;
+        private final String caregiver;
+        private final int attempts;
+        private final long latencyNanos;
+
+        private Result(Status status, int appointmentId, String caregiver, int attempts, long latencyNanos) {
+            this.status = status;
+            this.appointmentId = appointmentId;
+            this.caregiver = caregiver;
+            this.attempts = attempts;
+            this.latencyNanos = latencyNanos;
+        }
+
+        // Getters
+        public Status getStatus() {
+            return status;
+        }
+
+        public int getAppointmentId() {
+            return appointmentId;
+        }
+
+        public String getCaregiver() {
+            return caregiver;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+
+        public long getLatencyNanos() {
+            return latencyNanos;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package scheduler;
+
+import scheduler.db.ConnectionManager;
+import scheduler.journal.Journal;
+import scheduler.metrics.MetricsEndpoint;
+import scheduler.util.Env;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+// Serves the scheduler's command grammar to many clients at once over a local TCP line protocol.
+// Every connection gets its own Scheduler session on a virtual thread, so an idle terminal only
+// costs a parked virtual thread and a socket.
+public class SchedulerServer {
+
+    private final int port;
+    private final Semaphore sessionPermits;
+    private final Semaphore operationPermits;
+
+    public SchedulerServer(int port, int maxSessions, int maxInFlightOperations) {
+        if (maxSessions <= 0 || maxInFlightOperations <= 0) {
+            throw new IllegalArgumentException("Limits must be positive!");
+        }
+        this.port = port;
+        this.sessionPermits = new Semaphore(maxSessions);
+        this.operationPermits = new Semaphore(maxInFlightOperations, true);
+    }
+
+    public static void main(String[] args) {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : Env.getInt("SchedulerPort", 5414);
+        SchedulerServer server = new SchedulerServer(port,
+                Env.getInt("SchedulerMaxSessions", 10_000),
+                Env.getInt("SchedulerMaxInFlight", 64));
+        Scheduler.loadCaches();
+        MetricsEndpoint.startFromEnv();
+        try {
+            server.serve();
+        } catch (IOException e) {
+            System.out.println("Error while running scheduler server");
+            e.printStackTrace();
+        } finally {
+            MetricsEndpoint.stop();
+            Journal.getInstance().close();
+            ConnectionManager.shutdown();
+        }
+    }
+
+    public void serve() throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(port, 512, InetAddress.getLoopbackAddress());
+             ExecutorService sessions = Executors.newThreadPerTaskExecutor(
+                     Thread.ofVirtual().name("scheduler-session-", 0).factory())) {
+            System.out.println("Scheduler server listening on " + serverSocket.getLocalSocketAddress());
+            while (!serverSocket.isClosed()) {
+                Socket socket = serverSocket.accept();
+                if (!sessionPermits.tryAcquire()) {
+                    reject(socket);
+                    continue;
+                }
+                sessions.submit(() -> {
+                    try {
+                        runSession(socket);
+                    } finally {
+                        sessionPermits.release();
+                    }
+                });
+            }
+        }
+    }
+
+    private void runSession(Socket socket) {
+        try (Socket s = socket;
+             BufferedReader in = new BufferedReader(
+                     new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+             PrintStream out = new PrintStream(s.getOutputStream(), true, StandardCharsets.UTF_8)) {
+            new Scheduler(in, out, operationPermits).run();
+        } catch (IOException e) {
+            System.out.println("Session ended with error: " + e.getMessage());
+        }
+    }
+
+    private static void reject(Socket socket) {
+        try (Socket s = socket;
+             PrintStream out = new PrintStream(s.getOutputStream(), true, StandardCharsets.UTF_8)) {
+            out.println("Too many sessions, please try again later!");
+        } catch (IOException e) {
+            // the client is gone already
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package scheduler.db;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+// Brings a database created from database.sql (version 1) up to the schema the code expects.
+// Statements that differ between SQL Server and the embedded H2 backend are given once per backend.
+// Every migration runs in its own transaction together with the row that records it in SchemaVersions,
+// so a failed migration leaves the database at the previous version and can simply be rerun.
+public class SchemaMigrator {
+
+    private static final List<Migration> MIGRATIONS = Collections.unmodifiableList(Arrays.asList(
+            new Migration(2, "import checkpoints")
+                    .all("CREATE TABLE ImportCheckpoints (Name varchar(255) NOT NULL, Lines BIGINT, PRIMARY KEY (Name))"),
+            new Migration(3, "indexes for the scheduler's query shapes")
+                    // duplicate slots have to go before (Time, cUser) can be made unique
+                    .sqlServer("WITH numbered AS (SELECT ROW_NUMBER() OVER (PARTITION BY Time, cUser ORDER BY Time) AS n"
+                            + " FROM Availabilities) DELETE FROM numbered WHERE n > 1")
+                    .h2("DELETE FROM Availabilities WHERE _ROWID_ NOT IN"
+                            + " (SELECT MIN(_ROWID_) FROM Availabilities GROUP BY Time, cUser)")
+                    .all("DELETE FROM Availabilities WHERE Time IS NULL OR cUser IS NULL")
+                    // WHERE Time = ? ORDER BY cUser, and the conditional DELETE that claims a slot;
+                    // a unique constraint rather than a key, since cUser is pinned nullable by its foreign key
+                    .sqlServer("ALTER TABLE Availabilities ADD CONSTRAINT UQ_Availabilities_Time_cUser"
+                            + " UNIQUE CLUSTERED (Time, cUser)")
+                    .h2("ALTER TABLE Availabilities ADD CONSTRAINT UQ_Availabilities_Time_cUser UNIQUE (Time, cUser)")
+                    // a caregiver's own slots in a date range (bulk upload duplicate check)
+                    .all("CREATE INDEX IX_Availabilities_cUser_Time ON Availabilities (cUser, Time)")
+                    // show_appointments keyset pages for caregivers and patients
+                    .sqlServer("CREATE INDEX IX_Appointments_cUser_Id ON Appointments (cUser, Id)"
+                            + " INCLUDE (Time, pUser, vaxName)")
+                    .sqlServer("CREATE INDEX IX_Appointments_pUser_Id ON Appointments (pUser, Id)"
+                            + " INCLUDE (Time, cUser, vaxName)")
+                    .h2("CREATE INDEX IX_Appointments_cUser_Id ON Appointments (cUser, Id)")
+                    .h2("CREATE INDEX IX_Appointments_pUser_Id ON Appointments (pUser, Id)"),
+            new Migration(4, "password hash version and cost")
+                    // existing rows were hashed by Util.generateHash, see PasswordHasher
+                    .all("ALTER TABLE Patients ADD HashVersion INT DEFAULT 1 NOT NULL")
+                    .all("ALTER TABLE Patients ADD HashCost INT DEFAULT 10 NOT NULL")
+                    .all("ALTER TABLE Caregivers ADD HashVersion INT DEFAULT 1 NOT NULL")
+                    .all("ALTER TABLE Caregivers ADD HashCost INT DEFAULT 10 NOT NULL"),
+            new Migration(5, "waitlist")
+                    // patients waiting for a slot and a dose on a date, booked by scheduler.model.Waitlist
+                    .all("CREATE TABLE Waitlist (Id INT IDENTITY(1,1), Time date NOT NULL,"
+                            + " vaxName varchar(255) NOT NULL REFERENCES Vaccines(Name),"
+                            + " pUser varchar(255) NOT NULL REFERENCES Patients(Username),"
+                            + " Priority INT DEFAULT 0 NOT NULL, Requested datetime DEFAULT CURRENT_TIMESTAMP NOT NULL,"
+                            + " PRIMARY KEY (Id))")
+                    .all("CREATE UNIQUE INDEX UQ_Waitlist_Time_vaxName_pUser ON Waitlist (Time, vaxName, pUser)"),
+            new Migration(6, "monthly archive tier")
+                    // closed months moved out of the hot tables by scheduler.db.MonthlyPartitions
+                    .all("CREATE TABLE Partitions (MonthKey INT NOT NULL, State varchar(16) NOT NULL,"
+                            + " Appointments BIGINT DEFAULT 0 NOT NULL, Availabilities BIGINT DEFAULT 0 NOT NULL,"
+                            + " ChangedAt datetime DEFAULT CURRENT_TIMESTAMP NOT NULL, PRIMARY KEY (MonthKey))")
+                    // clustered on the month first, so every archived month is stored and read as one range
+                    .all("CREATE TABLE AppointmentsArchive (MonthKey INT NOT NULL, Id INT NOT NULL, Time date,"
+                            + " pUser varchar(255), cUser varchar(255), vaxName varchar(255),"
+                            + " PRIMARY KEY (MonthKey, Id))")
+                    .all("CREATE TABLE AvailabilitiesArchive (MonthKey INT NOT NULL, Time date NOT NULL,"
+                            + " cUser varchar(255) NOT NULL, PRIMARY KEY (MonthKey, Time, cUser))")
+                    // show_appointments over whole history (keyset on Id) and over a range of months
+                    .sqlServer("CREATE INDEX IX_AppointmentsArchive_cUser_Id ON AppointmentsArchive (cUser, Id)"
+                            + " INCLUDE (Time, pUser, vaxName)")
+                    .sqlServer("CREATE INDEX IX_AppointmentsArchive_pUser_Id ON AppointmentsArchive (pUser, Id)"
+                            + " INCLUDE (Time, cUser, vaxName)")
+                    .sqlServer("CREATE INDEX IX_AppointmentsArchive_cUser_Month ON AppointmentsArchive"
+                            + " (cUser, MonthKey, Id) INCLUDE (Time, pUser, vaxName)")
+                    .sqlServer("CREATE INDEX IX_AppointmentsArchive_pUser_Month ON AppointmentsArchive"
+                            + " (pUser, MonthKey, Id) INCLUDE (Time, cUser, vaxName)")
+                    .h2("CREATE INDEX IX_AppointmentsArchive_cUser_Id ON AppointmentsArchive (cUser, Id)")
+                    .h2("CREATE INDEX IX_AppointmentsArchive_pUser_Id ON AppointmentsArchive (pUser, Id)")
+                    .h2("CREATE INDEX IX_AppointmentsArchive_cUser_Month ON AppointmentsArchive (cUser, MonthKey, Id)")
+                    .h2("CREATE INDEX IX_AppointmentsArchive_pUser_Month ON AppointmentsArchive (pUser, MonthKey, Id)")
+                    // the archiver moves one day at a time
+                    .all("CREATE INDEX IX_Appointments_Time ON Appointments (Time)"),
+            new Migration(7, "replication heartbeat")
+                    // each process's clock as last written on the primary, read back from the replica by ReplicaRouter
+                    .all("CREATE TABLE ReplicationHeartbeat (Instance varchar(64) NOT NULL, Stamp BIGINT NOT NULL,"
+                            + " PRIMARY KEY (Instance))")
+    ));
+
+    public static void main(String[] args) {
+        int target = args.length > 0 ? Integer.parseInt(args[0]) : latestVersion();
+        ConnectionManager cm = new ConnectionManager();
+        try {
+            Connection con = cm.createConnection();
+            int from = currentVersion(con);
+            int to = migrate(con, target);
+            System.out.println("Schema at version " + to + (to == from ? " (up to date)" : " (was " + from + ")"));
+        } catch (SQLException e) {
+            System.out.println("Error occurred when migrating the schema");
+            e.printStackTrace();
+        } finally {
+            cm.closeConnection();
+            ConnectionManager.shutdown();
+        }
+    }
+
+    public static int latestVersion() {
+        return MIGRATIONS.get(MIGRATIONS.size() - 1).version;
+    }
+
+    // Apply every migration up to and including the target version, returns the resulting version
+    public static int migrate(Connection con, int target) throws SQLException {
+        ensureVersionTable(con);
+        int version = currentVersion(con);
+        for (Migration migration : MIGRATIONS) {
+            if (migration.version <= version || migration.version > target) {
+                continue;
+            }
+            boolean autoCommit = con.getAutoCommit();
+            con.setAutoCommit(false);
+            try (Statement statement = con.createStatement()) {
+                for (String sql : migration.statements.get(ConnectionManager.getBackend())) {
+                    statement.execute(sql);
+                }
+                try (PreparedStatement record = con.prepareStatement(
+                        "INSERT INTO SchemaVersions (Version, Description) VALUES (?, ?)")) {
+                    record.setInt(1, migration.version);
+                    record.setString(2, migration.description);
+                    record.executeUpdate();
+                }
+                con.commit();
+            } catch (SQLException e) {
+                con.rollback();
+                throw new SQLException("Migration " + migration.version + " (" + migration.description
+                        + ") failed", e);
+            } finally {
+                con.setAutoCommit(autoCommit);
+            }
+            version = migration.version;
+            System.out.println("Applied migration " + version + ": " + migration.description);
+        }
+        return version;
+    }
+
+    public static int currentVersion(Connection con) throws SQLException {
+        if (!tableExists(con, "SchemaVersions")) {
+            return 1;
+        }
+        try (Statement statement = con.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT MAX(Version) FROM SchemaVersions")) {
+            resultSet.next();
+            int version = resultSet.getInt(1);
+            return resultSet.wasNull() ? 1 : version;
+        }
+    }
+
+    private static void ensureVersionTable(Connection con) throws SQLException {
+        if (tableExists(con, "SchemaVersions")) {
+            return;
+        }
+        try (Statement statement = con.createStatement()) {
+            statement.execute("CREATE TABLE SchemaVersions (Version INT NOT NULL, Description varchar(255),"
+                    + " AppliedAt datetime DEFAULT CURRENT_TIMESTAMP, PRIMARY KEY (Version))");
+        }
+    }
+
+    private static boolean tableExists(Connection con, String table) throws SQLException {
+        DatabaseMetaData meta = con.getMetaData();
+        for (String name : new String[]{table, table.toUpperCase(), table.toLowerCase()}) {
+            try (ResultSet resultSet = meta.getTables(con.getCatalog(), null, name, new String[]{"TABLE"})) {
+                if (resultSet.next()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static class Migration {
+        private final int version;
+        private final String description;
+        private final Map<ConnectionManager.Backend, List<String>> statements =
+                new EnumMap<>(ConnectionManager.Backend.class);
+
+        private Migration(int version, String description) {
+            this.version = version;
+            this.description = description;
+            for (ConnectionManager.Backend backend : ConnectionManager.Backend.values()) {
+                statements.put(backend, new ArrayList<>());
+            }
+        }
+
+        private Migration all(String sql) {
+            for (List<String> list : statements.values()) {
+                list.add(sql);
+            }
+            return this;
+        }
+
+        private Migration sqlServer(String sql) {
+            statements.get(ConnectionManager.Backend.SQLSERVER).add(sql);
+            return this;
+        }
+
+        private Migration h2(String sql) {
+            statements.get(ConnectionManager.Backend.H2).add(sql);
+            return this;
+        }
+    }
+}
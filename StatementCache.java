@@ -0,0 +1,236 @@
+package scheduler.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Keeps the prepared statements of one pooled connection open between calls, keyed by their SQL text, so that
+// the server parses and plans each query once per connection instead of once per command.
+// con.prepareStatement(sql) hands out a cached statement; closing it clears its parameters and puts it back
+// instead of closing it. The least recently used statements are closed once there are more than capacity.
+// A pooled connection is used by one thread at a time, so the cache itself needs no locking.
+public class StatementCache implements InvocationHandler {
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong evictions = new AtomicLong();
+    private static final AtomicLong leaked = new AtomicLong();
+
+    private final Connection con;
+    private final int capacity;
+    // in access order, the least recently used statement first
+    private final LinkedHashMap<String, CachedStatement> statements = new LinkedHashMap<>(16, 0.75f, true);
+    private Connection proxy;
+
+    private StatementCache(Connection con, int capacity) {
+        this.con = con;
+        this.capacity = capacity;
+    }
+
+    static Connection wrap(Connection con, int capacity) {
+        StatementCache cache = new StatementCache(con, capacity);
+        cache.proxy = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, cache);
+        return cache.proxy;
+    }
+
+    // Put back statements the borrower forgot to close, returns how many there were
+    static int reclaim(Connection con) {
+        if (con == null || !Proxy.isProxyClass(con.getClass())
+                || !(Proxy.getInvocationHandler(con) instanceof StatementCache)) {
+            return 0;
+        }
+        StatementCache cache = (StatementCache) Proxy.getInvocationHandler(con);
+        int count = 0;
+        for (CachedStatement cached : new ArrayList<>(cache.statements.values())) {
+            if (cached.handle != null) {
+                cached.handle.closed = true;
+                cache.checkIn(cached);
+                count++;
+            }
+        }
+        leaked.addAndGet(count);
+        return count;
+    }
+
+    public static long getHits() {
+        return hits.get();
+    }
+
+    public static long getMisses() {
+        return misses.get();
+    }
+
+    public static long getEvictions() {
+        return evictions.get();
+    }
+
+    public static long getLeaked() {
+        return leaked.get();
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+        if (name.equals("prepareStatement") && (args.length == 1
+                || (args.length == 2 && method.getParameterTypes()[1] == int.class))) {
+            return prepare((String) args[0], args.length == 2 ? (Integer) args[1] : null);
+        }
+        if (name.equals("close")) {
+            closeAll();
+        }
+        try {
+            return method.invoke(con, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private PreparedStatement prepare(String sql, Integer autoGeneratedKeys) throws SQLException {
+        String key = autoGeneratedKeys == null ? sql : sql + "\n-- keys " + autoGeneratedKeys;
+        CachedStatement cached = statements.get(key);
+        if (cached != null && cached.handle == null) {
+            hits.incrementAndGet();
+            return checkOut(cached);
+        }
+        misses.incrementAndGet();
+        PreparedStatement statement = autoGeneratedKeys == null
+                ? con.prepareStatement(sql) : con.prepareStatement(sql, autoGeneratedKeys);
+        if (cached != null) {
+            // the same SQL is already open on this connection, the second one is not cached
+            return statement;
+        }
+        cached = new CachedStatement(statement);
+        statements.put(key, cached);
+        evictOverCapacity();
+        return checkOut(cached);
+    }
+
+    private PreparedStatement checkOut(CachedStatement cached) {
+        cached.handle = new Handle(cached);
+        return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                new Class<?>[]{PreparedStatement.class}, cached.handle);
+    }
+
+    // Reset a statement the caller has closed so that the next caller gets it as if freshly prepared
+    private void checkIn(CachedStatement cached) {
+        cached.handle = null;
+        try {
+            for (ResultSet resultSet : cached.results) {
+                resultSet.close();
+            }
+            cached.statement.clearParameters();
+            cached.statement.clearBatch();
+            if (cached.tuned) {
+                cached.statement.setFetchSize(0);
+                cached.statement.setMaxRows(0);
+                cached.statement.setQueryTimeout(0);
+                cached.tuned = false;
+            }
+        } catch (SQLException e) {
+            // not reusable, drop it
+            statements.values().remove(cached);
+            closeQuietly(cached.statement);
+        } finally {
+            cached.results.clear();
+        }
+    }
+
+    // Close least recently used statements that nobody is holding until we are back at capacity
+    private void evictOverCapacity() {
+        Iterator<CachedStatement> it = statements.values().iterator();
+        while (statements.size() > capacity && it.hasNext()) {
+            CachedStatement cached = it.next();
+            if (cached.handle == null) {
+                it.remove();
+                closeQuietly(cached.statement);
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    private void closeAll() {
+        for (CachedStatement cached : statements.values()) {
+            closeQuietly(cached.statement);
+        }
+        statements.clear();
+    }
+
+    private static void closeQuietly(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            // the connection is being dropped or the statement is already unusable
+        }
+    }
+
+    private static class CachedStatement {
+        private final PreparedStatement statement;
+        // result sets opened since the statement was checked out, closed when it is checked in
+        private final List<ResultSet> results = new ArrayList<>();
+        // the caller changed fetch size, max rows or timeout
+        private boolean tuned = false;
+        // the caller's view of the statement while it is checked out, null while it sits in the cache
+        private Handle handle = null;
+
+        private CachedStatement(PreparedStatement statement) {
+            this.statement = statement;
+        }
+    }
+
+    // What a caller holds between prepareStatement and close; it stops working once closed, even though the
+    // statement underneath lives on in the cache
+    private class Handle implements InvocationHandler {
+        private final CachedStatement cached;
+        private boolean closed = false;
+
+        private Handle(CachedStatement cached) {
+            this.cached = cached;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            switch (name) {
+                case "close":
+                    if (!closed) {
+                        closed = true;
+                        checkIn(cached);
+                    }
+                    return null;
+                case "isClosed":
+                    return closed;
+                case "getConnection":
+                    return StatementCache.this.proxy;
+                default:
+                    break;
+            }
+            if (closed) {
+                throw new SQLException("Statement is closed");
+            }
+            if (name.equals("setFetchSize") || name.equals("setMaxRows") || name.equals("setQueryTimeout")) {
+                cached.tuned = true;
+            }
+            Object result;
+            try {
+                result = method.invoke(cached.statement, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+            if (result instanceof ResultSet) {
+                cached.results.add((ResultSet) result);
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package scheduler.model;
+
+import scheduler.db.ConnectionManager;
+import scheduler.util.BloomFilter;
+import scheduler.util.Env;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Which usernames may already exist in Patients or Caregivers, so that account creation can skip the
+// existence query for names that are definitely free. Built from the table at startup and updated by every
+// save through this process. A name created by another instance sharing the database is missed until the next
+// load; that insert then fails on the primary key, which stays the final check.
+// Sized for UsernameFilterCapacity names (at least twice the rows found) at UsernameFilterFpp false positives;
+// once more names than that have been added, it is rebuilt twice as large in the background.
+public class UsernameFilter {
+
+    private static final UsernameFilter PATIENTS = new UsernameFilter("Patients");
+    private static final UsernameFilter CAREGIVERS = new UsernameFilter("Caregivers");
+
+    private static final int LOAD_FETCH_SIZE = 10_000;
+
+    private final String table;
+    private final long minCapacity = Env.getLong("UsernameFilterCapacity", 1_000_000);
+    private final double fpp = Env.getDouble("UsernameFilterFpp", 0.01);
+
+    // null until loaded, then every lookup answers "maybe" and goes to the database
+    private volatile BloomFilter filter = null;
+    // during a rebuild, names saved meanwhile go into the new filter too
+    private volatile BloomFilter next = null;
+    private volatile long capacity = 0;
+    private final AtomicLong size = new AtomicLong();
+    private final AtomicLong probes = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private volatile boolean rebuilding = false;
+
+    private UsernameFilter(String table) {
+        this.table = table;
+    }
+
+    public static UsernameFilter patients() {
+        return PATIENTS;
+    }
+
+    public static UsernameFilter caregivers() {
+        return CAREGIVERS;
+    }
+
+    // Build the filter from every username in the table
+    public void load() throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try {
+            long rows;
+            try (PreparedStatement statement = con.prepareStatement("SELECT COUNT(*) FROM " + table);
+                 ResultSet resultSet = statement.executeQuery()) {
+                resultSet.next();
+                rows = resultSet.getLong(1);
+            }
+            long newCapacity = Math.max(minCapacity, 2 * rows);
+            BloomFilter loaded = new BloomFilter(newCapacity, fpp);
+            next = loaded;
+            long count = 0;
+            try (PreparedStatement statement = con.prepareStatement("SELECT Username FROM " + table)) {
+                statement.setFetchSize(LOAD_FETCH_SIZE);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        loaded.put(key(resultSet.getString(1)));
+                        count++;
+                    }
+                }
+            }
+            capacity = newCapacity;
+            size.set(count);
+            filter = loaded;
+        } finally {
+            next = null;
+            cm.closeConnection();
+        }
+    }
+
+    // False only if no account with this name exists (as far as this process can know)
+    public boolean mightContain(String username) {
+        BloomFilter current = filter;
+        probes.incrementAndGet();
+        if (current == null || current.mightContain(key(username))) {
+            return true;
+        }
+        skipped.incrementAndGet();
+        return false;
+    }
+
+    // Called after an account with this name has been stored
+    public void added(String username) {
+        BloomFilter current = filter;
+        if (current == null) {
+            return;
+        }
+        String key = key(username);
+        current.put(key);
+        BloomFilter pending = next;
+        if (pending != null) {
+            pending.put(key);
+        }
+        if (size.incrementAndGet() > capacity && !rebuilding) {
+            rebuild();
+        }
+    }
+
+    private synchronized void rebuild() {
+        if (rebuilding) {
+            return;
+        }
+        rebuilding = true;
+        CompletableFuture.runAsync(() -> {
+            try {
+                load();
+            } catch (SQLException e) {
+                System.out.println("Error occurred when rebuilding the " + table + " username filter");
+                e.printStackTrace();
+            } finally {
+                rebuilding = false;
+            }
+        });
+    }
+
+    // Getters
+    public long getSize() {
+        return size.get();
+    }
+
+    public long getProbes() {
+        return probes.get();
+    }
+
+    // lookups answered without a query
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    public long getMemoryBytes() {
+        BloomFilter current = filter;
+        return current == null ? 0 : current.getMemoryBytes();
+    }
+
+    public double getExpectedFpp() {
+        BloomFilter current = filter;
+        return current == null ? 1 : current.getExpectedFpp(size.get());
+    }
+
+    // SQL Server compares usernames case-insensitively by default, so the filter treats "Ann" and "ann" as the
+    // same name; otherwise "ann" would look free while "Ann" exists and only the primary key would catch it
+    private static String key(String username) {
+        return username.toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,56 @@
+package scheduler.bench;
+
+import scheduler.util.BloomFilter;
+
+// Measures the username filter at scale, in memory only (no database needed):
+//   scheduler bench-filter [users] [fpp] [probes]
+// Puts users generated names into a filter sized for them, then looks up probes names that were never put.
+// Reports the filter's memory, build rate, expected and measured false-positive rates and lookup cost.
+public class UsernameFilterBenchmark {
+
+    public static void main(String[] args) {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        double fpp = args.length > 1 ? Double.parseDouble(args[1]) : 0.01;
+        int probes = args.length > 2 ? Integer.parseInt(args[2]) : 1_000_000;
+
+        BloomFilter filter = new BloomFilter(users, fpp);
+        long start = System.nanoTime();
+        for (int i = 0; i < users; i++) {
+            filter.put(DataGenerator.patient(i));
+        }
+        double buildSeconds = (System.nanoTime() - start) / 1e9;
+
+        // every put name must be found
+        int missing = 0;
+        LatencySamples hits = new LatencySamples(probes);
+        for (int i = 0; i < probes; i++) {
+            String name = DataGenerator.patient((int) ((long) i * users / probes));
+            long t = System.nanoTime();
+            boolean found = filter.mightContain(name);
+            hits.add(System.nanoTime() - t);
+            if (!found) {
+                missing++;
+            }
+        }
+        int falsePositives = 0;
+        LatencySamples misses = new LatencySamples(probes);
+        for (int i = 0; i < probes; i++) {
+            String name = "new_user_" + i;
+            long t = System.nanoTime();
+            boolean found = filter.mightContain(name);
+            misses.add(System.nanoTime() - t);
+            if (found) {
+                falsePositives++;
+            }
+        }
+
+        System.out.printf("%d users, target fpp %.4f: %d bits (%.1f MB, %.2f bits/user), %d hashes%n", users, fpp,
+                filter.getBits(), filter.getMemoryBytes() / 1048576.0, (double) filter.getBits() / users,
+                filter.getHashes());
+        System.out.printf("Built in %.2f s (%.0f puts/s)%n", buildSeconds, users / Math.max(buildSeconds, 1e-9));
+        System.out.printf("False positives: %d of %d (%.4f measured, %.4f expected); false negatives: %d%n",
+                falsePositives, probes, (double) falsePositives / probes, filter.getExpectedFpp(users), missing);
+        System.out.printf("Lookup of a member: p50 %d ns, p99 %d ns; of a new name: p50 %d ns, p99 %d ns%n",
+                hits.percentile(50), hits.percentile(99), misses.percentile(50), misses.percentile(99));
+    }
+}
@@ -0,0 +1,48 @@
+package scheduler.util;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.KeySpec;
+import java.util.Arrays;
+
+public class Util {
+
+    private static final int HASH_STRENGTH = 10;
+    private static final int KEY_LENGTH = 16;
+
+    public static byte[] generateSalt() {
+        // Generate a random cryptographic salt
+        SecureRandom random = new SecureRandom();
+        byte[] salt = new byte[16];
+        random.nextBytes(salt);
+        return salt;
+    }
+
+    // The original password hash (PasswordHasher.LEGACY_VERSION); new passwords go through PasswordHasher
+    public static byte[] generateHash(String password, byte[] salt) {
+        // Specify the hash parameters
+        KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, HASH_STRENGTH, KEY_LENGTH * 8);
+
+        // Generate the hash
+        SecretKeyFactory factory = null;
+        byte[] hash = null;
+        try {
+            factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+            hash = factory.generateSecret(spec).getEncoded();
+            return hash;
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException ex) {
+            throw new IllegalStateException();
+        }
+    }
+
+    public static byte[] trim(byte[] bytes) {
+        int i = bytes.length - 1;
+        while (i >= 0 && bytes[i] == 0) {
+            --i;
+        }
+        return Arrays.copyOf(bytes, i + 1);
+    }
+}
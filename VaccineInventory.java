@@ -0,0 +1,400 @@
+package scheduler.model;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.ReadCoalescer;
+import scheduler.util.Env;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// In-memory dose counts for the Vaccines table, one lock-free counter per vaccine.
+//
+// Lookups are answered from memory. Reservations take a dose from the counter with a compare-and-set that
+// never goes below zero, so an empty vaccine fails fast without touching the database; the reservation's own
+// guarded UPDATE is still what prevents overselling when several instances share the database.
+// Dose changes from add_doses and cancel are queued and written behind in batches: a flusher thread collects
+// whatever deltas arrive within one flush window and applies them as one JDBC batch in one transaction.
+// Callers wait for the batch that carries their delta to commit, so an acknowledged change is always durable
+// and recovery after a crash is just reloading the table.
+public final class VaccineInventory {
+
+    private static final VaccineInventory INSTANCE = new VaccineInventory(
+            Env.getLong("VaccineCacheTtlMs", 5_000), Env.getLong("VaccineFlushIntervalMs", 2));
+
+    private static final String GET_ALL = "SELECT Name, Doses FROM Vaccines";
+    private static final String GET_ONE = "SELECT Name, Doses FROM Vaccines WHERE Name = ?";
+    private static final String APPLY_DELTA = "UPDATE Vaccines SET Doses = Doses + ? WHERE Name = ? AND Doses + ? >= 0";
+
+    private final long ttlMillis;
+    private final long flushIntervalMillis;
+    private final ConcurrentHashMap<String, Stripe> stripes = new ConcurrentHashMap<>();
+    private final LinkedBlockingQueue<Delta> pending = new LinkedBlockingQueue<>();
+    private volatile long fullLoadAt = 0;
+    // concurrent misses on the same vaccine, or on the whole catalog, share one query
+    private final ReadCoalescer<String, Stripe> reads = new ReadCoalescer<>("vaccine", this::reload);
+    private final ReadCoalescer<Boolean, Boolean> catalogReads = new ReadCoalescer<>("vaccine catalog",
+            this::loadCatalog);
+
+    // stamps the last change made to each stripe, so that a read can tell whether a change raced with it
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicInteger flushes = new AtomicInteger();
+    private final AtomicInteger flushedDeltas = new AtomicInteger();
+
+    public VaccineInventory(long ttlMillis, long flushIntervalMillis) {
+        this.ttlMillis = ttlMillis;
+        this.flushIntervalMillis = flushIntervalMillis;
+        Thread flusher = new Thread(this::flushLoop, "vaccine-inventory-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    public static VaccineInventory getInstance() {
+        return INSTANCE;
+    }
+
+    // Load every vaccine, called at startup and whenever the whole catalog is stale
+    public void load() throws SQLException {
+        long now = System.currentTimeMillis();
+        long before = writes.get();
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try (PreparedStatement statement = con.prepareStatement(GET_ALL);
+             ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                stripe(resultSet.getString("Name")).set(resultSet.getInt("Doses"), now, before);
+            }
+        } finally {
+            cm.closeConnection();
+        }
+        fullLoadAt = now;
+    }
+
+    // Available doses, or null if there is no such vaccine
+    public Integer getDoses(String vaccineName) throws SQLException {
+        Stripe stripe = fresh(vaccineName);
+        return stripe == null ? null : stripe.available.get();
+    }
+
+    // Every vaccine and its available doses, in name order
+    public Map<String, Integer> snapshot() throws SQLException {
+        if (!isFresh(fullLoadAt)) {
+            catalogReads.join(Boolean.TRUE);
+        }
+        return counts();
+    }
+
+    // The same without blocking: complete already while the catalog is fresh, otherwise once it is read
+    public CompletableFuture<Map<String, Integer>> snapshotAsync() {
+        if (isFresh(fullLoadAt)) {
+            return CompletableFuture.completedFuture(counts());
+        }
+        return catalogReads.get(Boolean.TRUE).thenApply(loaded -> counts());
+    }
+
+    private Boolean loadCatalog(Boolean key) throws SQLException {
+        load();
+        return Boolean.TRUE;
+    }
+
+    private Map<String, Integer> counts() {
+        Map<String, Integer> result = new TreeMap<>();
+        for (Map.Entry<String, Stripe> e : stripes.entrySet()) {
+            if (e.getValue().known) {
+                result.put(e.getKey(), e.getValue().available.get());
+            }
+        }
+        return result;
+    }
+
+    // Take one dose from the counter; false if the vaccine is unknown or has no doses left
+    public boolean tryTake(String vaccineName) throws SQLException {
+        Stripe stripe = fresh(vaccineName);
+        if (stripe == null) {
+            return false;
+        }
+        return stripe.tryTake();
+    }
+
+    // Take as many doses as are left, at most num; returns how many were taken
+    public int takeUpTo(String vaccineName, int num) throws SQLException {
+        Stripe stripe = fresh(vaccineName);
+        if (stripe == null) {
+            return 0;
+        }
+        return stripe.takeUpTo(num);
+    }
+
+    // Return a dose taken with tryTake whose reservation did not go through
+    public void giveBack(String vaccineName) {
+        giveBack(vaccineName, 1);
+    }
+
+    public void giveBack(String vaccineName, int num) {
+        Stripe stripe = stripes.get(vaccineName);
+        if (stripe != null && num > 0) {
+            stripe.available.addAndGet(num);
+        }
+    }
+
+    // Record a dose change that was already committed to the database by someone else (e.g. a reservation)
+    public void applied(String vaccineName, int delta) {
+        Stripe stripe = stripes.get(vaccineName);
+        if (stripe != null) {
+            stripe.lastWrite = writes.incrementAndGet();
+            stripe.available.addAndGet(delta);
+        }
+    }
+
+    // Record a vaccine that was just inserted into the database
+    public void created(String vaccineName, int doses) {
+        Stripe stripe = stripe(vaccineName);
+        stripe.lastWrite = writes.incrementAndGet();
+        stripe.available.set(doses);
+        stripe.loadedAt = System.currentTimeMillis();
+        stripe.known = true;
+    }
+
+    // Add (or with a negative delta, remove) doses; returns once the change is committed.
+    // A removal that would take the stored count below zero throws IllegalArgumentException.
+    public void add(String vaccineName, int delta) throws SQLException {
+        Stripe stripe = stripe(vaccineName);
+        boolean applied;
+        // from the counter change to the commit the database and the counter disagree, no re-read may land
+        stripe.writing.incrementAndGet();
+        try {
+            applied = write(stripe, vaccineName, delta);
+        } finally {
+            stripe.lastWrite = writes.incrementAndGet();
+            stripe.writing.decrementAndGet();
+        }
+        if (!applied) {
+            // the database disagrees with our counter, trust the database
+            reload(vaccineName);
+            throw new IllegalArgumentException("Not enough available doses!");
+        }
+    }
+
+    private boolean write(Stripe stripe, String vaccineName, int delta) throws SQLException {
+        if (delta < 0 && !stripe.tryTake(-delta)) {
+            throw new IllegalArgumentException("Not enough available doses!");
+        }
+        Delta d = new Delta(vaccineName, delta);
+        pending.add(d);
+        boolean applied;
+        try {
+            applied = d.done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for dose update");
+        } catch (ExecutionException e) {
+            if (delta < 0) {
+                stripe.available.addAndGet(-delta);
+            }
+            throw e.getCause() instanceof SQLException
+                    ? (SQLException) e.getCause() : new SQLException(e.getCause());
+        }
+        if (applied && delta > 0) {
+            stripe.available.addAndGet(delta);
+        }
+        return applied;
+    }
+
+    public void invalidate(String vaccineName) {
+        reads.forget(vaccineName);
+        stripes.remove(vaccineName);
+        fullLoadAt = 0;
+    }
+
+    // Getters
+    public int getFlushes() {
+        return flushes.get();
+    }
+
+    public int getFlushedDeltas() {
+        return flushedDeltas.get();
+    }
+
+    private void flushLoop() {
+        List<Delta> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(pending.take());
+                // let concurrent callers join this batch
+                if (flushIntervalMillis > 0) {
+                    Thread.sleep(flushIntervalMillis);
+                }
+                pending.drainTo(batch);
+                flush(batch);
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    // Apply one batch in one transaction; additions to the same vaccine are merged into one statement,
+    // and so are removals, so that a removal that fails its guard cannot take an addition down with it
+    private void flush(List<Delta> batch) {
+        Map<String, List<Delta>> byVaccine = new LinkedHashMap<>();
+        for (Delta d : batch) {
+            String key = (d.delta < 0 ? "-" : "+") + d.vaccineName;
+            byVaccine.computeIfAbsent(key, k -> new ArrayList<>()).add(d);
+        }
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = null;
+        try {
+            con = cm.createConnection();
+            con.setAutoCommit(false);
+            List<String> keys = new ArrayList<>(byVaccine.keySet());
+            try (PreparedStatement statement = con.prepareStatement(APPLY_DELTA)) {
+                for (String key : keys) {
+                    int sum = 0;
+                    for (Delta d : byVaccine.get(key)) {
+                        sum += d.delta;
+                    }
+                    statement.setInt(1, sum);
+                    statement.setString(2, key.substring(1));
+                    statement.setInt(3, sum);
+                    statement.addBatch();
+                }
+                int[] counts = statement.executeBatch();
+                con.commit();
+                for (int i = 0; i < keys.size(); i++) {
+                    // SUCCESS_NO_INFO (-2) means the driver applied it without reporting a count
+                    boolean applied = counts[i] != 0;
+                    for (Delta d : byVaccine.get(keys.get(i))) {
+                        d.done.complete(applied);
+                    }
+                }
+            }
+            flushes.incrementAndGet();
+            flushedDeltas.addAndGet(batch.size());
+        } catch (SQLException | RuntimeException e) {
+            try {
+                // null when no connection could be borrowed
+                if (con != null) {
+                    con.rollback();
+                }
+            } catch (SQLException ignored) {
+                // the pool discards broken connections
+            }
+            for (Delta d : batch) {
+                d.done.completeExceptionally(e);
+            }
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private Stripe fresh(String vaccineName) throws SQLException {
+        Stripe stripe = stripes.get(vaccineName);
+        if (stripe != null && stripe.known && isFresh(stripe.loadedAt)) {
+            return stripe;
+        }
+        return reads.join(vaccineName);
+    }
+
+    private Stripe reload(String vaccineName) throws SQLException {
+        long now = System.currentTimeMillis();
+        long before = writes.get();
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try (PreparedStatement statement = con.prepareStatement(GET_ONE)) {
+            statement.setString(1, vaccineName);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (!resultSet.next()) {
+                    stripes.remove(vaccineName);
+                    return null;
+                }
+                Stripe stripe = stripe(vaccineName);
+                stripe.set(resultSet.getInt("Doses"), now, before);
+                return stripe;
+            }
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private Stripe stripe(String vaccineName) {
+        return stripes.computeIfAbsent(vaccineName, k -> new Stripe());
+    }
+
+    private boolean isFresh(long loadedAt) {
+        return System.currentTimeMillis() - loadedAt < ttlMillis;
+    }
+
+    private static class Stripe {
+        private final AtomicInteger available = new AtomicInteger();
+        // add() calls between their counter change and their commit
+        private final AtomicInteger writing = new AtomicInteger();
+        private volatile long lastWrite = 0;
+        private volatile long loadedAt = 0;
+        private volatile boolean known = false;
+
+        // Take the count read from the database, unless a change through this process was pending or landed
+        // after writesBefore while it was read: the count may then miss it or already hold it, and the counter
+        // that has it applied exactly once is kept until the next re-read
+        private void set(int doses, long loadedAt, long writesBefore) {
+            if (known && (writing.get() > 0 || lastWrite > writesBefore)) {
+                return;
+            }
+            this.available.set(doses);
+            this.loadedAt = loadedAt;
+            this.known = true;
+        }
+
+        private boolean tryTake() {
+            return tryTake(1);
+        }
+
+        private boolean tryTake(int num) {
+            while (true) {
+                int cur = available.get();
+                if (cur < num) {
+                    return false;
+                }
+                if (available.compareAndSet(cur, cur - num)) {
+                    return true;
+                }
+            }
+        }
+
+        private int takeUpTo(int num) {
+            while (true) {
+                int cur = available.get();
+                int taken = Math.min(cur, num);
+                if (taken <= 0) {
+                    return 0;
+                }
+                if (available.compareAndSet(cur, cur - taken)) {
+                    return taken;
+                }
+            }
+        }
+    }
+
+    private static class Delta {
+        private final String vaccineName;
+        private final int delta;
+        private final CompletableFuture<Boolean> done = new CompletableFuture<>();
+
+        private Delta(String vaccineName, int delta) {
+            this.vaccineName = vaccineName;
+            this.delta = delta;
+        }
+    }
+}
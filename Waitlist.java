@@ -0,0 +1,475 @@
+package scheduler.model;
+
+import scheduler.db.ConnectionManager;
+import scheduler.metrics.LatencyHistogram;
+import scheduler.util.Env;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Patients waiting for a slot and a dose on a date. A reserve that finds no caregiver or no doses puts the
+// patient here instead of leaving them to retry; whenever capacity opens (upload_availability, add_doses, cancel)
+// the waiting patients for the affected dates and vaccines are booked, WaitlistBatchSize at a time in one
+// transaction, highest Priority first and then in the order they asked. A patient who gets an appointment on the
+// date some other way (reserve, reserve_group) leaves every line for that date in the same transaction.
+// The Waitlist table is the record; this class keeps one priority queue per (date, vaccine) in memory so that
+// allocation never has to search the table. Allocation runs on one background thread, so commands that open
+// capacity do not wait for it, and deletes each row it books in the booking's transaction, so a patient is
+// never booked twice even when several instances share the database.
+public class Waitlist {
+
+    private static final Waitlist INSTANCE = new Waitlist(Env.getInt("WaitlistBatchSize", 50));
+
+    private static final String GET_ALL = "SELECT Id, Time, vaxName, pUser, Priority, Requested FROM Waitlist";
+    private static final String ADD = "INSERT INTO Waitlist (Time, vaxName, pUser) VALUES (?, ?, ?)";
+    private static final String GET_ONE =
+            "SELECT Id, Priority, Requested FROM Waitlist WHERE Time = ? AND vaxName = ? AND pUser = ?";
+    private static final String REMOVE = "DELETE FROM Waitlist WHERE Id = ?";
+    private static final String HAS_APPOINTMENT = "SELECT 1 FROM Appointments WHERE Time = ? AND pUser = ? AND Id <> ?";
+
+    private final int batchSize;
+    private final ReservationEngine engine;
+    // date -> vaccine -> waiting patients; guarded by this
+    private final TreeMap<LocalDate, Map<String, PriorityQueue<Entry>>> queues = new TreeMap<>();
+    private final ExecutorService allocator = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "waitlist-allocator");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final AtomicLong joined = new AtomicLong();
+    private final AtomicLong assigned = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final LatencyHistogram timeToAssignment = new LatencyHistogram();
+    private int waiting = 0;
+
+    public Waitlist(int batchSize) {
+        this(batchSize, ReservationEngine.getInstance());
+    }
+
+    public Waitlist(int batchSize, ReservationEngine engine) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive!");
+        }
+        this.batchSize = batchSize;
+        this.engine = engine;
+    }
+
+    public static Waitlist getInstance() {
+        return INSTANCE;
+    }
+
+    // Load every waiting patient, called at startup; anything that opened while we were down is booked next
+    public void load() throws SQLException {
+        TreeMap<LocalDate, Map<String, PriorityQueue<Entry>>> loaded = new TreeMap<>();
+        int count = 0;
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try (PreparedStatement statement = con.prepareStatement(GET_ALL);
+             ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                Entry entry = new Entry(resultSet.getInt("Id"), resultSet.getDate("Time").toLocalDate(),
+                        resultSet.getString("vaxName"), resultSet.getString("pUser"), resultSet.getInt("Priority"),
+                        resultSet.getTimestamp("Requested").getTime());
+                queue(loaded, entry.date, entry.vaccine).add(entry);
+                count++;
+            }
+        } finally {
+            cm.closeConnection();
+        }
+        synchronized (this) {
+            queues.clear();
+            queues.putAll(loaded);
+            waiting = count;
+        }
+        allocator.execute(() -> drain(null, null));
+    }
+
+    // Put the patient on the waitlist for the date and vaccine; returns their position, 1 being next in line.
+    // Joining again just reports the position they already have.
+    public int join(Date d, String vaxName, String patient) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        Entry entry;
+        try {
+            entry = find(con, d, vaxName, patient);
+            if (entry == null) {
+                try (PreparedStatement statement = con.prepareStatement(ADD)) {
+                    statement.setDate(1, d);
+                    statement.setString(2, vaxName);
+                    statement.setString(3, patient);
+                    statement.executeUpdate();
+                } catch (SQLException e) {
+                    // integrity constraint violation: joined from another session meanwhile
+                    if (e.getSQLState() == null || !e.getSQLState().startsWith("23")) {
+                        throw e;
+                    }
+                }
+                entry = find(con, d, vaxName, patient);
+            }
+        } finally {
+            cm.closeConnection();
+        }
+        if (entry == null) {
+            // booked by the allocator in the meantime
+            return 0;
+        }
+        synchronized (this) {
+            PriorityQueue<Entry> queue = queue(queues, entry.date, entry.vaccine);
+            if (!queue.contains(entry)) {
+                queue.add(entry);
+                waiting++;
+                joined.incrementAndGet();
+            }
+            return position(queue, entry);
+        }
+    }
+
+    private static Entry find(Connection con, Date d, String vaxName, String patient) throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement(GET_ONE)) {
+            statement.setDate(1, d);
+            statement.setString(2, vaxName);
+            statement.setString(3, patient);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (!resultSet.next()) {
+                    return null;
+                }
+                return new Entry(resultSet.getInt("Id"), d.toLocalDate(), vaxName, patient,
+                        resultSet.getInt("Priority"), resultSet.getTimestamp("Requested").getTime());
+            }
+        }
+    }
+
+    // Take the patient off the waitlist; false if they were not on it
+    public boolean leave(Date d, String vaxName, String patient) throws SQLException {
+        Entry entry = null;
+        synchronized (this) {
+            PriorityQueue<Entry> queue = queues.containsKey(d.toLocalDate())
+                    ? queues.get(d.toLocalDate()).get(vaxName) : null;
+            if (queue != null) {
+                for (Entry e : queue) {
+                    if (e.patient.equals(patient)) {
+                        entry = e;
+                    }
+                }
+            }
+        }
+        if (entry == null) {
+            return false;
+        }
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try (PreparedStatement statement = con.prepareStatement(REMOVE)) {
+            statement.setInt(1, entry.id);
+            statement.executeUpdate();
+        } finally {
+            cm.closeConnection();
+        }
+        return remove(entry);
+    }
+
+    // Patients booked on the date by a reservation of their own, which deleted their rows for that date
+    public synchronized void booked(Date d, Collection<String> patients) {
+        Map<String, PriorityQueue<Entry>> byVaccine = queues.get(d.toLocalDate());
+        if (byVaccine == null) {
+            return;
+        }
+        Set<String> booked = new HashSet<>(patients);
+        List<Entry> gone = new ArrayList<>();
+        for (PriorityQueue<Entry> queue : byVaccine.values()) {
+            for (Entry entry : queue) {
+                if (booked.contains(entry.patient)) {
+                    gone.add(entry);
+                }
+            }
+        }
+        for (Entry entry : gone) {
+            remove(entry);
+        }
+    }
+
+    // The dates and vaccines the patient is waiting for and their position in each line
+    public synchronized List<Position> positions(String patient) {
+        List<Position> positions = new ArrayList<>();
+        for (Map<String, PriorityQueue<Entry>> byVaccine : queues.values()) {
+            for (PriorityQueue<Entry> queue : byVaccine.values()) {
+                for (Entry entry : queue) {
+                    if (entry.patient.equals(patient)) {
+                        positions.add(new Position(Date.valueOf(entry.date), entry.vaccine, position(queue, entry)));
+                    }
+                }
+            }
+        }
+        return positions;
+    }
+
+    // Wait until the allocations scheduled so far are done, for a process that is about to exit
+    public void awaitIdle() {
+        CountDownLatch idle = new CountDownLatch(1);
+        allocator.execute(idle::countDown);
+        try {
+            idle.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Capacity events: each schedules a drain of the lines it may have opened
+    public void slotsOpened(Collection<Date> dates) {
+        List<LocalDate> days = new ArrayList<>(dates.size());
+        for (Date d : dates) {
+            days.add(d.toLocalDate());
+        }
+        allocator.execute(() -> drain(days, null));
+    }
+
+    public void dosesAdded(String vaxName) {
+        allocator.execute(() -> drain(null, vaxName));
+    }
+
+    // Book waiting patients in every line on the given days (all days when null) for the given vaccine
+    // (all vaccines when null), until each line is empty or out of slots or doses
+    private void drain(List<LocalDate> days, String vaxName) {
+        List<Entry> heads = new ArrayList<>();
+        synchronized (this) {
+            Collection<LocalDate> keys = days == null ? new ArrayList<>(queues.keySet()) : days;
+            for (LocalDate day : keys) {
+                Map<String, PriorityQueue<Entry>> byVaccine = queues.get(day);
+                if (byVaccine == null) {
+                    continue;
+                }
+                for (Map.Entry<String, PriorityQueue<Entry>> e : byVaccine.entrySet()) {
+                    if ((vaxName == null || vaxName.equals(e.getKey())) && !e.getValue().isEmpty()) {
+                        heads.add(e.getValue().peek());
+                    }
+                }
+            }
+        }
+        for (Entry head : heads) {
+            try {
+                while (drainLine(head.date, head.vaccine)) {
+                    // keep going while whole batches are booked
+                }
+            } catch (SQLException | RuntimeException e) {
+                System.out.println("Error occurred when booking the waitlist for " + head.date + " " + head.vaccine);
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Book the next batch of one line; true if the whole batch was booked and there may be more to do
+    private boolean drainLine(LocalDate day, String vaxName) throws SQLException {
+        Date d = Date.valueOf(day);
+        int slots = AvailabilityIndex.getInstance().size(d);
+        Integer doses = VaccineInventory.getInstance().getDoses(vaxName);
+        if (slots == 0 || doses == null || doses == 0) {
+            return false;
+        }
+        List<Entry> batch = new ArrayList<>();
+        synchronized (this) {
+            PriorityQueue<Entry> queue = queues.containsKey(day) ? queues.get(day).get(vaxName) : null;
+            int n = Math.min(batchSize, Math.min(slots, doses));
+            while (queue != null && !queue.isEmpty() && batch.size() < n) {
+                batch.add(queue.poll());
+            }
+            // they stay in line until booked, so join and positions keep seeing them
+            if (queue != null) {
+                queue.addAll(batch);
+            }
+        }
+        if (batch.isEmpty()) {
+            return false;
+        }
+        List<String> patients = new ArrayList<>(batch.size());
+        for (Entry entry : batch) {
+            patients.add(entry.patient);
+        }
+        List<ReservationEngine.Result> results = engine.reserveAll(d, vaxName, patients,
+                (con, i, caregiver, appointmentId) -> {
+                    try (PreparedStatement statement = con.prepareStatement(REMOVE)) {
+                        statement.setInt(1, batch.get(i).id);
+                        // zero rows: left the waitlist or booked by another instance meanwhile
+                        if (statement.executeUpdate() == 0) {
+                            return false;
+                        }
+                    }
+                    // already booked that day some other way
+                    try (PreparedStatement statement = con.prepareStatement(HAS_APPOINTMENT)) {
+                        statement.setDate(1, d);
+                        statement.setString(2, batch.get(i).patient);
+                        statement.setInt(3, appointmentId);
+                        try (ResultSet resultSet = statement.executeQuery()) {
+                            return !resultSet.next();
+                        }
+                    }
+                });
+        batches.incrementAndGet();
+        long now = System.currentTimeMillis();
+        boolean complete = results.size() == batch.size();
+        List<Entry> skipped = new ArrayList<>();
+        for (int i = 0; i < results.size(); i++) {
+            ReservationEngine.Result result = results.get(i);
+            if (result.getStatus() == ReservationEngine.Status.RESERVED) {
+                assigned.incrementAndGet();
+                timeToAssignment.record(Math.max(0, now - batch.get(i).requestedAt) * 1_000_000L);
+                remove(batch.get(i));
+            } else if (result.getStatus() == ReservationEngine.Status.SKIPPED) {
+                remove(batch.get(i));
+                skipped.add(batch.get(i));
+            } else {
+                complete = false;
+            }
+        }
+        if (!skipped.isEmpty()) {
+            // the rows of patients skipped for an appointment they already had came back with the undone booking
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+            try (PreparedStatement statement = con.prepareStatement(REMOVE)) {
+                for (Entry entry : skipped) {
+                    statement.setInt(1, entry.id);
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            } finally {
+                cm.closeConnection();
+            }
+        }
+        return complete;
+    }
+
+    private synchronized boolean remove(Entry entry) {
+        Map<String, PriorityQueue<Entry>> byVaccine = queues.get(entry.date);
+        if (byVaccine == null) {
+            return false;
+        }
+        PriorityQueue<Entry> queue = byVaccine.get(entry.vaccine);
+        if (queue == null || !queue.remove(entry)) {
+            return false;
+        }
+        waiting--;
+        if (queue.isEmpty()) {
+            byVaccine.remove(entry.vaccine);
+            if (byVaccine.isEmpty()) {
+                queues.remove(entry.date);
+            }
+        }
+        return true;
+    }
+
+    private static PriorityQueue<Entry> queue(TreeMap<LocalDate, Map<String, PriorityQueue<Entry>>> queues,
+                                              LocalDate day, String vaxName) {
+        return queues.computeIfAbsent(day, k -> new HashMap<>()).computeIfAbsent(vaxName, k -> new PriorityQueue<>());
+    }
+
+    private static int position(PriorityQueue<Entry> queue, Entry entry) {
+        int ahead = 0;
+        for (Entry e : queue) {
+            if (e.compareTo(entry) < 0) {
+                ahead++;
+            }
+        }
+        return ahead + 1;
+    }
+
+    // Getters
+    public synchronized int getWaiting() {
+        return waiting;
+    }
+
+    public long getJoined() {
+        return joined.get();
+    }
+
+    public long getAssigned() {
+        return assigned.get();
+    }
+
+    public long getBatches() {
+        return batches.get();
+    }
+
+    // From joining the waitlist until being booked
+    public LatencyHistogram getTimeToAssignment() {
+        return timeToAssignment;
+    }
+
+    public static class Position {
+        private final Date date;
+        private final String vaccine;
+        private final int position;
+
+        private Position(Date date, String vaccine, int position) {
+            this.date = date;
+            this.vaccine = vaccine;
+            this.position = position;
+        }
+
+        // Getters
+        public Date getDate() {
+            return date;
+        }
+
+        public String getVaccine() {
+            return vaccine;
+        }
+
+        public int getPosition() {
+            return position;
+        }
+    }
+
+    private static class Entry implements Comparable<Entry> {
+        private final int id;
+        private final LocalDate date;
+        private final String vaccine;
+        private final String patient;
+        private final int priority;
+        private final long requestedAt;
+
+        private Entry(int id, LocalDate date, String vaccine, String patient, int priority, long requestedAt) {
+            this.id = id;
+            this.date = date;
+            this.vaccine = vaccine;
+            this.patient = patient;
+            this.priority = priority;
+            this.requestedAt = requestedAt;
+        }
+
+        // higher priority first, then first come first served
+        @Override
+        public int compareTo(Entry other) {
+            if (priority != other.priority) {
+                return Integer.compare(other.priority, priority);
+            }
+            return Integer.compare(id, other.id);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Entry && ((Entry) o).id == id;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(id);
+        }
+    }
+}
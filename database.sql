@@ -1,3 +1,5 @@
+-- Baseline schema (version 1). Later changes are applied by scheduler.db.SchemaMigrator (scheduler migrate).
+
 CREATE TABLE Vaccines (
     Name varchar(255),
     Doses INT,
@@ -20,7 +22,7 @@ CREATE TABLE Caregivers (
 
 CREATE TABLE Availabilities (
     Time date,
-    cUser varchar(255) REFERENCES Caregivers(Username),
+    cUser varchar(255) REFERENCES Caregivers(Username)
 );
 
 CREATE TABLE Appointments (
@@ -1,43 +1,220 @@
 package scheduler;
 
+import scheduler.bench.AssignmentBenchmark;
+import scheduler.bench.CoalescingBenchmark;
+import scheduler.bench.GroupReservationBenchmark;
+import scheduler.bench.HotPathBenchmark;
+import scheduler.bench.PartitionBenchmark;
+import scheduler.bench.QueryShapeBenchmark;
+import scheduler.bench.UsernameFilterBenchmark;
 import scheduler.db.ConnectionManager;
+import scheduler.db.ConnectionPool;
+import scheduler.db.MonthlyPartitions;
+import scheduler.db.ReadCoalescer;
+import scheduler.db.ReplicaRouter;
+import scheduler.db.ReplicationStandIn;
+import scheduler.db.SchemaMigrator;
+import scheduler.db.StatementCache;
+import scheduler.journal.Journal;
+import scheduler.journal.JournalEvent;
+import scheduler.metrics.CommandMetrics;
+import scheduler.metrics.LatencyHistogram;
+import scheduler.metrics.MetricsEndpoint;
+import scheduler.model.AppointmentQuery;
+import scheduler.model.AvailabilityIndex;
+import scheduler.model.AvailabilityPattern;
+import scheduler.model.Cancellation;
 import scheduler.model.Caregiver;
 import scheduler.model.Patient;
+import scheduler.model.UsernameFilter;
+import scheduler.model.ReservationEngine;
+import scheduler.model.VaccineInventory;
 import scheduler.model.Vaccine;
-import scheduler.util.Util;
+import scheduler.model.Waitlist;
+import scheduler.util.PasswordHasher;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Date;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 
 public class Scheduler {
 
-    // objects to keep track of the currently logged-in user
+    // books appointments in a single transaction, retrying deadlocks
+    private static final ReservationEngine reservationEngine = ReservationEngine.getInstance();
+
+    // longest range search_caregiver_schedule <from> <to> accepts
+    private static final int MAX_SEARCH_DAYS = 366;
+
+    // rows fetched per round trip by show_appointments
+    private static final int APPOINTMENT_FETCH_SIZE = 200;
+
+    // operations that get their own entry in CommandMetrics
+    private static final Set<String> COMMANDS = Set.of("create_patient", "create_caregiver", "login_patient",
+            "login_caregiver", "search_caregiver_schedule", "next_available", "reserve", "reserve_group",
+            "upload_availability", "cancel", "cancel_date", "add_doses", "show_appointments", "waitlist",
+            "leave_waitlist", "stats");
+
+    // objects to keep track of the currently logged-in user of this session
     // Note: it is always true that at most one of currentCaregiver and currentPatient is not null
-    //       since only one user can be logged-in at a time
-    private static Caregiver currentCaregiver = null;
-    private static Patient currentPatient = null;
+    //       since only one user can be logged-in at a time in a session
+    private Caregiver currentCaregiver = null;
+    private Patient currentPatient = null;
+
+    private final BufferedReader in;
+    private final PrintStream out;
+    // bounds the number of commands running against the database at once, null for no limit
+    private final Semaphore operationPermits;
+    // false for scripted sessions, which get no greeting, prompt or menu
+    private final boolean interactive;
+    // password hash the batch runner started ahead of the create command now running
+    private Future<PasswordHasher.Hashed> pendingHash = null;
+    // set when the running command gives up on a database error, counted in its metrics
+    private boolean failed = false;
+    // when this session last wrote, so that its reads only go to the replica once it has caught up
+    private final ReplicaRouter.Session readSession = new ReplicaRouter.Session();
+
+    public Scheduler(BufferedReader in, PrintStream out, Semaphore operationPermits) {
+        this(in, out, operationPermits, true);
+    }
+
+    public Scheduler(BufferedReader in, PrintStream out, Semaphore operationPermits, boolean interactive) {
+        this.in = in;
+        this.out = out;
+        this.operationPermits = operationPermits;
+        this.interactive = interactive;
+    }
 
     public static void main(String[] args) {
+        // scheduler server [port]: serve many sessions over a local TCP line protocol
+        if (args.length > 0 && args[0].equals("server")) {
+            SchedulerServer.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        // scheduler migrate [version]: bring the schema up to date
+        if (args.length > 0 && args[0].equals("migrate")) {
+            SchemaMigrator.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        // scheduler bench-schema [availabilityRows] [appointmentRows] [samples]: index before/after timings
+        if (args.length > 0 && args[0].equals("bench-schema")) {
+            QueryShapeBenchmark.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        // scheduler bench [--option value ...]: end-to-end benchmarks of the hot commands
+        if (args.length > 0 && args[0].equals("bench")) {
+            HotPathBenchmark.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        // scheduler bench-filter [users] [fpp] [probes]: username filter size and accuracy
+        if (args.length > 0 && args[0].equals("bench-filter")) {
+            UsernameFilterBenchmark.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        // scheduler bench-assign [--option value ...]: caregiver assignment strategies under concurrent booking
+        if (args.length > 0 && args[0].equals("bench-assign")) {
+            AssignmentBenchmark.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        // scheduler bench-partitions [--option value ...]: hot query latency as the archived history grows
+        if (args.length > 0 && args[0].equals("bench-partitions")) {
+            PartitionBenchmark.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        // scheduler bench-coalesce [--option value ...]: database reads saved when many sessions search the same dates
+        if (args.length > 0 && args[0].equals("bench-coalesce")) {
+            CoalescingBenchmark.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        // scheduler bench-group [--option value ...]: reserve_group against one reserve per patient
+        if (args.length > 0 && args[0].equals("bench-group")) {
+            GroupReservationBenchmark.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        // scheduler partitions list | archive [months]: move closed months out of the hot tables
+        if (args.length > 0 && args[0].equals("partitions")) {
+            MonthlyPartitions.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        // scheduler journal dump [fromSeq] | archive: print the booking audit journal or archive its full segments
+        if (args.length > 0 && args[0].equals("journal")) {
+            Journal.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        // scheduler batch [file]: run a command script or log without the menu, stdin when no file is given
+        if (args.length > 0 && args[0].equals("batch")) {
+            loadCaches();
+            BatchRunner.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        // scheduler import <kind> <file> [checkpoint]: bulk-load a CSV file
+        if (args.length > 0 && args[0].equals("import")) {
+            BulkImporter.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        loadCaches();
+        MetricsEndpoint.startFromEnv();
+        BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
+        new Scheduler(r, System.out, null).run();
+    }
+
+    public static void loadCaches() {
+        try {
+            AvailabilityIndex.getInstance().load();
+            VaccineInventory.getInstance().load();
+            UsernameFilter.patients().load();
+            UsernameFilter.caregivers().load();
+            reservationEngine.getStrategy().load();
+            Waitlist.getInstance().load();
+            // opens the journal now rather than on the first booking change
+            Journal.getInstance();
+        } catch (SQLException e) {
+            // not fatal: every date, vaccine and username is then read from the database on first use
+            System.out.println("Error occurred when loading availabilities, vaccines and usernames");
+            e.printStackTrace();
+        }
+    }
+
+    public void run() {
         // printing greetings text
-        System.out.println();
-        System.out.println("Welcome to the COVID-19 Vaccine Reservation Scheduling Application!");
+        out.println();
+        out.println("Welcome to the COVID-19 Vaccine Reservation Scheduling Application!");
         printMenu();
 
         // read input from user
-        BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
         while (true) {
-            System.out.print("> ");
+            out.print("> ");
+            out.flush();
             String response = "";
             try {
-                response = r.readLine();
+                response = in.readLine();
             } catch (IOException e) {
-                System.out.println("Please try again!");
+                out.println("Please try again!");
+            }
+            // end of input closes the session
+            if (response == null) {
+                return;
             }
             // split the user input by spaces
             String[] tokens = response.split(" ");
@@ -45,8 +222,53 @@ public class Scheduler {
             if (tokens.length == 0) {
                 continue;
             }
-            // determine which operation to perform
-            String operation = tokens[0];
+            if (!execute(tokens)) {
+                return;
+            }
+        }
+    }
+
+    // Run a create command with a password hash that was started before the command came up
+    boolean execute(String[] tokens, Future<PasswordHasher.Hashed> prehashed) {
+        pendingHash = prehashed;
+        try {
+            return execute(tokens);
+        } finally {
+            // not used when the username was taken or the command was malformed
+            if (pendingHash != null) {
+                pendingHash.cancel(false);
+                pendingHash = null;
+            }
+        }
+    }
+
+    // Run one command, returns false once the user quits
+    public boolean execute(String[] tokens) {
+        // determine which operation to perform
+        String operation = tokens[0];
+        if (operation.equals("quit")) {
+            out.println("Bye!");
+            return false;
+        }
+        if (operation.equals("logout")) {
+            logout(tokens);
+            return true;
+        }
+        if (operationPermits != null) {
+            try {
+                operationPermits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                out.println("Please try again!");
+                return false;
+            }
+        }
+        // unknown operations share one entry so that typos cannot grow the metrics without bound
+        String metricName = COMMANDS.contains(operation) ? operation : "invalid";
+        CommandMetrics.Scope metrics = CommandMetrics.getInstance().begin(metricName);
+        ReplicaRouter.bind(readSession);
+        failed = false;
+        try {
             if (operation.equals("create_patient")) {
                 createPatient(tokens);
             } else if (operation.equals("create_caregiver")) {
@@ -57,144 +279,221 @@ public class Scheduler {
                 loginCaregiver(tokens);
             } else if (operation.equals("search_caregiver_schedule")) {
                 searchCaregiverSchedule(tokens);
+            } else if (operation.equals("next_available")) {
+                nextAvailable(tokens);
             } else if (operation.equals("reserve")) {
                 reserve(tokens);
+            } else if (operation.equals("reserve_group")) {
+                reserveGroup(tokens);
             } else if (operation.equals("upload_availability")) {
                 uploadAvailability(tokens);
             } else if (operation.equals("cancel")) {
                 cancel(tokens);
+            } else if (operation.equals("cancel_date")) {
+                cancelDate(tokens);
             } else if (operation.equals("add_doses")) {
                 addDoses(tokens);
             } else if (operation.equals("show_appointments")) {
                 showAppointments(tokens);
-            } else if (operation.equals("logout")) {
-                logout(tokens);
-            } else if (operation.equals("quit")) {
-                System.out.println("Bye!");
-                return;
+            } else if (operation.equals("waitlist")) {
+                showWaitlist(tokens);
+            } else if (operation.equals("leave_waitlist")) {
+                leaveWaitlist(tokens);
+            } else if (operation.equals("stats")) {
+                stats(tokens);
             } else {
-                System.out.println("Invalid operation name!");
+                out.println("Invalid operation name!");
+            }
+        } catch (RuntimeException e) {
+            // a bug in one command must not end the session, over the server it would drop the client silently
+            failed("Error occurred when running " + operation + ", please try again!", e);
+        } finally {
+            ReplicaRouter.unbind();
+            if (failed) {
+                metrics.fail();
+            }
+            metrics.close();
+            if (operationPermits != null) {
+                operationPermits.release();
             }
         }
+        return true;
     }
 
-    private static void printMenu() {
-        System.out.println("*** Please enter one of the following commands ***");
-        System.out.println("> create_patient <username> <password>");  //TODO: implement create_patient (Part 1)
-        System.out.println("> create_caregiver <username> <password>");
-        System.out.println("> login_patient <username> <password>");  // TODO: implement login_patient (Part 1)
-        System.out.println("> login_caregiver <username> <password>");
-        System.out.println("> search_caregiver_schedule <date>");  // TODO: implement search_caregiver_schedule (Part 2)
-        System.out.println("> reserve <date> <vaccine>");  // TODO: implement reserve (Part 2)
-        System.out.println("> upload_availability <date>");
-        System.out.println("> cancel <appointment_id>");  // TODO: implement cancel (extra credit)
-        System.out.println("> add_doses <vaccine> <number>");
-        System.out.println("> show_appointments");  // TODO: implement show_appointments (Part 2)
-        System.out.println("> logout");  // TODO: implement logout (Part 2)
-        System.out.println("> quit");
-        System.out.println();
+    // Report a command that could not finish because of a database error or a bug
+    private void failed(String message, Exception e) {
+        out.println(message);
+        e.printStackTrace();
+        failed = true;
     }
 
-    private static void createPatient(String[] tokens) {
+    private void printMenu() {
+        if (!interactive) {
+            return;
+        }
+        out.println("*** Please enter one of the following commands ***");
+        out.println("> create_patient <username> <password>");  //TODO: implement create_patient (Part 1)
+        out.println("> create_caregiver <username> <password>");
+        out.println("> login_patient <username> <password>");  // TODO: implement login_patient (Part 1)
+        out.println("> login_caregiver <username> <password>");
+        out.println("> search_caregiver_schedule <date>");  // TODO: implement search_caregiver_schedule (Part 2)
+        out.println("> search_caregiver_schedule <from> <to>");
+        out.println("> next_available <vaccine> [from]");
+        out.println("> reserve <date> <vaccine>");  // TODO: implement reserve (Part 2)
+        out.println("> reserve_group <date> <vaccine> [--partial] <patient> ...");
+        out.println("> upload_availability <date>");
+        out.println("> upload_availability <from> <to> [weekdays] [every <n>]");
+        out.println("> cancel <appointment_id> [<appointment_id> ...]");  // TODO: implement cancel (extra credit)
+        out.println("> cancel_date <date>");
+        out.println("> add_doses <vaccine> <number>");
+        out.println("> show_appointments [--from <date>] [--to <date>] [--after <id>] [--limit <n>]");  // TODO: implement show_appointments (Part 2)
+        out.println("> waitlist");
+        out.println("> leave_waitlist <date> <vaccine>");
+        out.println("> stats");
+        out.println("> logout");  // TODO: implement logout (Part 2)
+        out.println("> quit");
+        out.println();
+    }
+
+    private void createPatient(String[] tokens) {
         if (tokens.length != 3) {
-            System.out.println("Failed to create user.");
+            out.println("Failed to create user.");
             return;
         }
         String username = tokens[1];
         String password = tokens[2];
         if (usernameExistsPatient(username)) {
-            System.out.println("Username taken, try again!");
+            out.println("Username taken, try again!");
             return;
         }
-        byte[] salt = Util.generateSalt();
-        byte[] hash = Util.generateHash(password, salt);
         // create the caregiver
         try {
-            Patient patient = new Patient.PatientBuilder(username, salt, hash).build();
+            PasswordHasher.Hashed hashed = hashPassword(password);
+            Patient patient = new Patient.PatientBuilder(username, hashed).build();
             patient.saveToDB();
-            System.out.println("Created user " + username);
+            out.println("Created user " + username);
             printMenu();
+        } catch (RejectedExecutionException e) {
+            out.println("Server is busy, please try again!");
         } catch (SQLException e) {
-            System.out.println("Failed to create user.");
-            e.printStackTrace();
+            if (isDuplicateKey(e)) {
+                // taken after all, e.g. created by another instance since the filter was loaded
+                UsernameFilter.patients().added(username);
+                out.println("Username taken, try again!");
+                return;
+            }
+            failed("Failed to create user.", e);
         }
     }
 
-    private static boolean usernameExistsPatient(String username) {
+    private boolean usernameExistsPatient(String username) {
+        // a definite miss needs no query, the primary key still catches a name created elsewhere meanwhile
+        if (!UsernameFilter.patients().mightContain(username)) {
+            return false;
+        }
         ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
 
         String selectUsername = "SELECT * FROM Patients WHERE Username = ?";
-        try {
-            PreparedStatement statement = con.prepareStatement(selectUsername);
+        try (PreparedStatement statement = cm.createConnection().prepareStatement(selectUsername)) {
             statement.setString(1, username);
             ResultSet resultSet = statement.executeQuery();
             return resultSet.isBeforeFirst();
         } catch (SQLException e) {
-            System.out.println("Error occurred when checking username");
-            e.printStackTrace();
+            failed("Error occurred when checking username", e);
         } finally {
             cm.closeConnection();
         }
         return true;
     }
 
-    private static void createCaregiver(String[] tokens) {
+    private void createCaregiver(String[] tokens) {
         // create_caregiver <username> <password>
         // check 1: the length for tokens need to be exactly 3 to include all information (with the operation name)
         if (tokens.length != 3) {
-            System.out.println("Failed to create user.");
+            out.println("Failed to create user.");
             return;
         }
         String username = tokens[1];
         String password = tokens[2];
         // check 2: check if the username has been taken already
         if (usernameExistsCaregiver(username)) {
-            System.out.println("Username taken, try again!");
+            out.println("Username taken, try again!");
             return;
         }
-        byte[] salt = Util.generateSalt();
-        byte[] hash = Util.generateHash(password, salt);
         // create the caregiver
         try {
-            Caregiver caregiver = new Caregiver.CaregiverBuilder(username, salt, hash).build(); 
+            PasswordHasher.Hashed hashed = hashPassword(password);
+            Caregiver caregiver = new Caregiver.CaregiverBuilder(username, hashed).build();
             // save to caregiver information to our database
             caregiver.saveToDB();
-            System.out.println("Created user " + username);
+            out.println("Created user " + username);
             printMenu();
+        } catch (RejectedExecutionException e) {
+            out.println("Server is busy, please try again!");
         } catch (SQLException e) {
-            System.out.println("Failed to create user.");
-            e.printStackTrace();
+            if (isDuplicateKey(e)) {
+                // taken after all, e.g. created by another instance since the filter was loaded
+                UsernameFilter.caregivers().added(username);
+                out.println("Username taken, try again!");
+                return;
+            }
+            failed("Failed to create user.", e);
+        }
+    }
+
+    // The hash started ahead of time for this command if there is one, otherwise a new one
+    private PasswordHasher.Hashed hashPassword(String password) {
+        Future<PasswordHasher.Hashed> pending = pendingHash;
+        pendingHash = null;
+        if (pending == null) {
+            return PasswordHasher.getInstance().hash(password);
+        }
+        try {
+            return pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while hashing a password");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
         }
     }
 
-    private static boolean usernameExistsCaregiver(String username) {
+    // integrity constraint violation: SQLState class 23 on both SQL Server and H2
+    private static boolean isDuplicateKey(SQLException e) {
+        return e.getSQLState() != null && e.getSQLState().startsWith("23");
+    }
+
+    private boolean usernameExistsCaregiver(String username) {
+        // a definite miss needs no query, the primary key still catches a name created elsewhere meanwhile
+        if (!UsernameFilter.caregivers().mightContain(username)) {
+            return false;
+        }
         ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
 
         String selectUsername = "SELECT * FROM Caregivers WHERE Username = ?";
-        try {
-            PreparedStatement statement = con.prepareStatement(selectUsername);
+        try (PreparedStatement statement = cm.createConnection().prepareStatement(selectUsername)) {
             statement.setString(1, username);
             ResultSet resultSet = statement.executeQuery();
             // returns false if the cursor is not before the first record or if there are no rows in the ResultSet.
             return resultSet.isBeforeFirst();
         } catch (SQLException e) {
-            System.out.println("Error occurred when checking username");
-            e.printStackTrace();
+            failed("Error occurred when checking username", e);
         } finally {
             cm.closeConnection();
         }
         return true;
     }
 
-    private static void loginPatient(String[] tokens) {
+    private void loginPatient(String[] tokens) {
         if (currentPatient != null || currentPatient != null) {
-            System.out.println("User already logged in.");
+            out.println("User already logged in.");
             return;
         }
         if (tokens.length != 3) {
-            System.out.println("Login failed.");
+            out.println("Login failed.");
             return;
         }
         String username = tokens[1];
@@ -203,29 +502,31 @@ public class Scheduler {
         Patient patient = null;
         try {
             patient = new Patient.PatientGetter(username, password).get();
+        } catch (RejectedExecutionException e) {
+            out.println("Server is busy, please try again!");
+            return;
         } catch (SQLException e) {
-            System.out.println("Login failed.");
-            e.printStackTrace();
+            failed("Login failed.", e);
         }
         // check if the login was successful
         if (patient == null) {
-            System.out.println("Login failed.");
+            out.println("Login failed.");
         } else {
-            System.out.println("Logged in as: " + username);
+            out.println("Logged in as: " + username);
             currentPatient = patient;
         }
     }
 
-    private static void loginCaregiver(String[] tokens) {
+    private void loginCaregiver(String[] tokens) {
         // login_caregiver <username> <password>
         // check 1: if someone's already logged-in, they need to log out first
         if (currentCaregiver != null || currentPatient != null) {
-            System.out.println("User already logged in.");
+            out.println("User already logged in.");
             return;
         }
         // check 2: the length for tokens need to be exactly 3 to include all information (with the operation name)
         if (tokens.length != 3) {
-            System.out.println("Login failed.");
+            out.println("Login failed.");
             return;
         }
         String username = tokens[1];
@@ -234,240 +535,437 @@ public class Scheduler {
         Caregiver caregiver = null;
         try {
             caregiver = new Caregiver.CaregiverGetter(username, password).get();
+        } catch (RejectedExecutionException e) {
+            out.println("Server is busy, please try again!");
+            return;
         } catch (SQLException e) {
-            System.out.println("Login failed.");
-            e.printStackTrace();
+            failed("Login failed.", e);
         }
         // check if the login was successful
         if (caregiver == null) {
-            System.out.println("Login failed.");
+            out.println("Login failed.");
         } else {
-            System.out.println("Logged in as: " + username);
+            out.println("Logged in as: " + username);
             currentCaregiver = caregiver;
         }
     }
 
-    private static void searchCaregiverSchedule(String[] tokens) {
+    private void searchCaregiverSchedule(String[] tokens) {
         if (currentCaregiver == null && currentPatient == null) {
-            System.out.println("Please login first!");
+            out.println("Please login first!");
             return;
         }
-        if (tokens.length != 2) {
-            System.out.println("Please try again!");
+        if (tokens.length != 2 && tokens.length != 3) {
+            out.println("Please try again!");
+            return;
+        }
+        if (tokens.length == 3) {
+            searchCaregiverSchedule(tokens[1], tokens[2]);
             return;
         }
         String date = tokens[1];
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-        String getAvailability = "SELECT cUser FROM Availabilities WHERE Time = ? ORDER BY cUser";
         try {
             Date d = Date.valueOf(date);
-            PreparedStatement statement = con.prepareStatement(getAvailability);
-            statement.setDate(1, d);
-            ResultSet resultSet = statement.executeQuery();
-            System.out.print("Caregivers available: ");
-            while (resultSet.next()) {
-                String user = resultSet.getString("cUser");
-                System.out.print(user + " ");
-            }
-            System.out.println();
-            String getVaccines = "SELECT * FROM Vaccines";
-            PreparedStatement statement1 = con.prepareStatement(getVaccines);
-            ResultSet resultSet1 = statement1.executeQuery();
-            System.out.print("Vaccines available: ");
-            while (resultSet1.next()) {
-                String vaxName = resultSet1.getString("Name");
-                int doses = resultSet1.getInt("Doses");
-                System.out.print(vaxName + " " + doses + " ");
-            }
-            System.out.println();
+            // both reads run at once, each shared with an identical one already in flight
+            CompletableFuture<NavigableSet<String>> caregivers = AvailabilityIndex.getInstance().caregiversOnAsync(d);
+            CompletableFuture<Map<String, Integer>> vaccines = VaccineInventory.getInstance().snapshotAsync();
+            out.print("Caregivers available: ");
+            for (String user : await(caregivers)) {
+                out.print(user + " ");
+            }
+            out.println();
+            out.print("Vaccines available: ");
+            for (Map.Entry<String, Integer> vaccine : await(vaccines).entrySet()) {
+                out.print(vaccine.getKey() + " " + vaccine.getValue() + " ");
+            }
+            out.println();
             printMenu();
         } catch (IllegalArgumentException e) {
-            System.out.println("Please enter a valid date!");
+            out.println("Please enter a valid date!");
         } catch (SQLException e) {
-            System.out.println("Error occurred when searching caregiver schedule.");
-            e.printStackTrace();
-        } finally {
-            cm.closeConnection();
+            failed("Error occurred when searching caregiver schedule.", e);
+        }
+    }
+
+    // search_caregiver_schedule <from> <to>: caregiver count per open date and the doses left, in at most one query
+    private void searchCaregiverSchedule(String from, String to) {
+        try {
+            Date first = Date.valueOf(from);
+            Date last = Date.valueOf(to);
+            long days = ChronoUnit.DAYS.between(first.toLocalDate(), last.toLocalDate()) + 1;
+            if (days < 1 || days > MAX_SEARCH_DAYS) {
+                out.println("Please enter a range of 1 to " + MAX_SEARCH_DAYS + " days!");
+                return;
+            }
+            CompletableFuture<Map<String, Integer>> vaccines = VaccineInventory.getInstance().snapshotAsync();
+            Map<LocalDate, Integer> counts = AvailabilityIndex.getInstance().counts(first, last);
+            for (Map.Entry<LocalDate, Integer> e : counts.entrySet()) {
+                out.println(e.getKey() + " " + e.getValue() + (e.getValue() == 1 ? " caregiver" : " caregivers"));
+            }
+            out.println(counts.size() + " of " + days + " days open");
+            out.print("Vaccines available: ");
+            for (Map.Entry<String, Integer> vaccine : await(vaccines).entrySet()) {
+                out.print(vaccine.getKey() + " " + vaccine.getValue() + " ");
+            }
+            out.println();
+            printMenu();
+        } catch (IllegalArgumentException e) {
+            out.println("Please enter a valid date!");
+        } catch (SQLException e) {
+            failed("Error occurred when searching caregiver schedule.", e);
         }
     }
 
-    private static void reserve(String[] tokens) {
+    // Wait for a read started by one of the async lookups, rethrowing the SQLException it failed with
+    private static <T> T await(CompletableFuture<T> read) throws SQLException {
+        try {
+            return read.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private void nextAvailable(String[] tokens) {
+        // next_available <vaccine> [from]
+        if (currentCaregiver == null && currentPatient == null) {
+            out.println("Please login first!");
+            return;
+        }
+        if (tokens.length != 2 && tokens.length != 3) {
+            out.println("Please try again!");
+            return;
+        }
+        String vaxName = tokens[1];
+        try {
+            Date from = tokens.length == 3 ? Date.valueOf(tokens[2]) : Date.valueOf(LocalDate.now());
+            Integer doses = VaccineInventory.getInstance().getDoses(vaxName);
+            if (doses == null) {
+                out.println("Vaccine is not available!");
+                return;
+            }
+            if (doses == 0) {
+                out.println("Not enough available doses!");
+                return;
+            }
+            Map.Entry<LocalDate, Integer> next = AvailabilityIndex.getInstance().nextAvailable(from);
+            if (next == null) {
+                out.println("No Caregiver is available!");
+                return;
+            }
+            out.println("Next available date for " + vaxName + ": " + next.getKey() + " (" + next.getValue()
+                    + (next.getValue() == 1 ? " caregiver, " : " caregivers, ") + doses + " doses)");
+            printMenu();
+        } catch (IllegalArgumentException e) {
+            out.println("Please enter a valid date!");
+        } catch (SQLException e) {
+            failed("Error occurred when searching caregiver schedule.", e);
+        }
+    }
+
+    private void reserve(String[] tokens) {
         if (currentPatient == null && currentCaregiver == null) {
-            System.out.println("Please login first!");
+            out.println("Please login first!");
             return;
         }
         if (currentCaregiver != null) {
-            System.out.println("Please login as a patient first!");
+            out.println("Please login as a patient first!");
             return;
         }
         if (tokens.length != 3) {
-            System.out.println("Please try again!");
+            out.println("Please try again!");
             return;
         }
         String date = tokens[1];
         String vaxName = tokens[2];
-        Vaccine vaccine = null;
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-        String getCaregiver = "SELECT TOP 1 cUser FROM Availabilities WHERE Time = ? ORDER BY cUser";
         try {
             Date d = Date.valueOf(date);
-            PreparedStatement statement = con.prepareStatement(getCaregiver);
-            statement.setDate(1, d);
-            ResultSet resultSet = statement.executeQuery();
-            String cUser = null;
-            if (!resultSet.next()) {
-                System.out.println("No Caregiver is available!");
-            } else {
-                String checkVax = "SELECT Doses FROM Vaccines WHERE Name = ?";
-                try {
-                    PreparedStatement statement1 = con.prepareStatement(checkVax);
-                    statement1.setString(1, vaxName);
-                    ResultSet resultSet1 = statement1.executeQuery();
-                    if (!resultSet1.next()) {
-                        System.out.println("Vaccine is not available!");
-                        return;
-                    } else {
-                        int doses = resultSet1.getInt("Doses");
-                        if (doses == 0) {
-                            System.out.println("Not enough available doses!");
-                            return;
-                        }
+            ReservationEngine.Result result = reservationEngine.reserve(d, vaxName, currentPatient.getUsername());
+            switch (result.getStatus()) {
+                case NO_CAREGIVER:
+                    out.println("No Caregiver is available!");
+                    joinWaitlist(d, vaxName);
+                    break;
+                case NO_VACCINE:
+                    out.println("Vaccine is not available!");
+                    break;
+                case NO_DOSES:
+                    out.println("Not enough available doses!");
+                    joinWaitlist(d, vaxName);
+                    break;
+                default:
+                    out.println("Appointment ID: " + result.getAppointmentId()
+                            + ", Caregiver username: " + result.getCaregiver());
+                    printMenu();
+            }
+        } catch (IllegalArgumentException e) {
+            out.println("Please enter a valid value!");
+        } catch (SQLException e) {
+            failed("Error occurred when reserving appointment.", e);
+        }
+    }
+
+    // Book everyone listed in the file, one patient username per line, on the same date in one operation.
+    // All or nothing unless --partial, which books as many as there are slots and doses for, in file order.
+    private void reserveGroup(String[] tokens) {
+        // reserve_group <date> <vaccine> [--partial] <patient> ...
+        if (currentCaregiver == null) {
+            out.println("Please login as a caregiver first!");
+            return;
+        }
+        boolean partial = false;
+        Set<String> listed = new LinkedHashSet<>();
+        for (int i = 3; i < tokens.length; i++) {
+            if (tokens[i].equals("--partial")) {
+                partial = true;
+            } else if (!tokens[i].isEmpty() && !listed.add(tokens[i])) {
+                out.println("Listed twice, booked once: " + tokens[i]);
+            }
+        }
+        if (listed.isEmpty()) {
+            out.println("Please try again!");
+            return;
+        }
+        String vaxName = tokens[2];
+        try {
+            Date d = Date.valueOf(tokens[1]);
+            List<String> patients = new ArrayList<>(listed);
+            Set<String> known = Patient.existing(patients);
+            if (known.size() < patients.size()) {
+                for (String username : patients) {
+                    if (!known.contains(username)) {
+                        out.println("Unknown patient: " + username);
                     }
-                } catch(SQLException e){
-                    System.out.println("Please try again!");
-                    e.printStackTrace();
                 }
-                cUser = resultSet.getString("cUser");
-                String uploadAppointment = "INSERT INTO Appointments (Time, pUser, cUser, vaxName) VALUES (? , ?, ?, ?)";
-                try {
-                    PreparedStatement statement2 = con.prepareStatement(uploadAppointment);
-                    statement2.setDate(1, d);
-                    statement2.setString(2, currentPatient.getUsername());
-                    statement2.setString(3, cUser);
-                    statement2.setString(4, vaxName);
-                    statement2.executeUpdate();
-                } catch (SQLException e) {
-                    System.out.println("Please try again!");
-                    e.printStackTrace();
+                if (!partial) {
+                    out.println("No appointments were made");
+                    return;
                 }
-                try {
-                    vaccine = new Vaccine.VaccineGetter(vaxName).get();
-                    vaccine.decreaseAvailableDoses(1);
-                } catch (SQLException e) {
-                    System.out.println("Please try again!");
-                    e.printStackTrace();
-                }
-                String getAppointment = "SELECT Id, cUser FROM Appointments WHERE Time = ? AND pUser = ?" +
-                        " AND cUser = ? AND vaxName = ?";
-                PreparedStatement statement4 = con.prepareStatement(getAppointment);
-                statement4.setDate(1, d);
-                statement4.setString(2, currentPatient.getUsername());
-                statement4.setString(3, cUser);
-                statement4.setString(4, vaxName);
-                ResultSet resultSet3 = statement4.executeQuery();
-                while (resultSet3.next()) {
-                    int id = resultSet3.getInt("Id");
-                    String user = resultSet3.getString("cUser");
-                    System.out.println("Appointment ID: " + id + ", Caregiver username: " + user);
-                }
-                String remove = "DELETE FROM Availabilities WHERE Time = ? AND cUser = ?";
-                try {
-                    PreparedStatement statement3 = con.prepareStatement(remove);
-                    statement3.setDate(1, d);
-                    statement3.setString(2, cUser);
-                    statement3.executeUpdate();
-                } catch (SQLException e) {
-                    System.out.println("Please try again!");
-                    e.printStackTrace();
+                patients.retainAll(known);
+            }
+            if (patients.isEmpty()) {
+                out.println("No patients to book");
+                return;
+            }
+            long start = System.nanoTime();
+            List<ReservationEngine.Result> results = reservationEngine.reserveGroup(d, vaxName, patients, partial);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            int booked = 0;
+            // the patients not booked, by the reason they were not
+            Map<ReservationEngine.Status, List<String>> unbooked = new EnumMap<>(ReservationEngine.Status.class);
+            for (int i = 0; i < results.size(); i++) {
+                ReservationEngine.Result result = results.get(i);
+                if (result.getStatus() == ReservationEngine.Status.RESERVED) {
+                    booked++;
+                    out.println("Appointment ID: " + result.getAppointmentId() + ", Patient: " + patients.get(i)
+                            + ", Caregiver username: " + result.getCaregiver());
+                } else {
+                    unbooked.computeIfAbsent(result.getStatus(), k -> new ArrayList<>()).add(patients.get(i));
                 }
-                cUser = cUser;
-                printMenu();
             }
+            for (Map.Entry<ReservationEngine.Status, List<String>> e : unbooked.entrySet()) {
+                out.println(reason(e.getKey()) + " " + e.getValue().size() + " of " + patients.size()
+                        + " patients not booked: " + String.join(", ", e.getValue()));
+            }
+            if (booked == 0) {
+                out.println("No appointments were made");
+                return;
+            }
+            out.println("Reserved " + booked + " appointments on " + d + " in "
+                    + String.format("%.3f s (%.0f bookings/s)", seconds, booked / Math.max(seconds, 1e-9)));
+            printMenu();
         } catch (IllegalArgumentException e) {
-            System.out.println("Please enter a valid value!");
+            out.println("Please enter a valid date!");
         } catch (SQLException e) {
-            System.out.println("Error occurred when reserving appointment.");
-            e.printStackTrace();
-        } finally {
-            cm.closeConnection();
+            failed("Error occurred when reserving appointments.", e);
         }
     }
 
-    private static void uploadAvailability(String[] tokens) {
+    private static String reason(ReservationEngine.Status status) {
+        switch (status) {
+            case NO_CAREGIVER:
+                return "No Caregiver is available!";
+            case NO_VACCINE:
+                return "Vaccine is not available!";
+            case NO_DOSES:
+                return "Not enough available doses!";
+            default:
+                return "Skipped!";
+        }
+    }
+
+    // Instead of retrying by hand, the patient is booked as soon as a slot and a dose open up
+    private void joinWaitlist(Date d, String vaxName) throws SQLException {
+        // an unknown vaccine only gets here when there is no caregiver either
+        if (VaccineInventory.getInstance().getDoses(vaxName) == null) {
+            return;
+        }
+        int position = Waitlist.getInstance().join(d, vaxName, currentPatient.getUsername());
+        if (position > 0) {
+            out.println("Added to the waitlist for " + d + " " + vaxName + " at position " + position
+                    + ", you will be booked automatically");
+        }
+    }
+
+    private void showWaitlist(String[] tokens) {
+        if (currentPatient == null) {
+            out.println("Please login as a patient first!");
+            return;
+        }
+        List<Waitlist.Position> positions = Waitlist.getInstance().positions(currentPatient.getUsername());
+        if (positions.isEmpty()) {
+            out.println("Not on any waitlist");
+        }
+        for (Waitlist.Position position : positions) {
+            out.println(position.getDate() + " " + position.getVaccine() + " position " + position.getPosition());
+        }
+    }
+
+    private void leaveWaitlist(String[] tokens) {
+        if (currentPatient == null) {
+            out.println("Please login as a patient first!");
+            return;
+        }
+        if (tokens.length != 3) {
+            out.println("Please try again!");
+            return;
+        }
+        try {
+            if (Waitlist.getInstance().leave(Date.valueOf(tokens[1]), tokens[2], currentPatient.getUsername())) {
+                out.println("Removed from the waitlist");
+            } else {
+                out.println("Not on the waitlist for " + tokens[1] + " " + tokens[2]);
+            }
+        } catch (IllegalArgumentException e) {
+            out.println("Please enter a valid date!");
+        } catch (SQLException e) {
+            failed("Error occurred when leaving the waitlist", e);
+        }
+    }
+
+    private void uploadAvailability(String[] tokens) {
         // upload_availability <date>
+        // upload_availability <from> <to> [weekdays] [every <n>]
         // check 1: check if the current logged-in user is a caregiver
         if (currentCaregiver == null) {
-            System.out.println("Please login as a caregiver first!");
+            out.println("Please login as a caregiver first!");
             return;
         }
-        // check 2: the length for tokens need to be exactly 2 to include all information (with the operation name)
-        if (tokens.length != 2) {
-            System.out.println("Please try again!");
+        // check 2: the length for tokens need to be between 2 and 6 (with the operation name)
+        if (tokens.length < 2 || tokens.length > 6) {
+            out.println("Please try again!");
             return;
         }
-        String date = tokens[1];
         try {
-            Date d = Date.valueOf(date);
-            currentCaregiver.uploadAvailability(d);
-            System.out.println("Availability uploaded!");
+            if (tokens.length == 2) {
+                Date d = Date.valueOf(tokens[1]);
+                if (currentCaregiver.uploadAvailability(d)) {
+                    Waitlist.getInstance().slotsOpened(List.of(d));
+                    out.println("Availability uploaded!");
+                } else {
+                    out.println("Availability already uploaded for " + d);
+                }
+            } else {
+                AvailabilityPattern pattern = AvailabilityPattern.parse(Arrays.copyOfRange(tokens, 1, tokens.length));
+                List<Date> dates = pattern.expand();
+                Caregiver.UploadResult result = currentCaregiver.uploadAvailability(dates);
+                Waitlist.getInstance().slotsOpened(dates);
+                out.println("Availability uploaded! " + result.getInserted() + " added, "
+                        + result.getDuplicates() + " duplicates skipped ("
+                        + String.format("%.0f", result.getRowsPerSecond()) + " rows/s)");
+            }
             printMenu();
         } catch (IllegalArgumentException e) {
-            System.out.println("Please enter a valid date!");
+            out.println("Please enter a valid date!");
         } catch (SQLException e) {
-            System.out.println("Error occurred when uploading availability");
-            e.printStackTrace();
+            failed("Error occurred when uploading availability", e);
         }
     }
 
-    private static void cancel(String[] tokens) {
+    private void cancel(String[] tokens) {
+        // cancel <appointment_id> [<appointment_id> ...]
         if (currentPatient == null && currentCaregiver == null) {
-            System.out.println("Please login first!");
+            out.println("Please login first!");
+            return;
+        }
+        if (tokens.length < 2) {
+            out.println("Please try again!");
+            return;
+        }
+        List<Integer> ids = new ArrayList<>();
+        try {
+            for (int i = 1; i < tokens.length; i++) {
+                ids.add(Integer.parseInt(tokens[i]));
+            }
+        } catch (NumberFormatException e) {
+            out.println("Please enter a valid appointment ID!");
+            return;
+        }
+        try {
+            Cancellation.Result result = currentPatient != null
+                    ? Cancellation.cancelForPatient(ids, currentPatient.getUsername())
+                    : Cancellation.cancelForCaregiver(ids, currentCaregiver.getUsername());
+            for (int id : result.getMissing()) {
+                out.println("No appointment with ID " + id);
+            }
+            if (ids.size() == 1) {
+                if (result.getCancelled() == 1) {
+                    out.println("Appointment successfully canceled!");
+                }
+            } else {
+                printCancelled(result, result.getRestoredSlots() + " caregiver slots restored");
+            }
+            printMenu();
+        } catch (SQLException e) {
+            failed("Error occurred attempting to cancel appointment.", e);
+        }
+    }
+
+    private void cancelDate(String[] tokens) {
+        // cancel_date <date>
+        if (currentCaregiver == null) {
+            out.println("Please login as a caregiver first!");
             return;
         }
         if (tokens.length != 2) {
-            System.out.println("Please try again!");
+            out.println("Please try again!");
             return;
         }
-        String id = tokens[1];
-        Vaccine vaccine = null;
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-        String getVaccine = "SELECT vaxName FROM Appointments WHERE Id = ?";
-        String cancelAppointment = "DELETE FROM Appointments WHERE Id = ?";
         try {
-            PreparedStatement statement = con.prepareStatement(getVaccine);
-            statement.setInt(1, Integer.parseInt(id));
-            ResultSet resultSet = statement.executeQuery();
-            while (resultSet.next()) {
-                String vaxName = resultSet.getString("vaxName");
-                vaccine = new Vaccine.VaccineGetter(vaxName).get();
-                vaccine.increaseAvailableDoses(1);
-            }
-            PreparedStatement statement1 = con.prepareStatement(cancelAppointment);
-            statement1.setInt(1, Integer.parseInt(id));
-            statement1.executeUpdate();
-            System.out.println("Appointment successfully canceled!");
+            // only the logged-in caregiver's own day
+            Cancellation.Result result = Cancellation.cancelDate(Date.valueOf(tokens[1]),
+                    currentCaregiver.getUsername());
+            printCancelled(result, result.getWithdrawnSlots() + " open slots withdrawn");
             printMenu();
+        } catch (IllegalArgumentException e) {
+            out.println("Please enter a valid date!");
         } catch (SQLException e) {
-            System.out.println("Error occurred attempting to cancel appointment.");
-            e.printStackTrace();
-        } finally {
-            cm.closeConnection();
+            failed("Error occurred attempting to cancel appointments.", e);
+        }
+    }
+
+    private void printCancelled(Cancellation.Result result, String slots) {
+        StringBuilder doses = new StringBuilder();
+        for (Map.Entry<String, Integer> e : result.getDoses().entrySet()) {
+            doses.append(doses.length() == 0 ? "" : ", ").append(e.getValue()).append(' ').append(e.getKey());
         }
+        out.println(result.getCancelled() + " appointments canceled, " + slots
+                + (doses.length() == 0 ? "" : ", doses returned: " + doses) + " in "
+                + String.format("%.3f s", result.getElapsedNanos() / 1e9));
     }
 
-    private static void addDoses(String[] tokens) {
+    private void addDoses(String[] tokens) {
         // add_doses <vaccine> <number>
         // check 1: check if the current logged-in user is a caregiver
         if (currentCaregiver == null) {
-            System.out.println("Please login as a caregiver first!");
+            out.println("Please login as a caregiver first!");
             return;
         }
         // check 2: the length for tokens need to be exactly 3 to include all information (with the operation name)
         if (tokens.length != 3) {
-            System.out.println("Please try again!");
+            out.println("Please try again!");
             return;
         }
         String vaccineName = tokens[1];
@@ -476,8 +974,7 @@ public class Scheduler {
         try {
             vaccine = new Vaccine.VaccineGetter(vaccineName).get();
         } catch (SQLException e) {
-            System.out.println("Error occurred when adding doses");
-            e.printStackTrace();
+            failed("Error occurred when adding doses", e);
         }
         // check 3: if getter returns null, it means that we need to create the vaccine and insert it into the Vaccines
         //          table
@@ -485,84 +982,180 @@ public class Scheduler {
             try {
                 vaccine = new Vaccine.VaccineBuilder(vaccineName, doses).build();
                 vaccine.saveToDB();
+                Journal.getInstance().record(JournalEvent.dosesAdded(vaccineName, doses));
             } catch (SQLException e) {
-                System.out.println("Error occurred when adding doses");
-                e.printStackTrace();
+                failed("Error occurred when adding doses", e);
             }
         } else {
             // if the vaccine is not null, meaning that the vaccine already exists in our table
             try {
                 vaccine.increaseAvailableDoses(doses);
+                Journal.getInstance().record(JournalEvent.dosesAdded(vaccineName, doses));
             } catch (SQLException e) {
-                System.out.println("Error occurred when adding doses");
-                e.printStackTrace();
+                failed("Error occurred when adding doses", e);
             }
         }
-        System.out.println("Doses updated!");
+        Waitlist.getInstance().dosesAdded(vaccineName);
+        out.println("Doses updated!");
         printMenu();
     }
 
-    private static void showAppointments(String[] tokens) {
+    private void showAppointments(String[] tokens) {
+        // show_appointments [--from <date>] [--to <date>] [--after <id>] [--limit <n>]
         if (currentCaregiver == null && currentPatient == null) {
-            System.out.println("Please login first!");
+            out.println("Please login first!");
             return;
         }
+        if (tokens.length % 2 == 0) {
+            out.println("Please try again!");
+            return;
+        }
+        Date from = null;
+        Date to = null;
+        int after = 0;
+        int limit = 0;
+        try {
+            for (int i = 1; i < tokens.length; i += 2) {
+                String value = tokens[i + 1];
+                if (tokens[i].equals("--from")) {
+                    from = Date.valueOf(value);
+                } else if (tokens[i].equals("--to")) {
+                    to = Date.valueOf(value);
+                } else if (tokens[i].equals("--after")) {
+                    after = Integer.parseInt(value);
+                } else if (tokens[i].equals("--limit")) {
+                    limit = Integer.parseInt(value);
+                    if (limit <= 0) {
+                        throw new IllegalArgumentException("limit must be positive");
+                    }
+                } else {
+                    throw new IllegalArgumentException("unknown option " + tokens[i]);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            out.println("Please try again!");
+            return;
+        }
+        boolean caregiver = currentCaregiver != null;
+        String username = caregiver ? currentCaregiver.getUsername() : currentPatient.getUsername();
+        AppointmentQuery query = new AppointmentQuery(caregiver, username, from, to, after, limit);
         ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-        if (currentCaregiver != null) {
-            String getAppointments = "SELECT Id, vaxName, Time, pUser FROM Appointments WHERE cUser = ? ORDER BY Id";
-            try {
-                PreparedStatement statement = con.prepareStatement(getAppointments);
-                statement.setString(1, currentCaregiver.getUsername());
-                ResultSet resultSet = statement.executeQuery();
-                System.out.println("Scheduled appointments: ");
+        try (PreparedStatement statement = query.prepare(cm.createReadConnection())) {
+            // rows are printed as they arrive, so memory stays flat however long the history is
+            statement.setFetchSize(limit > 0 ? Math.min(limit, APPOINTMENT_FETCH_SIZE) : APPOINTMENT_FETCH_SIZE);
+            int rows = 0;
+            int lastId = after;
+            try (ResultSet resultSet = statement.executeQuery()) {
+                out.println("Scheduled appointments: ");
                 while (resultSet.next()) {
-                    int id = resultSet.getInt("Id");
+                    lastId = resultSet.getInt("Id");
                     String vaxName = resultSet.getString("vaxName");
                     Date d = resultSet.getDate("Time");
-                    String pUser = resultSet.getString("pUser");
-                    System.out.println(id + " " + vaxName + " " + d + " " + pUser);
+                    String other = resultSet.getString("other");
+                    out.println(lastId + " " + vaxName + " " + d + " " + other);
+                    rows++;
                 }
-            } catch (SQLException e) {
-                System.out.println("Error occurred when finding scheduled appointments.");
-                e.printStackTrace();
             }
-        }
-        if (currentPatient != null) {
-            String getAppointments = "SELECT Id, vaxName, Time, cUser FROM Appointments WHERE pUser = ? ORDER BY Id";
-            try {
-                PreparedStatement statement1 = con.prepareStatement(getAppointments);
-                statement1.setString(1, currentPatient.getUsername());
-                ResultSet resultSet1 = statement1.executeQuery();
-                System.out.println("Scheduled appointments: ");
-                while (resultSet1.next()) {
-                    int id = resultSet1.getInt("Id");
-                    String vaxName = resultSet1.getString("vaxName");
-                    Date d = resultSet1.getDate("Time");
-                    String cUser = resultSet1.getString("cUser");
-                    System.out.println(id + " " + vaxName + " " + d + " " + cUser);
-                }
-            } catch (SQLException e) {
-                System.out.println("Error occurred when finding scheduled appointments.");
-                e.printStackTrace();
-            } finally {
-                cm.closeConnection();
+            if (limit > 0 && rows == limit) {
+                out.println("More appointments: show_appointments"
+                        + (from != null ? " --from " + from : "") + (to != null ? " --to " + to : "")
+                        + " --after " + lastId + " --limit " + limit);
             }
+        } catch (SQLException e) {
+            failed("Error occurred when finding scheduled appointments.", e);
+        } finally {
+            cm.closeConnection();
+        }
+        printMenu();
+    }
+
+    // Per-command counts, latency percentiles and database work since the process started
+    private void stats(String[] tokens) {
+        if (tokens.length != 1) {
+            out.println("Please try again!");
+            return;
+        }
+        out.printf("%-26s %8s %6s %9s %9s %9s %8s %8s %8s %10s%n", "command", "count", "errors", "p50 ms",
+                "p99 ms", "max ms", "conns", "stmts", "rows", "jdbc ms");
+        for (Map.Entry<String, CommandMetrics.Stats> e : CommandMetrics.getInstance().snapshot().entrySet()) {
+            CommandMetrics.Stats s = e.getValue();
+            LatencyHistogram latency = s.getLatency();
+            out.printf("%-26s %8d %6d %9.3f %9.3f %9.3f %8d %8d %8d %10.3f%n", e.getKey(), s.getCount(),
+                    s.getErrors(), latency.percentile(50) / 1e6, latency.percentile(99) / 1e6,
+                    latency.max() / 1e6, s.getConnections(), s.getStatements(), s.getRowsRead(),
+                    s.getJdbcNanos() / 1e6);
+        }
+        ConnectionPool.PoolStats pool = ConnectionManager.getPoolStats();
+        out.println("Connection pool: " + pool.getOpen() + " open, " + pool.getIdle() + " idle, "
+                + pool.getBorrowed() + " borrowed, " + pool.getWaiting() + " waiting, "
+                + pool.getTimeouts() + " timeouts");
+        out.print("Coalesced reads:");
+        for (ReadCoalescer<?, ?> reads : ReadCoalescer.all()) {
+            out.printf(" %s %d requests in %d queries (%.1fx);", reads.getName(), reads.getRequests(),
+                    reads.getLoads(), reads.getRatio());
+        }
+        out.println();
+        ReplicaRouter replica = ConnectionManager.getReplicaRouter();
+        if (replica != null) {
+            out.printf("Read replica: lag %d ms, %d reads, %d sent to the primary while lagging,"
+                            + " %d for the session's own writes, %d heartbeat failures%n",
+                    replica.getLagMillis(), replica.getReplicaReads(), replica.getStaleReads(),
+                    replica.getOwnWriteReads(), replica.getHeartbeatFailures());
         }
+        ReplicationStandIn standIn = ConnectionManager.getReplicationStandIn();
+        if (standIn != null) {
+            out.printf("Replication stand-in: %d copies, last %.1f ms, %d failures%n", standIn.getSyncs(),
+                    standIn.getLastSyncNanos() / 1e6, standIn.getFailures());
+        }
+        out.println("Statement cache: " + StatementCache.getHits() + " hits, " + StatementCache.getMisses()
+                + " misses, " + StatementCache.getEvictions() + " evictions, " + StatementCache.getLeaked()
+                + " left open");
+        PasswordHasher hasher = PasswordHasher.getInstance();
+        out.printf("Password hashing: %d queued, %d running, %d done, %d rejected, %d upgraded,"
+                        + " hash p50 %.3f ms p99 %.3f ms, queue wait p99 %.3f ms%n", hasher.getQueueDepth(),
+                hasher.getRunning(), hasher.getCompleted(), hasher.getRejected(), hasher.getUpgraded(),
+                hasher.getHashTime().percentile(50) / 1e6, hasher.getHashTime().percentile(99) / 1e6,
+                hasher.getQueueTime().percentile(99) / 1e6);
+        out.printf("Reservations: %d (%s), %d slot conflicts, %d retries, mean %.3f ms, max %.3f ms%n",
+                reservationEngine.getReservations(), reservationEngine.getStrategy().getKind(),
+                reservationEngine.getConflicts(), reservationEngine.getRetries(),
+                reservationEngine.getMeanLatencyNanos() / 1e6, reservationEngine.getMaxLatencyNanos() / 1e6);
+        Waitlist waitlist = Waitlist.getInstance();
+        LatencyHistogram toAssignment = waitlist.getTimeToAssignment();
+        out.printf("Waitlist: %d waiting, %d joined, %d booked in %d batches, time to booking p50 %.1f s, p99 %.1f s%n",
+                waitlist.getWaiting(), waitlist.getJoined(), waitlist.getAssigned(), waitlist.getBatches(),
+                toAssignment.percentile(50) / 1e9, toAssignment.percentile(99) / 1e9);
+        Journal journal = Journal.getInstance();
+        if (journal.isEnabled()) {
+            LatencyHistogram commits = journal.getCommitTime();
+            out.printf("Journal: seq %d, %d segments, %d appended, %d flushes, %d archived, %d failures, "
+                            + "commit mean %.3f ms, p99 %.3f ms%n",
+                    journal.getDurableSeq(), journal.getSegments(), journal.getAppended(), journal.getFlushes(),
+                    journal.getArchived(), journal.getFailures(), commits.mean() / 1e6,
+                    commits.percentile(99) / 1e6);
+        }
+        printFilterStats("Patients", UsernameFilter.patients());
+        printFilterStats("Caregivers", UsernameFilter.caregivers());
         printMenu();
     }
 
-    private static void logout(String[] tokens) {
+    private void printFilterStats(String table, UsernameFilter filter) {
+        out.printf("%s username filter: %d names, %.1f KB, expected fpp %.4f, %d of %d lookups skipped%n",
+                table, filter.getSize(), filter.getMemoryBytes() / 1024.0, filter.getExpectedFpp(),
+                filter.getSkipped(), filter.getProbes());
+    }
+
+    private void logout(String[] tokens) {
         if (currentCaregiver == null && currentPatient == null) {
-            System.out.println("Please login first.");
+            out.println("Please login first.");
         } else if (currentPatient != null) {
             currentPatient = null;
-            System.out.println("Successfully logged out!");
+            out.println("Successfully logged out!");
         } else if (currentCaregiver != null) {
             currentCaregiver = null;
-            System.out.println("Successfully logged out!");
+            out.println("Successfully logged out!");
         } else {
-            System.out.println("Please try again.");
+            out.println("Please try again.");
         }
         printMenu();
     }